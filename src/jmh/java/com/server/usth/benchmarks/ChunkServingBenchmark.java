@@ -0,0 +1,115 @@
+package com.server.usth.benchmarks;
+
+import com.server.usth.services.DaemonImpl;
+import com.server.usth.services.DaemonService;
+import com.server.usth.services.DataPlaneClient;
+import com.server.usth.services.DataPlaneServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Chunk reads from one daemon at random chunk-aligned offsets of a 64 MB file, by chunk
+// size, transport and number of concurrent readers. "local" calls downloadChunk on the
+// object, "rmi" goes through its RMI stub and "dataplane" through the socket data plane.
+// Bytes per second are ops/s times chunkSize.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkServingBenchmark {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final String FILENAME = "bench.bin";
+
+    @Param({"65536", "1048576", "4194304"})
+    int chunkSize;
+
+    @Param({"local", "rmi", "dataplane"})
+    String transport;
+
+    private Path storage;
+    private DaemonImpl daemon;
+    private DaemonService stub;
+    private DataPlaneServer dataPlane;
+    private DataPlaneClient dataPlaneClient;
+    private InetSocketAddress endpoint;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        InProcessCluster.silenceStdout();
+        storage = Files.createTempDirectory("chunk-bench");
+        Files.write(storage.resolve(FILENAME), InProcessCluster.content(FILE_SIZE, 1));
+        daemon = new DaemonImpl("bench", storage.toString(), -1);
+        stub = (DaemonService) UnicastRemoteObject.toStub(daemon);
+        dataPlane = new DataPlaneServer(daemon, new InetSocketAddress("localhost", 0));
+        dataPlane.start();
+        endpoint = new InetSocketAddress("localhost", dataPlane.getPort());
+        dataPlaneClient = new DataPlaneClient();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dataPlaneClient.close();
+        dataPlane.stop();
+        UnicastRemoteObject.unexportObject(daemon, true);
+        InProcessCluster.deleteRecursively(storage);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private final SplittableRandom random = new SplittableRandom();
+
+        long next(int chunkSize) {
+            return (long) random.nextInt(FILE_SIZE / chunkSize) * chunkSize;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] oneReader(Cursor cursor) throws IOException {
+        return read(cursor.next(chunkSize));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] fourReaders(Cursor cursor) throws IOException {
+        return read(cursor.next(chunkSize));
+    }
+
+    @Benchmark
+    @Threads(16)
+    public byte[] sixteenReaders(Cursor cursor) throws IOException {
+        return read(cursor.next(chunkSize));
+    }
+
+    private byte[] read(long offset) throws IOException {
+        switch (transport) {
+            case "local":
+                return daemon.downloadChunk(FILENAME, offset, chunkSize);
+            case "rmi":
+                return stub.downloadChunk(FILENAME, offset, chunkSize);
+            default:
+                return dataPlaneClient.read(endpoint, FILENAME, offset, chunkSize);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.server.usth.benchmarks;
+
+import com.server.usth.impl.DirectoryImpl;
+import com.server.usth.services.DaemonImpl;
+import com.server.usth.services.DaemonService;
+import com.server.usth.services.FileInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Directory throughput with 10^5 and 10^6 files each held by three daemons, called on the
+// object so RMI stays out of it. journal=true runs with the journal, so registrations pay
+// for the append. Leases and the rebalancer are stretched past the run: the daemons are
+// never started and only serve as registry entries.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DirectoryBenchmark {
+    private static final int DAEMONS = 3;
+    private static final int BATCH = 1000;
+    // Names cycled through by the register benchmarks, on top of the preloaded files
+    private static final int CHURN = 100_000;
+
+    @Param({"100000", "1000000"})
+    int files;
+
+    @Param({"false", "true"})
+    boolean journal;
+
+    private Path root;
+    private ConfigurableApplicationContext context;
+    private DirectoryImpl directory;
+    private final List<DaemonImpl> daemons = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        InProcessCluster.silenceStdout();
+        root = Files.createTempDirectory("directory-bench");
+        context = InProcessCluster.startDirectory(0, journal ? root.resolve("state").toString() : "",
+                "directory.lease-millis=86400000", "directory.rebalance.interval-millis=86400000");
+        directory = context.getBean(DirectoryImpl.class);
+        for (int i = 0; i < DAEMONS; i++) {
+            DaemonImpl daemon = new DaemonImpl("d" + i, root.resolve("d" + i).toString(), -1);
+            directory.registerDaemon("d" + i, daemon);
+            daemons.add(daemon);
+        }
+        for (int start = 0; start < files; start += BATCH) {
+            List<FileInfo> batch = batch("file-", start, Math.min(BATCH, files - start));
+            for (int i = 0; i < DAEMONS; i++) {
+                directory.registerFiles("d" + i, batch);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (DaemonImpl daemon : daemons) {
+            UnicastRemoteObject.unexportObject(daemon, true);
+        }
+        daemons.clear();
+        context.close();
+        InProcessCluster.deleteRecursively(root);
+    }
+
+    @State(Scope.Thread)
+    public static class Names {
+        private final SplittableRandom random = new SplittableRandom();
+
+        int next(int bound) {
+            return random.nextInt(bound);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public List<DaemonService> lookup(Names names) throws RemoteException {
+        return directory.getDaemonsForFile("file-" + names.next(files));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<DaemonService> lookupFourThreads(Names names) throws RemoteException {
+        return directory.getDaemonsForFile("file-" + names.next(files));
+    }
+
+    // One file announced by one daemon, as after an upload
+    @Benchmark
+    @Threads(1)
+    public void register(Names names) throws RemoteException {
+        directory.registerFile("churn-" + names.next(CHURN), "d" + names.next(DAEMONS));
+    }
+
+    // A daemon's startup announcement, per file
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH)
+    public void registerBatch(Names names) throws RemoteException {
+        directory.registerFiles("d" + names.next(DAEMONS), batch("churn-", names.next(CHURN / BATCH) * BATCH, BATCH));
+    }
+
+    private static List<FileInfo> batch(String prefix, int start, int count) {
+        List<FileInfo> batch = new ArrayList<>(count);
+        for (int i = start; i < start + count; i++) {
+            batch.add(new FileInfo(prefix + i, 1024 * 1024, 0, null));
+        }
+        return batch;
+    }
+}
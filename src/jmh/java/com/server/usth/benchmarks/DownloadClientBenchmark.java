@@ -0,0 +1,67 @@
+package com.server.usth.benchmarks;
+
+import com.server.usth.DownloadClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// End to end: DownloadClient fetching a 64 MB file held by three daemons on localhost,
+// directory lookup and file head included. compression is the client's
+// download.compression level.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DownloadClientBenchmark {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final String FILENAME = "download.bin";
+
+    @Param({"0", "1"})
+    int compression;
+
+    private InProcessCluster cluster;
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        InProcessCluster.silenceStdout();
+        System.setProperty("download.compression", Integer.toString(compression));
+        byte[] content = InProcessCluster.content(FILE_SIZE, 1);
+        cluster = InProcessCluster.start(Files.createTempDirectory("download-bench"), 3,
+                storage -> Files.write(storage.resolve(FILENAME), content));
+        output = cluster.root.resolve("out.bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        cluster.close();
+    }
+
+    // DownloadClient reports failures instead of throwing; a short file fails the run
+    @Benchmark
+    public long download() throws IOException {
+        new DownloadClient().downloadFile(FILENAME, output.toString());
+        long size = Files.size(output);
+        if (size != FILE_SIZE) {
+            throw new IllegalStateException("Downloaded " + size + " of " + FILE_SIZE + " bytes");
+        }
+        return size;
+    }
+}
@@ -0,0 +1,115 @@
+package com.server.usth.benchmarks;
+
+import com.server.usth.DirectoryNode;
+import com.server.usth.impl.DirectoryImpl;
+import com.server.usth.services.DaemonImpl;
+import com.server.usth.services.DaemonService;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// A directory on localhost:1099 and a few daemons with data planes, all in the benchmark
+// JVM but talking over loopback RMI and sockets as they would across machines. Daemons
+// and clients find the directory on the default port, so only one cluster can run per JVM.
+final class InProcessCluster implements AutoCloseable {
+    final Path root;
+    final ConfigurableApplicationContext directoryContext;
+    final DirectoryImpl directory;
+    final List<DaemonImpl> daemons = new ArrayList<>();
+
+    private InProcessCluster(Path root, ConfigurableApplicationContext directoryContext) {
+        this.root = root;
+        this.directoryContext = directoryContext;
+        this.directory = directoryContext.getBean(DirectoryImpl.class);
+    }
+
+    // Files already in a daemon's storage directory are announced when it starts
+    static InProcessCluster start(Path root, int daemonCount, FileSeeder seeder) throws IOException {
+        InProcessCluster cluster = new InProcessCluster(root, startDirectory(1099, ""));
+        for (int i = 0; i < daemonCount; i++) {
+            Path storage = Files.createDirectories(root.resolve("daemon-" + i));
+            seeder.seed(storage);
+            DaemonImpl daemon = new DaemonImpl("d" + i, storage.toString(), 0);
+            daemon.start();
+            cluster.daemons.add(daemon);
+        }
+        return cluster;
+    }
+
+    // A directory node without the web application; port 0 binds an anonymous registry
+    static ConfigurableApplicationContext startDirectory(int port, String stateDir, String... properties) {
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        List<String> args = new ArrayList<>(List.of("--directory.rmi-port=" + port, "--directory.shards=",
+                "--directory.state-dir=" + stateDir, "--spring.devtools.livereload.enabled=false",
+                "--logging.level.root=WARN"));
+        for (String property : properties) {
+            args.add("--" + property);
+        }
+        return new SpringApplicationBuilder(DirectoryNode.class)
+                .web(WebApplicationType.NONE)
+                .run(args.toArray(new String[0]));
+    }
+
+    // RMI stubs of the live daemons, as the directory hands them out
+    List<DaemonService> daemonStubs() {
+        return new ArrayList<>(directory.getLiveDaemons().values());
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (DaemonImpl daemon : daemons) {
+            try {
+                UnicastRemoteObject.unexportObject(daemon, true);
+            } catch (NoSuchObjectException ignored) {
+                // Already gone
+            }
+        }
+        directoryContext.close();
+        deleteRecursively(root);
+    }
+
+    interface FileSeeder {
+        void seed(Path storage) throws IOException;
+    }
+
+    // The services log every request; keep that out of the measurements and JMH's output
+    static void silenceStdout() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Half random, half zeros in 4 KB blocks, so compression has something to do
+    static byte[] content(int size, long seed) {
+        byte[] data = new byte[size];
+        Random random = new Random(seed);
+        byte[] block = new byte[4096];
+        for (int offset = 0; offset < size; offset += 2 * block.length) {
+            random.nextBytes(block);
+            System.arraycopy(block, 0, data, offset, Math.min(block.length, size - offset));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,70 @@
+package com.server.usth.benchmarks;
+
+import com.server.usth.services.UploadPipeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Time to stream a 64 MB upload to three daemons over their data planes, by chunk size
+// and compression level. The upload is overwritten in place on every invocation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UploadBenchmark {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+    @Param({"262144", "1048576"})
+    int chunkSize;
+
+    @Param({"0", "1"})
+    int compression;
+
+    private InProcessCluster cluster;
+    private ConfigurableApplicationContext context;
+    private UploadPipeline pipeline;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        InProcessCluster.silenceStdout();
+        cluster = InProcessCluster.start(Files.createTempDirectory("upload-bench"), 3, storage -> { });
+        context = new SpringApplicationBuilder(UploadPipeline.class)
+                .web(WebApplicationType.NONE)
+                .run("--upload.chunk-size=" + chunkSize, "--upload.compression-level=" + compression,
+                        "--logging.level.root=WARN");
+        pipeline = context.getBean(UploadPipeline.class);
+        payload = InProcessCluster.content(FILE_SIZE, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        cluster.close();
+    }
+
+    @Benchmark
+    public UploadPipeline.UploadResult upload() throws IOException {
+        return pipeline.stream("upload.bin", new ByteArrayInputStream(payload), cluster.daemonStubs());
+    }
+}
@@ -0,0 +1,57 @@
+package com.server.usth;
+
+import com.server.usth.impl.DirectoryImpl;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A directory shard without the web application: just the directory service bound in its
+// own RMI registry. Shard 0 is normally the web application, started with the same
+// directory.shards and directory.shard-index=0. Each node keeps its own state directory.
+// Deliberately not a @Configuration, so the web application's component scan skips it.
+@Import(DirectoryImpl.class)
+public class DirectoryNode {
+
+    @Bean
+    public Registry rmiRegistry(@Value("${directory.rmi-port}") int port) throws Exception {
+        return LocateRegistry.createRegistry(port);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: DirectoryNode <shardIndex> <host:port,host:port,...> [--property=value ...]");
+            return;
+        }
+
+        int index = Integer.parseInt(args[0]);
+        String[] shards = args[1].split(",");
+        if (index < 0 || index >= shards.length) {
+            System.out.println("Shard index " + index + " is not in " + args[1]);
+            return;
+        }
+        String endpoint = shards[index].trim();
+        int port = Integer.parseInt(endpoint.substring(endpoint.lastIndexOf(':') + 1));
+
+        List<String> properties = new ArrayList<>(Arrays.asList(args).subList(2, args.length));
+        properties.add("--directory.shards=" + args[1]);
+        properties.add("--directory.shard-index=" + index);
+        properties.add("--directory.rmi-port=" + port);
+        if (properties.stream().noneMatch(p -> p.startsWith("--directory.state-dir="))) {
+            properties.add("--directory.state-dir=directory-state-" + index);
+        }
+        // A devtools restart would call main again with the rewritten arguments
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        new SpringApplicationBuilder(DirectoryNode.class)
+                .web(WebApplicationType.NONE)
+                .run(properties.toArray(new String[0]));
+        System.out.println("Directory shard " + index + " of " + shards.length + " listening on " + endpoint);
+    }
+}
@@ -1,60 +1,70 @@
 package com.server.usth;
 
+import com.server.usth.client.DownloadEngine;
+import com.server.usth.client.ErasureDownloader;
 import com.server.usth.impl.Directory;
+import com.server.usth.impl.DirectoryRouter;
 import com.server.usth.services.DaemonService;
+import com.server.usth.services.ErasureLayout;
+import com.server.usth.services.FileHead;
+import com.server.usth.services.Metrics;
 
-import java.io.FileOutputStream;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.util.ArrayList;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 public class DownloadClient {
     private static final int CHUNK_SIZE = 1024 * 1024; // 1MB chunks
+    // Caps the bytes of chunks in flight, independent of the file size
+    private static final long MEMORY_BUDGET = DownloadEngine.DEFAULT_MEMORY_BUDGET;
+
+    private final boolean resumable;
+
+    public DownloadClient() {
+        this(false);
+    }
+
+    // In resumable mode progress survives a crash and a rerun fetches only missing chunks
+    public DownloadClient(boolean resumable) {
+        this.resumable = resumable;
+    }
 
     public void downloadFile(String filename, String outputPath) {
         try {
-            Registry registry = LocateRegistry.getRegistry("localhost", 1099);
-            Directory directory = (Directory) registry.lookup("Directory");
+            Directory directory = DirectoryRouter.connect();
+
+            // Erasure-coded files are rebuilt from their shards and cannot be resumed
+            ErasureLayout layout = directory.getErasureLayout(filename);
+            if (layout != null) {
+                new ErasureDownloader(directory, MEMORY_BUDGET).download(layout, Paths.get(outputPath));
+                System.out.println("Download completed: " + filename);
+                return;
+            }
 
             List<DaemonService> daemons = directory.getDaemonsForFile(filename);
             if (daemons.isEmpty()) {
                 throw new Exception("No daemons available for file: " + filename);
             }
 
-            // Get file size from first daemon
-            long fileSize = daemons.get(0).getFileSize(filename);
-            long numChunks = (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
-
-            // Create thread pool for parallel downloads
-            ExecutorService executor = Executors.newFixedThreadPool(daemons.size());
-            List<Future<ChunkResult>> futures = new ArrayList<>();
-
-            // Distribute chunks among daemons
-            for (long i = 0; i < numChunks; i++) {
-                final long offset = i * CHUNK_SIZE;
-                final int size = (int) Math.min(CHUNK_SIZE, fileSize - offset);
-                DaemonService daemon = daemons.get((int) (i % daemons.size()));
-
-                futures.add(executor.submit(() -> {
-                    byte[] data = daemon.downloadChunk(filename, offset, size);
-                    return new ChunkResult(offset, data);
-                }));
-            }
-
-            // Write chunks to file in order
-            try (FileOutputStream fos = new FileOutputStream(outputPath)) {
-                for (Future<ChunkResult> future : futures) {
-                    ChunkResult result = future.get();
-                    fos.write(result.data);
-                }
+            // Size and first chunk in one round trip; small files need nothing else
+            FileHead head = DownloadEngine.fetchHead(daemons, filename, CHUNK_SIZE);
+
+            // Daemons pull chunks from a shared queue; each chunk lands at its own offset
+            DownloadEngine engine = new DownloadEngine(daemons, CHUNK_SIZE, MEMORY_BUDGET);
+            engine.setManifest(directory.getManifest(filename));
+            engine.setFirstChunk(head.getFirstChunk());
+            engine.download(filename, Paths.get(outputPath), head.getSize(), resumable);
+            // Lets the directory rank replicas for later readers by what this one saw
+            try {
+                directory.reportLatencies(engine.getObservedLatencies());
+            } catch (RemoteException e) {
+                System.err.println("Could not report latencies to the directory: " + e.getMessage());
             }
 
-            executor.shutdown();
             System.out.println("Download completed: " + filename);
+            if (Metrics.ENABLED) {
+                System.out.println(DownloadEngine.fetchSummary());
+            }
 
         } catch (Exception e) {
             System.err.println("Download failed: " + e.toString());
@@ -62,23 +72,13 @@ public class DownloadClient {
         }
     }
 
-    private static class ChunkResult {
-        final long offset;
-        final byte[] data;
-
-        ChunkResult(long offset, byte[] data) {
-            this.offset = offset;
-            this.data = data;
-        }
-    }
-
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: DownloadClient <filename> <outputPath>");
+        if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("--resume"))) {
+            System.out.println("Usage: DownloadClient <filename> <outputPath> [--resume]");
             return;
         }
 
-        DownloadClient client = new DownloadClient();
+        DownloadClient client = new DownloadClient(args.length == 3);
         client.downloadFile(args[0], args[1]);
     }
-}
\ No newline at end of file
+}
@@ -1,8 +1,13 @@
 package com.server.usth;
 
+import com.server.usth.impl.Directory;
+import com.server.usth.impl.DirectoryImpl;
+import com.server.usth.impl.DirectoryRouter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
 
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -11,8 +16,15 @@ import java.rmi.registry.Registry;
 public class FinalMasterSaApplication {
 
     @Bean
-    public Registry rmiRegistry() throws Exception {
-        return LocateRegistry.createRegistry(1099);
+    public Registry rmiRegistry(@Value("${directory.rmi-port:1099}") int port) throws Exception {
+        return LocateRegistry.createRegistry(port);
+    }
+
+    // What the web layer talks to: the local directory, or a router over all shards when sharded
+    @Bean
+    @Primary
+    public Directory directory(DirectoryImpl local) {
+        return DirectoryRouter.forLocal(local);
     }
 
     public static void main(String[] args) {
@@ -1,30 +1,46 @@
 package com.server.usth.client;
 
 import com.server.usth.impl.Directory;
+import com.server.usth.impl.DirectoryRouter;
 import com.server.usth.services.DaemonService;
+import com.server.usth.services.ErasureLayout;
+import com.server.usth.services.FileHead;
+import com.server.usth.services.Metrics;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class ClientDownloader {
-    private static final int THREAD_POOL_SIZE = 4; // Number of parallel downloads
     private final String filename;
     private final String downloadPath;
+    private final boolean resumable;
 
     public ClientDownloader(String filename, String downloadPath) {
+        this(filename, downloadPath, false);
+    }
+
+    public ClientDownloader(String filename, String downloadPath, boolean resumable) {
         this.filename = filename;
         this.downloadPath = downloadPath;
+        this.resumable = resumable;
     }
 
     public void download() {
         try {
-            Registry registry = LocateRegistry.getRegistry("localhost", 1099);
-            Directory directory = (Directory) registry.lookup("Directory");
+            Directory directory = DirectoryRouter.connect();
+
+            ErasureLayout layout = directory.getErasureLayout(filename);
+            if (layout != null) {
+                if (resumable) {
+                    System.out.println("Erasure-coded files cannot be resumed, downloading from the start.");
+                }
+                System.out.println("Downloading " + filename + " (" + layout.getSize() + " bytes) from "
+                        + layout.getTotalShards() + " shards.");
+                new ErasureDownloader(directory).download(layout, Paths.get(downloadPath, filename));
+                System.out.println("Download completed: " + filename);
+                return;
+            }
 
             // Get daemons storing this file
             List<DaemonService> daemons = directory.getDaemonsForFile(filename);
@@ -33,62 +49,40 @@ public class ClientDownloader {
                 return;
             }
 
-            // Get file size from first available daemon
-            long fileSize = daemons.get(0).getFileSize(filename);
-            int chunkSize = (int) Math.ceil((double) fileSize / daemons.size());
-
-            System.out.println("Downloading " + filename + " (" + fileSize + " bytes) from " + daemons.size() + " daemons.");
-
-            ExecutorService executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-
-            // Download chunks in parallel
-            byte[][] fileChunks = new byte[daemons.size()][];
-            for (int i = 0; i < daemons.size(); i++) {
-                final int index = i;
-                executor.submit(() -> {
-                    try {
-                        DaemonService daemon = daemons.get(index);
-                        fileChunks[index] = daemon.downloadChunk(filename, index * chunkSize, chunkSize);
-                        System.out.println("Downloaded chunk " + index + " from daemon.");
-                    } catch (Exception e) {
-                        System.err.println("Failed to download chunk " + index + ": " + e.getMessage());
-                    }
-                });
+            // Size and first chunk from the first available daemon in one round trip
+            FileHead head = DownloadEngine.fetchHead(daemons, filename, DownloadEngine.DEFAULT_CHUNK_SIZE);
+
+            System.out.println("Downloading " + filename + " (" + head.getSize() + " bytes) from " + daemons.size() + " daemons.");
+
+            // Download chunks in parallel; a failed chunk is retried on another daemon
+            // instead of leaving a hole in the output
+            DownloadEngine engine = new DownloadEngine(daemons);
+            engine.setManifest(directory.getManifest(filename));
+            engine.setFirstChunk(head.getFirstChunk());
+            engine.download(filename, Paths.get(downloadPath, filename), head.getSize(), resumable);
+            // Lets the directory rank replicas for later readers by what this one saw
+            try {
+                directory.reportLatencies(engine.getObservedLatencies());
+            } catch (RemoteException e) {
+                System.err.println("Could not report latencies to the directory: " + e.getMessage());
             }
-
-            executor.shutdown();
-            while (!executor.isTerminated()) {
-                Thread.sleep(500);
+            System.out.println("Download completed: " + filename);
+            if (Metrics.ENABLED) {
+                System.out.println(DownloadEngine.fetchSummary());
             }
 
-            // Merge chunks
-            mergeChunks(fileChunks);
-
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private void mergeChunks(byte[][] fileChunks) {
-        try (FileOutputStream fos = new FileOutputStream(new File(downloadPath, filename))) {
-            for (byte[] chunk : fileChunks) {
-                if (chunk != null) {
-                    fos.write(chunk);
-                }
-            }
-            System.out.println("Download completed: " + filename);
-        } catch (Exception e) {
-            System.err.println("Error merging chunks: " + e.getMessage());
-        }
-    }
-
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java ClientDownloader <filename> <downloadPath>");
+        if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("--resume"))) {
+            System.out.println("Usage: java ClientDownloader <filename> <downloadPath> [--resume]");
             return;
         }
 
-        ClientDownloader client = new ClientDownloader(args[0], args[1]);
+        ClientDownloader client = new ClientDownloader(args[0], args[1], args.length == 3);
         client.download();
     }
 }
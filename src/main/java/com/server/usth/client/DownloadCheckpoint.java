@@ -0,0 +1,143 @@
+package com.server.usth.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Sidecar file that records which chunks of a partial download are already on disk,
+// so an interrupted download can resume with only the missing chunks.
+//
+// Layout: magic(4) fileSize(8) chunkSize(4) digestLength(2) digest(UTF-8) bitmap
+// The bitmap is updated in place. A bit is only persisted after the chunk data has
+// been forced to disk, so a set bit always means the chunk is really there.
+public class DownloadCheckpoint implements AutoCloseable {
+    private static final int MAGIC = 0x44434b31; // "DCK1"
+    private static final String SUFFIX = ".download";
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int headerLength;
+    private final int chunkCount;
+    private final BitSet completed;
+    private final BitSet dirty = new BitSet();
+
+    private DownloadCheckpoint(Path path, FileChannel channel, int headerLength, int chunkCount, BitSet completed) {
+        this.path = path;
+        this.channel = channel;
+        this.headerLength = headerLength;
+        this.chunkCount = chunkCount;
+        this.completed = completed;
+    }
+
+    public static Path sidecarFor(Path output) {
+        return output.resolveSibling(output.getFileName() + SUFFIX);
+    }
+
+    // Reuses an existing sidecar only if it describes the same remote file; otherwise starts over
+    public static DownloadCheckpoint open(Path output, long fileSize, int chunkSize, String digest) throws IOException {
+        Path path = sidecarFor(output);
+        byte[] digestBytes = digest.getBytes(StandardCharsets.UTF_8);
+        int headerLength = 4 + 8 + 4 + 2 + digestBytes.length;
+        int chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+
+        BitSet completed = new BitSet(chunkCount);
+        if (Files.exists(path) && Files.exists(output)) {
+            BitSet existing = read(path, fileSize, chunkSize, digestBytes, headerLength, chunkCount);
+            if (existing != null) {
+                completed = existing;
+            } else {
+                System.out.println("Remote file changed or checkpoint unreadable, restarting download");
+            }
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (completed.isEmpty()) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(headerLength + (chunkCount + 7) / 8);
+            header.putInt(MAGIC).putLong(fileSize).putInt(chunkSize)
+                    .putShort((short) digestBytes.length).put(digestBytes);
+            header.rewind();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+        return new DownloadCheckpoint(path, channel, headerLength, chunkCount, completed);
+    }
+
+    private static BitSet read(Path path, long fileSize, int chunkSize, byte[] digest,
+                               int headerLength, int chunkCount) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        int bitmapLength = (chunkCount + 7) / 8;
+        if (bytes.length != headerLength + bitmapLength) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC || buffer.getLong() != fileSize || buffer.getInt() != chunkSize
+                || buffer.getShort() != digest.length) {
+            return null;
+        }
+        byte[] stored = new byte[digest.length];
+        buffer.get(stored);
+        if (!Arrays.equals(stored, digest)) {
+            return null;
+        }
+        byte[] bitmap = new byte[bitmapLength];
+        buffer.get(bitmap);
+        return BitSet.valueOf(bitmap);
+    }
+
+    public boolean isComplete(int chunk) {
+        return completed.get(chunk);
+    }
+
+    public int getCompletedCount() {
+        return completed.cardinality();
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public void markComplete(int chunk) {
+        completed.set(chunk);
+        dirty.set(chunk);
+    }
+
+    // Forces the downloaded data, then persists the bitmap bytes touched since the last flush
+    public void flush(FileChannel data) throws IOException {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        data.force(false);
+        byte[] bitmap = completed.toByteArray();
+        int lastByte = -1;
+        for (int chunk = dirty.nextSetBit(0); chunk >= 0; chunk = dirty.nextSetBit(chunk + 1)) {
+            int index = chunk / 8;
+            if (index != lastByte) {
+                channel.write(ByteBuffer.wrap(bitmap, index, 1), headerLength + index);
+                lastByte = index;
+            }
+        }
+        channel.force(false);
+        dirty.clear();
+    }
+
+    // The download finished; the sidecar is no longer needed
+    public void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,599 @@
+package com.server.usth.client;
+
+import com.server.usth.services.BandwidthThrottle;
+import com.server.usth.services.ChunkStore;
+import com.server.usth.services.DaemonBusyException;
+import com.server.usth.services.DaemonService;
+import com.server.usth.services.DataPlaneClient;
+import com.server.usth.services.FileHead;
+import com.server.usth.services.FileManifest;
+import com.server.usth.services.Metrics;
+import com.server.usth.services.TransferCodec;
+import com.server.usth.services.TransferExecutor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+// Multi-source chunk downloader. All chunks sit in one shared queue and every source
+// pulls the next chunk as soon as it has a free slot, so fast daemons take more work
+// than slow ones. Each source's in-flight limit grows while its throughput keeps
+// improving and shrinks on errors or when throughput drops. A failed chunk is retried
+// on a different replica, and a source is blacklisted after repeated errors.
+// Chunks in flight across all sources are capped by a memory budget, so heap use
+// does not depend on the file size. Small chunks are requested in batches of up to
+// BATCH_BYTES per round trip, so they are not bound by latency. A daemon that turns a
+// request away as busy is not counted as failing: its chunks go back to the queue and
+// it is not asked again until its retry-after hint has passed. A request still
+// unanswered after the request timeout is cancelled and counts as a failure, so a hung
+// daemon costs that long and no more.
+public class DownloadEngine {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1MB chunks
+    public static final long DEFAULT_MEMORY_BUDGET = Long.getLong("download.memoryBudget", 64L * 1024 * 1024);
+    private static final int MAX_IN_FLIGHT_PER_SOURCE = 8;
+    private static final int MAX_CHUNK_ATTEMPTS = 5;
+    private static final int MAX_CONSECUTIVE_ERRORS = 3;
+    private static final int CHECKPOINT_INTERVAL = 64; // chunks between checkpoint flushes
+    private static final int BATCH_BYTES = 1024 * 1024;
+    private static final int MAX_BATCH_CHUNKS = 16;
+
+    // Shared by every engine in the process: client downloads, recovery and rebalancing
+    private static final Metrics.Histogram FETCH_LATENCY = Metrics.timer("client_fetch_seconds",
+            "Time for a daemon to answer one chunk request; a batch counts once");
+    private static final Metrics.Counter RETRIES = Metrics.counter("client_chunk_retries_total",
+            "Chunks requested again after failing on a daemon");
+    private static final Metrics.Counter BUSY = Metrics.counter("client_busy_responses_total",
+            "Chunk requests a daemon turned away because it was saturated");
+
+    private final List<DaemonService> daemons;
+    private final int chunkSize;
+    private final long memoryBudget;
+    private FileManifest manifest;
+    private BandwidthThrottle throttle;
+    private LongConsumer progressListener;
+    // Deflate level asked of the daemons, 0 for raw zero-copy transfers
+    private int compressionLevel = Integer.getInteger("download.compression", 0);
+    private byte[] firstChunk;
+    private boolean background;
+    private long requestTimeoutMillis = TransferExecutor.REQUEST_TIMEOUT_MILLIS;
+    // Mean nanos per chunk request by daemon id, from the last download
+    private final Map<String, Long> observedLatencies = new LinkedHashMap<>();
+
+    public DownloadEngine(List<DaemonService> daemons) {
+        this(daemons, DEFAULT_CHUNK_SIZE, DEFAULT_MEMORY_BUDGET);
+    }
+
+    public DownloadEngine(List<DaemonService> daemons, int chunkSize, long memoryBudget) {
+        this.daemons = daemons;
+        this.chunkSize = chunkSize;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    // With a manifest whose chunking matches ours, every chunk is checked against its
+    // SHA-256 and a corrupt chunk is retried on another replica
+    public void setManifest(FileManifest manifest) {
+        if (manifest != null && manifest.getChunkSize() != chunkSize) {
+            System.out.println("Manifest chunk size differs from download chunk size, skipping verification");
+            manifest = null;
+        }
+        this.manifest = manifest;
+    }
+
+    // Caps the rate at which chunks are requested; may be shared between engines
+    public void setThrottle(BandwidthThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    // Called from the dispatching thread with the size of every chunk that completes
+    public void setProgressListener(LongConsumer progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    // Worth it on slow links for compressible content; chunks that do not compress are
+    // still sent raw, but through the heap rather than straight to disk
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    // For recovery and replication: daemons serve these reads after client downloads
+    public void setBackground(boolean background) {
+        this.background = background;
+    }
+
+    // How long one request may go unanswered before its chunks are asked of another daemon
+    public void setRequestTimeout(long millis) {
+        this.requestTimeoutMillis = millis;
+    }
+
+    // Bytes of chunk 0 the caller already holds, e.g. from DaemonService.getFileHead;
+    // they are written instead of being fetched again
+    public void setFirstChunk(byte[] firstChunk) {
+        this.firstChunk = firstChunk;
+    }
+
+    // Downloads into output. In resumable mode a sidecar checkpoint next to output
+    // records finished chunks; a rerun fetches only the rest, provided the remote
+    // file still has the same size and digest.
+    public void download(String filename, Path output, long fileSize, boolean resumable) throws IOException {
+        if (!resumable) {
+            try (DownloadSink sink = DownloadSink.open(output, fileSize)) {
+                download(filename, sink);
+            }
+            return;
+        }
+        String digest = daemons.get(0).getFileDigest(filename);
+        // Open the checkpoint first: it must see whether a partial output already exists
+        try (DownloadCheckpoint checkpoint = DownloadCheckpoint.open(output, fileSize, chunkSize, digest);
+             DownloadSink sink = DownloadSink.open(output, fileSize)) {
+            download(filename, sink, checkpoint);
+            checkpoint.delete();
+        }
+    }
+
+    public void download(String filename, DownloadSink sink) throws IOException {
+        download(filename, sink, null);
+    }
+
+    // With a checkpoint, chunks it already records are skipped and progress is persisted
+    // as chunks complete, including when the download fails midway
+    public void download(String filename, DownloadSink sink, DownloadCheckpoint checkpoint) throws IOException {
+        long fileSize = sink.getSize();
+        FileManifest verifyWith = manifest != null && manifest.getSize() == fileSize ? manifest : null;
+        List<Source> sources = resolveSources();
+        if (sources.isEmpty()) {
+            throw new IOException("No reachable daemon for " + filename);
+        }
+
+        LinkedList<Chunk> pending = new LinkedList<>();
+        int index = 0;
+        for (long offset = 0; offset < fileSize; offset += chunkSize, index++) {
+            if (checkpoint == null || !checkpoint.isComplete(index)) {
+                pending.add(new Chunk(index, offset, (int) Math.min(chunkSize, fileSize - offset)));
+            }
+        }
+        if (!pending.isEmpty() && pending.getFirst().index == 0 && firstChunk != null
+                && firstChunk.length == pending.getFirst().size) {
+            Chunk first = pending.removeFirst();
+            store(sink, verifyWith, first, firstChunk);
+            if (progressListener != null) {
+                progressListener.accept(first.size);
+            }
+            if (checkpoint != null) {
+                checkpoint.markComplete(first.index);
+            }
+        }
+        if (checkpoint != null && checkpoint.getCompletedCount() > 0) {
+            System.out.println("Resuming " + filename + ": " + checkpoint.getCompletedCount() + " of "
+                    + checkpoint.getChunkCount() + " chunks already downloaded");
+        }
+        int total = pending.size();
+        int completed = 0;
+        long inFlightBytes = 0;
+        // Compressed chunks are fetched one per request
+        int batchChunks = compressionLevel > 0 ? 1 : Math.max(1, Math.min(MAX_BATCH_CHUNKS, BATCH_BYTES / chunkSize));
+
+        BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+        // Forked and not yet completed or given up on, oldest first
+        List<Request> requests = new ArrayList<>();
+        // Requests run on the shared transfer pool, within its per-daemon limits
+        TransferExecutor.Scope scope = TransferExecutor.shared().scope(Integer.MAX_VALUE);
+
+        try (DataPlaneClient dataPlane = new DataPlaneClient(background)) {
+            while (completed < total) {
+                // Hand out work: every live source pulls chunks until its slots are full
+                for (Source source : sources) {
+                    while (!source.blacklisted && source.inFlight < source.limit && !source.isPaused()) {
+                        List<Chunk> batch = new ArrayList<>();
+                        while (batch.size() < batchChunks) {
+                            // Always allow one chunk so a budget smaller than a chunk still progresses
+                            if (inFlightBytes > 0 && inFlightBytes + chunkSize > memoryBudget) {
+                                break;
+                            }
+                            Chunk chunk = nextChunkFor(source, pending, sources);
+                            if (chunk == null) {
+                                break;
+                            }
+                            batch.add(chunk);
+                            inFlightBytes += chunk.size;
+                        }
+                        if (batch.isEmpty()) {
+                            break;
+                        }
+                        source.inFlight++;
+                        Request request = new Request(source, batch,
+                                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis));
+                        request.future = scope.fork(source.id, () -> {
+                            try {
+                                if (throttle != null) {
+                                    throttle.acquire(bytes(batch));
+                                }
+                                long start = System.nanoTime();
+                                fetch(dataPlane, source, filename, batch, sink, verifyWith, compressionLevel);
+                                FETCH_LATENCY.recordSince(start);
+                                completions.add(new Completion(request, null, System.nanoTime() - start));
+                            } catch (Exception e) {
+                                completions.add(new Completion(request, e, 0));
+                            }
+                            return null;
+                        });
+                        requests.add(request);
+                    }
+                }
+
+                if (sources.stream().allMatch(s -> s.blacklisted && s.inFlight == 0)) {
+                    throw new IOException("All sources failed for " + filename);
+                }
+
+                expireOverdue(requests, completions);
+                Completion done = completions.poll(pollMillis(sources, requests), TimeUnit.MILLISECONDS);
+                if (done == null || !requests.remove(done.request)) {
+                    // Nothing finished yet, or a request already given up on answered late
+                    continue;
+                }
+                Source source = done.source;
+                source.inFlight--;
+                inFlightBytes -= bytes(done.chunks);
+                long retryAfter = done.error == null ? -1 : DaemonBusyException.retryAfterMillis(done.error);
+                if (retryAfter >= 0) {
+                    BUSY.increment();
+                    source.onBusy(retryAfter);
+                    for (Chunk chunk : done.chunks) {
+                        pending.addFirst(chunk);
+                    }
+                } else if (done.error == null) {
+                    source.onSuccess(bytes(done.chunks), done.nanos);
+                    source.received.add(bytes(done.chunks));
+                    for (Chunk chunk : done.chunks) {
+                        completed++;
+                        if (progressListener != null) {
+                            progressListener.accept(chunk.size);
+                        }
+                        if (checkpoint != null) {
+                            checkpoint.markComplete(chunk.index);
+                            if (completed % CHECKPOINT_INTERVAL == 0) {
+                                checkpoint.flush(sink.channel());
+                            }
+                        }
+                    }
+                } else {
+                    source.onFailure();
+                    for (Chunk chunk : done.chunks) {
+                        chunk.failedOn.add(source.id);
+                        if (++chunk.attempts >= MAX_CHUNK_ATTEMPTS) {
+                            throw new IOException("Chunk at offset " + chunk.offset + " failed "
+                                    + chunk.attempts + " times", done.error);
+                        }
+                        System.err.println("Chunk at offset " + chunk.offset + " failed on daemon "
+                                + source.id + ", retrying elsewhere: " + done.error.getMessage());
+                        RETRIES.increment();
+                        pending.addFirst(chunk);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", e);
+        } finally {
+            scope.close();
+            observedLatencies.clear();
+            for (Source source : sources) {
+                if (source.requests > 0) {
+                    observedLatencies.put(source.id, source.requestNanos / source.requests);
+                }
+            }
+            if (checkpoint != null) {
+                try {
+                    checkpoint.flush(sink.channel());
+                } catch (IOException e) {
+                    System.err.println("Failed to save download progress: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Size and first chunk from the first of the daemons that answers; the directory lists
+    // the least busy first, but its view is a heartbeat old. When the last one asked turned
+    // the request away as busy, all of them are asked again after its hint.
+    public static FileHead fetchHead(List<DaemonService> daemons, String filename, int firstChunkSize)
+            throws IOException {
+        RemoteException failure = new RemoteException("No daemon to ask for " + filename);
+        int rounds = 0;
+        do {
+            for (DaemonService daemon : daemons) {
+                try {
+                    return daemon.getFileHead(filename, firstChunkSize);
+                } catch (RemoteException e) {
+                    System.err.println("Daemon did not answer for " + filename + ", trying the next: "
+                            + e.getMessage());
+                    failure = e;
+                }
+            }
+        } while (rounds++ < DaemonBusyException.MAX_RETRIES && DaemonBusyException.backOff(failure));
+        throw failure;
+    }
+
+    // What this engine's last download saw from each daemon, for Directory.reportLatencies
+    public Map<String, Long> getObservedLatencies() {
+        return observedLatencies;
+    }
+
+    // One line on chunk request latency so far, for the command-line clients
+    public static String fetchSummary() {
+        return String.format("%d chunk requests, p50 %.1f ms, p99 %.1f ms, %d retried",
+                FETCH_LATENCY.count(), FETCH_LATENCY.quantile(0.5) / 1e6, FETCH_LATENCY.quantile(0.99) / 1e6,
+                RETRIES.get());
+    }
+
+    // Until the first paused source may be asked again or the first request runs out of
+    // time, at most 30 seconds
+    private static long pollMillis(List<Source> sources, List<Request> requests) {
+        long wait = TimeUnit.SECONDS.toNanos(30);
+        long now = System.nanoTime();
+        for (Source source : sources) {
+            if (!source.blacklisted && source.isPaused()) {
+                wait = Math.min(wait, source.pausedUntil - now);
+            }
+        }
+        for (Request request : requests) {
+            if (!request.expired) {
+                wait = Math.min(wait, request.deadline - now);
+            }
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+    }
+
+    // Cancels requests past their deadline and fails them like any other error, so their
+    // chunks are retried on another replica. A thread stuck in an RMI call that ignores the
+    // interrupt keeps its permit until the call returns; its answer is then dropped.
+    private void expireOverdue(List<Request> requests, BlockingQueue<Completion> completions) {
+        long now = System.nanoTime();
+        for (Request request : requests) {
+            if (!request.expired && now - request.deadline >= 0) {
+                request.expired = true;
+                completions.add(new Completion(request, new IOException("Daemon " + request.source.id
+                        + " did not answer within " + requestTimeoutMillis + " ms"), 0));
+                request.future.cancel(true);
+            }
+        }
+    }
+
+    private List<Source> resolveSources() {
+        List<Source> sources = new ArrayList<>();
+        for (DaemonService daemon : daemons) {
+            try {
+                sources.add(new Source(daemon, daemon.getDaemonId(), daemon.getDataEndpoint()));
+            } catch (Exception e) {
+                System.err.println("Skipping unreachable daemon: " + e.getMessage());
+            }
+        }
+        return sources;
+    }
+
+    // Prefer chunks this source has not failed on; fall back to a retry on the same
+    // source only when no other live source could take the chunk.
+    private static Chunk nextChunkFor(Source source, LinkedList<Chunk> pending, List<Source> sources) {
+        Iterator<Chunk> it = pending.iterator();
+        while (it.hasNext()) {
+            Chunk chunk = it.next();
+            if (!chunk.failedOn.contains(source.id) || !hasOtherCandidate(chunk, source, sources)) {
+                it.remove();
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasOtherCandidate(Chunk chunk, Source self, List<Source> sources) {
+        for (Source other : sources) {
+            if (other != self && !other.blacklisted && !chunk.failedOn.contains(other.id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void fetch(DataPlaneClient dataPlane, Source source, String filename, List<Chunk> batch,
+                              DownloadSink sink, FileManifest manifest, int compressionLevel) throws Exception {
+        if (compressionLevel > 0) {
+            Chunk chunk = batch.get(0);
+            byte[] data = source.endpoint != null
+                    ? dataPlane.readEncoded(source.endpoint, filename, chunk.offset, chunk.size, compressionLevel)
+                    : TransferCodec.decode(source.daemon.downloadChunkEncoded(filename, chunk.offset, chunk.size,
+                            compressionLevel));
+            store(sink, manifest, chunk, data);
+            return;
+        }
+        long[] offsets = new long[batch.size()];
+        int[] sizes = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            offsets[i] = batch.get(i).offset;
+            sizes[i] = batch.get(i).size;
+        }
+        if (source.endpoint == null) {
+            byte[][] data = batch.size() == 1
+                    ? new byte[][]{source.daemon.downloadChunk(filename, offsets[0], sizes[0])}
+                    : source.daemon.downloadChunks(filename, offsets, sizes);
+            for (int i = 0; i < batch.size(); i++) {
+                store(sink, manifest, batch.get(i), data[i]);
+            }
+            return;
+        }
+        long[] received = dataPlane.read(source.endpoint, filename, offsets, sizes, sink.channel());
+        for (int i = 0; i < batch.size(); i++) {
+            Chunk chunk = batch.get(i);
+            if (received[i] != chunk.size) {
+                throw new IOException("Short chunk: " + received[i] + " of " + chunk.size + " bytes");
+            }
+            if (manifest != null) {
+                // The bytes went straight to disk; read them back (from page cache) to check
+                ByteBuffer written = ByteBuffer.allocate(chunk.size);
+                while (written.hasRemaining()) {
+                    if (sink.channel().read(written, chunk.offset + written.position()) < 0) {
+                        throw new IOException("Chunk at offset " + chunk.offset + " missing from output");
+                    }
+                }
+                verify(manifest, chunk, written.array());
+            }
+        }
+    }
+
+    private static void store(DownloadSink sink, FileManifest manifest, Chunk chunk, byte[] data) throws IOException {
+        if (data.length != chunk.size) {
+            throw new IOException("Short chunk: " + data.length + " of " + chunk.size + " bytes");
+        }
+        if (manifest != null) {
+            verify(manifest, chunk, data);
+        }
+        sink.write(chunk.offset, data);
+    }
+
+    private static int bytes(List<Chunk> chunks) {
+        int bytes = 0;
+        for (Chunk chunk : chunks) {
+            bytes += chunk.size;
+        }
+        return bytes;
+    }
+
+    private static void verify(FileManifest manifest, Chunk chunk, byte[] data) throws IOException {
+        String expected = manifest.getChunkHashes().get(chunk.index);
+        if (!expected.equals(ChunkStore.sha256Hex(data, 0, data.length))) {
+            throw new IOException("Chunk " + chunk.index + " does not match its hash");
+        }
+    }
+
+    private static class Chunk {
+        final int index;
+        final long offset;
+        final int size;
+        final Set<String> failedOn = new HashSet<>();
+        int attempts;
+
+        Chunk(int index, long offset, int size) {
+            this.index = index;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    // One batch asked of one source; only touched by the dispatching thread
+    private static class Request {
+        final Source source;
+        final List<Chunk> chunks;
+        final long deadline;
+        Future<?> future;
+        boolean expired;
+
+        Request(Source source, List<Chunk> chunks, long deadline) {
+            this.source = source;
+            this.chunks = chunks;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class Completion {
+        final Request request;
+        final Source source;
+        final List<Chunk> chunks;
+        final Exception error;
+        final long nanos;
+
+        Completion(Request request, Exception error, long nanos) {
+            this.request = request;
+            this.source = request.source;
+            this.chunks = request.chunks;
+            this.error = error;
+            this.nanos = nanos;
+        }
+    }
+
+    // Per-source state; only touched by the dispatching thread
+    private static class Source {
+        final DaemonService daemon;
+        final String id;
+        final InetSocketAddress endpoint;
+        final Metrics.Counter received;
+
+        int limit = 2;
+        int inFlight;
+        int consecutiveErrors;
+        boolean blacklisted;
+
+        // Throughput is sampled over windows of `limit` completions
+        long windowStart = System.nanoTime();
+        long windowBytes;
+        int windowChunks;
+        double lastThroughput;
+
+        long requestNanos;
+        int requests;
+        // Not asked for chunks before this, after the daemon said it was busy
+        long pausedUntil = System.nanoTime();
+
+        Source(DaemonService daemon, String id, InetSocketAddress endpoint) {
+            this.daemon = daemon;
+            this.id = id;
+            this.endpoint = endpoint;
+            this.received = Metrics.counter("client_received_bytes_total",
+                    "Chunk bytes received by downloads, by source daemon", "source", id);
+        }
+
+        void onSuccess(int bytes, long nanos) {
+            consecutiveErrors = 0;
+            requestNanos += nanos;
+            requests++;
+            windowBytes += bytes;
+            if (++windowChunks < limit) {
+                return;
+            }
+            long now = System.nanoTime();
+            double throughput = (double) windowBytes / Math.max(1, now - windowStart);
+            if (throughput > lastThroughput * 1.05) {
+                // More parallelism still pays off
+                limit = Math.min(MAX_IN_FLIGHT_PER_SOURCE, limit + 1);
+            } else if (throughput < lastThroughput * 0.8) {
+                limit = Math.max(1, limit - 1);
+            }
+            lastThroughput = throughput;
+            windowStart = now;
+            windowBytes = 0;
+            windowChunks = 0;
+        }
+
+        void onBusy(long retryAfterMillis) {
+            limit = Math.max(1, limit / 2);
+            pausedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+        }
+
+        boolean isPaused() {
+            return pausedUntil - System.nanoTime() > 0;
+        }
+
+        void onFailure() {
+            limit = Math.max(1, limit / 2);
+            if (++consecutiveErrors >= MAX_CONSECUTIVE_ERRORS && !blacklisted) {
+                blacklisted = true;
+                System.err.println("Blacklisting daemon " + id + " after " + consecutiveErrors + " errors");
+            }
+        }
+    }
+}
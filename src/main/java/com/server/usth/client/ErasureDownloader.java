@@ -0,0 +1,77 @@
+package com.server.usth.client;
+
+import com.server.usth.impl.Directory;
+import com.server.usth.services.DaemonService;
+import com.server.usth.services.ErasureLayout;
+import com.server.usth.services.ShardReader;
+import com.server.usth.services.TransferExecutor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Downloads an erasure-coded file. Stripes are read in parallel, each from any
+// dataShards of its shards, and the data blocks are written at their offsets in the
+// output. Stripes in flight are capped by the memory budget like DownloadEngine chunks.
+public class ErasureDownloader {
+    private final Directory directory;
+    private final long memoryBudget;
+
+    public ErasureDownloader(Directory directory) {
+        this(directory, DownloadEngine.DEFAULT_MEMORY_BUDGET);
+    }
+
+    public ErasureDownloader(Directory directory, long memoryBudget) {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public void download(ErasureLayout layout, Path output) throws IOException {
+        List<DaemonService> owners = new ArrayList<>();
+        for (String owner : layout.getShardOwners()) {
+            owners.add(directory.getDaemon(owner));
+        }
+
+        long stripeBytes = (long) layout.getTotalShards() * layout.getBlockSize();
+        int window = (int) Math.max(1, Math.min(16, memoryBudget / stripeBytes));
+        Set<Integer> dataShards = IntStream.range(0, layout.getDataShards()).boxed().collect(Collectors.toSet());
+
+        // Up to window stripes are assembled at once; the first stripe that fails stops the rest
+        try (ShardReader reader = new ShardReader(layout, owners);
+             DownloadSink sink = DownloadSink.open(output, layout.getSize());
+             TransferExecutor.Scope stripes = TransferExecutor.shared().scope(window)) {
+            for (long stripe = 0; stripe < layout.getStripeCount(); stripe++) {
+                long index = stripe;
+                stripes.fork(() -> {
+                    writeStripe(layout, sink, index, reader.readStripe(index, dataShards));
+                    return null;
+                });
+            }
+            stripes.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", e);
+        }
+    }
+
+    // The last stripe is zero-padded; only bytes inside the file are written
+    private static void writeStripe(ErasureLayout layout, DownloadSink sink, long stripe, byte[][] shards)
+            throws IOException {
+        long offset = stripe * layout.getStripeSize();
+        for (int i = 0; i < layout.getDataShards() && offset < layout.getSize(); i++) {
+            int length = (int) Math.min(layout.getBlockSize(), layout.getSize() - offset);
+            byte[] block = shards[i];
+            if (length < block.length) {
+                byte[] tail = new byte[length];
+                System.arraycopy(block, 0, tail, 0, length);
+                block = tail;
+            }
+            sink.write(offset, block);
+            offset += length;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.server.usth.controller;
+
+// The single "bytes=" range of a Range header (RFC 7233), resolved against the size of
+// the file. Headers this does not understand, with several ranges, another unit or bad
+// syntax, are ignored as the RFC asks and the whole file is served.
+final class ByteRange {
+    final long first;
+    final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    // Null when the header is absent or to be ignored; a range that starts past the end
+    // of the file comes back unsatisfiable
+    static ByteRange parse(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        String from = spec.substring(0, dash).trim();
+        String to = spec.substring(dash + 1).trim();
+        long last = size - 1;
+        if (from.isEmpty()) {
+            // Suffix range: the last n bytes
+            long suffix = number(to);
+            if (suffix < 0) {
+                return null;
+            }
+            return new ByteRange(suffix == 0 ? size : Math.max(0, size - suffix), last);
+        }
+        long first = number(from);
+        if (first < 0) {
+            return null;
+        }
+        if (!to.isEmpty()) {
+            long end = number(to);
+            if (end < first) {
+                return null;
+            }
+            last = Math.min(last, end);
+        }
+        return new ByteRange(first, last);
+    }
+
+    boolean isSatisfiable(long size) {
+        return first < size && first <= last;
+    }
+
+    // Digits only, no sign; -1 for anything else. Past what a long holds is past any file.
+    private static long number(String digits) {
+        if (digits.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return digits.length() > 18 ? Long.MAX_VALUE : Long.parseLong(digits);
+    }
+}
@@ -1,12 +1,13 @@
 package com.server.usth.controller;
 
 
-import com.server.usth.impl.DirectoryImpl;
+import com.server.usth.impl.Directory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.rmi.RemoteException;
 import java.util.List;
 import java.util.Set;
 
@@ -15,7 +16,7 @@ import java.util.Set;
 public class DirectoryController {
 
     @Autowired
-    private DirectoryImpl directoryImpl;
+    private Directory directory;
 
     @GetMapping("/status")
     public String getStatus() {
@@ -23,7 +24,7 @@ public class DirectoryController {
     }
 
     @GetMapping("/files")
-    public Set<String> getAvailableFiles() {
-        return directoryImpl.getAvailableFiles();
+    public Set<String> getAvailableFiles() throws RemoteException {
+        return directory.getAvailableFiles();
     }
 }
@@ -1,139 +1,91 @@
-////package com.server.usth.controller;
-////
-////import com.server.usth.impl.DirectoryImpl;
-////import org.springframework.beans.factory.annotation.Autowired;
-////import org.springframework.beans.factory.annotation.Value;
-////import org.springframework.http.ResponseEntity;
-////import org.springframework.web.bind.annotation.GetMapping;
-////import org.springframework.web.bind.annotation.PathVariable;
-////import org.springframework.web.bind.annotation.RequestMapping;
-////import org.springframework.web.bind.annotation.RestController;
-////
-////import java.nio.file.Files;
-////import java.nio.file.Path;
-////import java.nio.file.Paths;
-////
-////@RestController
-////@RequestMapping
-////public class FileDownloadController {
-////
-////
-////    @Value("${download.directory:downloads}")
-////    private String downloadDirectory;
-////
-////    @Autowired
-////    private DirectoryImpl directory;
-////
-////    @GetMapping("/download/{filename}")
-////    public ResponseEntity<byte[]> downloadFile(@PathVariable String filename) {
-////        try {
-////            Path filePath = Paths.get(downloadDirectory, filename);
-////            byte[] data = Files.readAllBytes(filePath);
-////            return ResponseEntity.ok()
-////                    .header("Content-Disposition", "attachment; filename=\"" + filename + "\"")
-////                    .body(data);
-////        } catch (Exception e) {
-////            return ResponseEntity.badRequest().body(null);
-////        }
-////    }
-////}
-//
-//
-//package com.server.usth.controller;
-//
-//import com.server.usth.impl.DirectoryImpl;
-//import com.server.usth.services.DaemonService;
-//import org.springframework.beans.factory.annotation.Autowired;
-//import org.springframework.core.io.ByteArrayResource;
-//import org.springframework.http.HttpHeaders;
-//import org.springframework.http.MediaType;
-//import org.springframework.http.ResponseEntity;
-//import org.springframework.web.bind.annotation.*;
-//
-//import java.util.List;
-//import java.util.Set;
-//import java.util.concurrent.*;
-//
-//@RestController
-//@RequestMapping("/api/download")
-//@CrossOrigin(origins = "*")
-//public class FileDownloadController {
-//
-//    @Autowired
-//    private DirectoryImpl directory;
-//
-//    private static final int CHUNK_SIZE = 1024 * 1024; // 1MB chunks
-//    private static final int MAX_THREADS = 3;
-//
-//    @GetMapping("/{filename}")
-//    public ResponseEntity<?> downloadFile(@PathVariable String filename) {
-//        try {
-//            List<DaemonService> availableDaemons = directory.getDaemonsForFile(filename);
-//
-//            if (availableDaemons.isEmpty()) {
-//                return ResponseEntity.notFound().build();
-//            }
-//
-//            // Get file size from first available daemon
-//            long fileSize = availableDaemons.get(0).getFileSize(filename);
-//            int numChunks = (int) Math.ceil((double) fileSize / CHUNK_SIZE);
-//
-//            // Create thread pool for parallel downloads
-//            ExecutorService executorService = Executors.newFixedThreadPool(
-//                    Math.min(MAX_THREADS, availableDaemons.size())
-//            );
-//
-//            // Prepare buffer for complete file
-//            byte[] completeFile = new byte[(int) fileSize];
-//            CountDownLatch latch = new CountDownLatch(numChunks);
-//
-//            // Distribute chunks among daemons
-//            for (int i = 0; i < numChunks; i++) {
-//                final int chunkIndex = i;
-//                final long offset = (long) i * CHUNK_SIZE;
-//                final int currentChunkSize = (int) Math.min(CHUNK_SIZE, fileSize - offset);
-//
-//                // Round-robin daemon selection
-//                final DaemonService daemon = availableDaemons.get(i % availableDaemons.size());
-//
-//                executorService.submit(() -> {
-//                    try {
-//                        byte[] chunk = daemon.downloadChunk(filename, offset, currentChunkSize);
-//                        synchronized (completeFile) {
-//                            System.arraycopy(chunk, 0, completeFile, (int) offset, chunk.length);
-//                        }
-//                    } catch (Exception e) {
-//                        e.printStackTrace();
-//                    } finally {
-//                        latch.countDown();
-//                    }
-//                });
-//            }
-//
-//            // Wait for all chunks to be downloaded
-//            latch.await(30, TimeUnit.SECONDS);
-//            executorService.shutdown();
-//
-//            // Prepare the response
-//            ByteArrayResource resource = new ByteArrayResource(completeFile);
-//            HttpHeaders headers = new HttpHeaders();
-//            headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + filename);
-//
-//            return ResponseEntity.ok()
-//                    .headers(headers)
-//                    .contentLength(fileSize)
-//                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-//                    .body(resource);
-//
-//        } catch (Exception e) {
-//            e.printStackTrace();
-//            return ResponseEntity.internalServerError()
-//                    .body("Error downloading file: " + e.getMessage());
-//        }
-//    }
-//
-//    @GetMapping("/files")
-//    public ResponseEntity<Set<String>> listFiles() {
-//        return ResponseEntity.ok(directory.getAvailableFiles());
-//    }
-//}
\ No newline at end of file
+package com.server.usth.controller;
+
+import com.server.usth.impl.Directory;
+import com.server.usth.services.DownloadStreamer;
+import com.server.usth.services.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.Set;
+
+@RestController
+@RequestMapping("/api/download")
+@CrossOrigin(origins = "*")
+public class FileDownloadController {
+
+    @Autowired
+    private Directory directory;
+
+    @Autowired
+    private DownloadStreamer downloadStreamer;
+
+    private final Metrics.Counter requests = Metrics.counter("http_download_requests_total",
+            "File download requests received");
+
+    // Streams the file as it is fetched from the daemons; a single "bytes=" range is
+    // answered with 206, multiple ranges are not supported and get the whole file, as
+    // does a Range header that cannot be parsed
+    @GetMapping("/{filename}")
+    public ResponseEntity<StreamingResponseBody> downloadFile(@PathVariable String filename,
+                                                              @RequestHeader(value = HttpHeaders.RANGE, required = false) String range) {
+        requests.increment();
+        try {
+            DownloadStreamer.Download download = downloadStreamer.open(filename);
+            if (download == null) {
+                return ResponseEntity.notFound().build();
+            }
+            long size = download.getSize();
+            long first = 0;
+            long last = size - 1;
+            boolean partial = false;
+
+            ByteRange requested = ByteRange.parse(range, size);
+            if (requested != null) {
+                if (!requested.isSatisfiable(size)) {
+                    return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                            .header(HttpHeaders.CONTENT_RANGE, "bytes */" + size)
+                            .build();
+                }
+                first = requested.first;
+                last = requested.last;
+                partial = true;
+            }
+
+            long from = first;
+            long to = last;
+            StreamingResponseBody body = out -> {
+                if (to >= from) {
+                    download.writeTo(out, from, to);
+                }
+            };
+            ResponseEntity.BodyBuilder response = ResponseEntity.status(partial ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                    // Quoted and encoded, so quotes or line breaks in the name cannot break the header
+                    .header(HttpHeaders.CONTENT_DISPOSITION,
+                            ContentDisposition.attachment().filename(filename, StandardCharsets.UTF_8).build().toString())
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .contentLength(Math.max(0, last - first + 1));
+            if (partial) {
+                response.header(HttpHeaders.CONTENT_RANGE, "bytes " + first + "-" + last + "/" + size);
+            }
+            return response.body(body);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping("/files")
+    public ResponseEntity<Set<String>> listFiles() throws RemoteException {
+        return ResponseEntity.ok(directory.getAvailableFiles());
+    }
+}
@@ -1,58 +1,115 @@
 package com.server.usth.controller;
 
 import com.server.usth.services.DaemonService;
-import org.springframework.beans.factory.annotation.Value;
+import com.server.usth.services.ErasureLayout;
+import com.server.usth.services.Metrics;
+import com.server.usth.services.UploadPipeline;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.beans.factory.annotation.Autowired;
-import com.server.usth.impl.DirectoryImpl;
-import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import com.server.usth.impl.Directory;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 @RestController
 @RequestMapping("/api/upload")
 public class FileUploadController {
 
-    @Value("${upload.directory:uploads}")
-    private String uploadDirectory;
+    @Autowired
+    private Directory directory;
 
     @Autowired
-    private DirectoryImpl directory;
+    private UploadPipeline uploadPipeline;
+
+    private final Metrics.Histogram uploadLatency = Metrics.timer("upload_seconds",
+            "Time to stream an upload out to all its daemons");
+    private final Metrics.Counter uploadBytes = Metrics.counter("upload_bytes_total",
+            "Bytes of uploaded files distributed to daemons");
+    private final Metrics.Counter uploadFailures = Metrics.counter("upload_failures_total",
+            "Uploads that could not be distributed");
 
     @PostMapping
     public ResponseEntity<String> uploadFile(@RequestParam("file") MultipartFile file) {
-        try {
-            // Save the file
-            String filename = file.getOriginalFilename();
-            Path path = Paths.get(uploadDirectory, filename);
-            Files.write(path, file.getBytes());
-
-            // Register file with directory service
-            directory.registerFile(filename, "local");
+        try (InputStream in = file.getInputStream()) {
+            return distribute(file.getOriginalFilename(), in);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Failed to upload file: " + e.getMessage());
+        }
+    }
 
-            // Debugging: Print registered daemons
-            List<DaemonService> daemons = directory.getDaemonsForFile(filename);
-            System.out.println("Daemons assigned to " + filename + ": " + daemons.size());
+    // Raw request body upload: the body is streamed straight to the daemons without
+    // going through multipart parsing or a temporary file.
+    @PostMapping("/stream/{filename}")
+    public ResponseEntity<String> uploadStream(@PathVariable String filename, HttpServletRequest request) {
+        try (InputStream in = request.getInputStream()) {
+            return distribute(filename, in);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body("Failed to upload file: " + e.getMessage());
+        }
+    }
 
-            if (daemons.isEmpty()) {
-                return ResponseEntity.badRequest().body("No active daemons to distribute the file.");
+    private ResponseEntity<String> distribute(String filename, InputStream in) throws Exception {
+        long start = Metrics.start();
+        try {
+            ResponseEntity<String> response = doDistribute(filename, in);
+            if (!response.getStatusCode().is2xxSuccessful()) {
+                uploadFailures.increment();
             }
+            return response;
+        } catch (Exception e) {
+            uploadFailures.increment();
+            throw e;
+        } finally {
+            uploadLatency.recordSince(start);
+        }
+    }
 
-            for (DaemonService daemon : daemons) {
-                daemon.receiveFile(filename, Files.readAllBytes(path));
-                System.out.println("Sent file to daemon: " + daemon.getDaemonId());
-            }
+    private ResponseEntity<String> doDistribute(String filename, InputStream in) throws Exception {
+        ErasureLayout layout = directory.allocateErasureLayout(filename);
+        if (layout != null) {
+            return distributeErasure(layout, in);
+        }
 
-            return ResponseEntity.ok("File uploaded and distributed successfully: " + filename);
-        } catch (Exception e) {
-            return ResponseEntity.badRequest().body("Failed to upload file: " + e.getMessage());
+        List<DaemonService> daemons = directory.getPlacement(filename);
+        System.out.println("Daemons assigned to " + filename + ": " + daemons.size());
+
+        if (daemons.isEmpty()) {
+            return ResponseEntity.badRequest().body("No active daemons to distribute the file.");
         }
+
+        UploadPipeline.UploadResult result = uploadPipeline.stream(filename, in, daemons);
+        uploadBytes.add(result.getBytes());
+        // Only the daemons that committed hold it, and only now that the upload succeeded
+        directory.registerManifest(result.getManifest());
+        for (String daemonId : result.getDaemonIds()) {
+            directory.registerFile(filename, daemonId);
+        }
+        System.out.println("Sent " + result.getBytes() + " bytes of " + filename
+                + " to daemons: " + result.getDaemonIds()
+                + " (" + result.getDeduplicatedBytes() + " bytes deduplicated)");
+
+        return ResponseEntity.ok("File uploaded and distributed successfully: " + filename + " ("
+                + result.getDaemonIds().size() + " of " + result.getPlacedDaemons() + " daemons)");
     }
 
+    private ResponseEntity<String> distributeErasure(ErasureLayout layout, InputStream in) throws Exception {
+        List<DaemonService> owners = new ArrayList<>();
+        for (String owner : layout.getShardOwners()) {
+            owners.add(directory.getDaemon(owner));
+        }
+
+        UploadPipeline.UploadResult result = uploadPipeline.streamErasure(layout, in, owners);
+        uploadBytes.add(result.getBytes());
+        directory.commitErasureLayout(layout.withSize(result.getBytes()));
+        System.out.println("Sent " + result.getBytes() + " bytes of " + layout.getFilename() + " as "
+                + layout.getDataShards() + "+" + layout.getParityShards() + " shards to daemons: "
+                + result.getDaemonIds());
 
+        return ResponseEntity.ok("File uploaded and distributed successfully: " + layout.getFilename() + " ("
+                + result.getDaemonIds().size() + " of " + result.getPlacedDaemons() + " shards)");
+    }
 
 }
@@ -0,0 +1,39 @@
+package com.server.usth.controller;
+
+import com.server.usth.impl.DirectoryImpl;
+import com.server.usth.services.DaemonService;
+import com.server.usth.services.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+
+// Prometheus scrape target: this application's probes plus those of every live daemon,
+// each daemon's series labelled with its id
+@RestController
+@RequestMapping("/api/metrics")
+public class MetricsController {
+
+    @Autowired
+    private DirectoryImpl directory;
+
+    private final Metrics.Counter daemonScrapeFailures = Metrics.counter("metrics_daemon_scrape_failures_total",
+            "Daemons whose metrics could not be fetched for a scrape");
+
+    @GetMapping(produces = "text/plain; version=0.0.4; charset=utf-8")
+    public String scrape() {
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        for (Map.Entry<String, DaemonService> daemon : directory.getLiveDaemons().entrySet()) {
+            try {
+                snapshot.merge(daemon.getValue().getMetrics());
+            } catch (RemoteException e) {
+                daemonScrapeFailures.increment();
+                System.err.println("Could not fetch metrics of daemon " + daemon.getKey() + ": " + e.getMessage());
+            }
+        }
+        return snapshot.toPrometheus();
+    }
+}
@@ -1,6 +1,10 @@
 package com.server.usth.impl;
 
+import com.server.usth.services.DaemonLoad;
 import com.server.usth.services.DaemonService;
+import com.server.usth.services.ErasureLayout;
+import com.server.usth.services.FileInfo;
+import com.server.usth.services.FileManifest;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
@@ -12,7 +16,41 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public interface Directory extends Remote {
     void registerDaemon(String daemonId, DaemonService daemon) throws RemoteException;
+    // Renews the daemon's lease and records its load; false means the directory no longer
+    // knows it and it must re-register
+    boolean heartbeat(String daemonId, DaemonLoad load) throws RemoteException;
+    // Mean time per chunk request a client saw from each daemon it downloaded from, by daemon id
+    void reportLatencies(Map<String, Long> nanosByDaemon) throws RemoteException;
     void registerFile(String filename, String daemonId) throws RemoteException;
+    // Bulk forms for a daemon's storage scan and the changes it watches for afterwards
+    void registerFiles(String daemonId, Collection<FileInfo> files) throws RemoteException;
+    void unregisterFiles(String daemonId, Collection<String> filenames) throws RemoteException;
+    // Live daemons holding the file, least busy first (directory.replica-ranking)
     List<DaemonService> getDaemonsForFile(String filename) throws RemoteException;
+    // The same daemons in placement order, for the daemons' own background work like
+    // recovery and repair; unlike getDaemonsForFile, not counted as load handed to a replica
+    List<DaemonService> getHoldersForFile(String filename) throws RemoteException;
+    // Daemons a new upload of the file should go to, in placement order
+    List<DaemonService> getPlacement(String filename) throws RemoteException;
+    // Replicated files whose placement includes the daemon
+    Set<String> getAssignedFiles(String daemonId) throws RemoteException;
+    // Files the directory already records the daemon as holding, also across directory restarts
+    Set<String> getFilesHeldBy(String daemonId) throws RemoteException;
     Set<String> getAvailableFiles() throws RemoteException;
+    // Bumped each time the file is registered again, so cached copies of older contents can be told apart
+    long getFileVersion(String filename) throws RemoteException;
+    // Chunk manifests let clients verify chunks and let chunk-store daemons skip chunks they hold
+    void registerManifest(FileManifest manifest) throws RemoteException;
+    FileManifest getManifest(String filename) throws RemoteException;
+
+    // Erasure-coded placement. allocate returns null when the directory replicates files
+    // or has too few live daemons, in which case callers fall back to replication.
+    ErasureLayout allocateErasureLayout(String filename) throws RemoteException;
+    void commitErasureLayout(ErasureLayout layout) throws RemoteException;
+    ErasureLayout getErasureLayout(String filename) throws RemoteException;
+    List<ErasureLayout> getShardAssignments(String daemonId) throws RemoteException;
+    // Null if the daemon is unknown or its lease has expired
+    DaemonService getDaemon(String daemonId) throws RemoteException;
+    // Registry endpoints (host:port) of all directory shards in shard order; empty when not sharded
+    List<String> getShards() throws RemoteException;
 }
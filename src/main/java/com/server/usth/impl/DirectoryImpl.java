@@ -1,21 +1,124 @@
 // File: src/main/java/com/server/usth/impl/DirectoryImpl.java
 package com.server.usth.impl;
 
+import com.server.usth.services.DaemonLoad;
 import com.server.usth.services.DaemonService;
+import com.server.usth.services.ErasureLayout;
+import com.server.usth.services.FileInfo;
+import com.server.usth.services.FileManifest;
+import com.server.usth.services.Metrics;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Service
 public class DirectoryImpl extends UnicastRemoteObject implements Directory {
     private final Map<String, DaemonService> daemons = new ConcurrentHashMap<>();
     private final Map<String, Set<String>> fileRegistry = new ConcurrentHashMap<>();
+    private final Map<String, FileManifest> manifests = new ConcurrentHashMap<>();
+    private final Map<String, ErasureLayout> erasureFiles = new ConcurrentHashMap<>();
+    // Lease expiry per daemon, in System.nanoTime() units
+    private final Map<String, Long> leases = new ConcurrentHashMap<>();
+    // Bumped whenever a file's content may have changed, so cached content of the old version is never served
+    private final Map<String, Long> fileVersions = new ConcurrentHashMap<>();
+    // Size and modification time each holder last reported for its copy, by file then daemon;
+    // kept in memory only, a restarted directory learns them again from the next announce
+    private final Map<String, Map<String, CopyStamp>> copyStamps = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> fileListeners = new CopyOnWriteArrayList<>();
+    // Held while the persistent maps are changed and the change is journaled
+    private final Object stateLock = new Object();
+
+    private final Metrics.Histogram lookupLatency = Metrics.timer("directory_lookup_seconds",
+            "Time to answer getDaemonsForFile");
+    private final Metrics.Counter unavailableHolders = Metrics.counter("directory_unavailable_holders_total",
+            "Holders left out of getDaemonsForFile answers because their lease had run out");
+    private final Metrics.Counter registrations = Metrics.counter("directory_registrations_total",
+            "File copies registered by uploads and daemons");
+    private final Metrics.Counter expiredLeases = Metrics.counter("directory_lease_expirations_total",
+            "Daemons dropped because they stopped heartbeating");
+    private final Metrics.Counter rebalanceMoves = Metrics.counter("directory_rebalance_moves_total",
+            "Replicas copied or dropped by the rebalancer");
+    private final Metrics.Counter rebalanceFailures = Metrics.counter("directory_rebalance_failures_total",
+            "Rebalancer copies and deletes that failed");
+
+    // File holders, manifests and layouts are journaled here and recovered on restart;
+    // empty keeps the directory in memory only
+    @Value("${directory.state-dir:directory-state}")
+    private String stateDir;
+
+    @Value("${directory.snapshot.interval-millis:60000}")
+    private long snapshotIntervalMillis;
+
+    @Value("${directory.lease-millis:10000}")
+    private long leaseMillis;
+
+    // How long daemons named in the recovered state have to register again
+    @Value("${directory.recovery-grace-millis:60000}")
+    private long recoveryGraceMillis;
+
+    // Replicas kept per file; files are placed on a consistent-hash ring of live daemons
+    @Value("${directory.replication-factor:3}")
+    private int replicationFactor;
+
+    @Value("${directory.ring.virtual-nodes:64}")
+    private int virtualNodes;
+
+    // The rebalancer copies at most max-moves replicas per round, one round per interval
+    @Value("${directory.rebalance.interval-millis:5000}")
+    private long rebalanceIntervalMillis;
+
+    @Value("${directory.rebalance.max-moves:2}")
+    private int rebalanceMaxMoves;
+
+    // "replicate" stores whole copies of each file, "erasure" stores k data + m parity shards
+    @Value("${directory.placement:replicate}")
+    private String placement;
+
+    // Order of getDaemonsForFile answers: "p2c", "least-loaded" or "placement", see ReplicaRanker
+    @Value("${directory.replica-ranking:p2c}")
+    private String replicaRanking;
+
+    @Value("${directory.erasure.data-shards:4}")
+    private int dataShards;
+
+    @Value("${directory.erasure.parity-shards:2}")
+    private int parityShards;
+
+    @Value("${directory.erasure.block-size:262144}")
+    private int erasureBlockSize;
+
+    // host:port of every directory shard's registry, this node's at shard-index; files are
+    // split among the shards by a hash of their name. Empty runs a single directory.
+    @Value("${directory.shards:}")
+    private String shards;
+
+    @Value("${directory.shard-index:0}")
+    private int shardIndex;
+
+    private ScheduledExecutorService reaper;
+    private ScheduledExecutorService rebalancer;
+    private ExecutorService moves;
+    private PlacementRing ring;
+    private ReplicaRanker ranker;
+    private DirectoryJournal journal;
 
     @Autowired
     private Registry rmiRegistry;
@@ -26,6 +129,17 @@ public class DirectoryImpl extends UnicastRemoteObject implements Directory {
 
     @PostConstruct
     public void init() {
+        ranker = new ReplicaRanker(ReplicaRanker.Policy.parse(replicaRanking));
+        // Recover before binding, so no registration can race with the replay
+        if (!stateDir.isEmpty()) {
+            journal = new DirectoryJournal(Paths.get(stateDir));
+            try {
+                journal.recover(fileRegistry, manifests, erasureFiles);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot recover directory state from " + stateDir, e);
+            }
+            grantRecoveryLeases();
+        }
         try {
             rmiRegistry.rebind("Directory", this);
             System.out.println("Directory Service bound to RMI registry");
@@ -33,60 +147,554 @@ public class DirectoryImpl extends UnicastRemoteObject implements Directory {
             System.err.println("Error binding Directory Service: " + e.getMessage());
             e.printStackTrace();
         }
+
+        Metrics.gauge("directory_live_daemons", "Daemons holding a lease", leases::size);
+        Metrics.gauge("directory_files", "Files known to the directory",
+                () -> fileRegistry.size() + erasureFiles.size());
+
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "directory-lease-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, leaseMillis / 2);
+        reaper.scheduleAtFixedRate(this::expireLeases, period, period, TimeUnit.MILLISECONDS);
+
+        ring = new PlacementRing(virtualNodes);
+        rebalancer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "directory-rebalancer");
+            t.setDaemon(true);
+            return t;
+        });
+        moves = Executors.newFixedThreadPool(Math.max(1, rebalanceMaxMoves), r -> {
+            Thread t = new Thread(r, "directory-rebalance-move");
+            t.setDaemon(true);
+            return t;
+        });
+        rebalancer.scheduleWithFixedDelay(this::rebalance, rebalanceIntervalMillis, rebalanceIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        if (journal != null) {
+            // Shares the reaper thread; a snapshot only takes as long as writing the state out
+            reaper.scheduleWithFixedDelay(this::compact, snapshotIntervalMillis, snapshotIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+        if (rebalancer != null) {
+            rebalancer.shutdownNow();
+            moves.shutdownNow();
+        }
+        if (journal != null) {
+            compact();
+            journal.close();
+        }
+    }
+
+    // Writes a snapshot and starts a new journal once the current one has records.
+    // The state is copied under stateLock, which every change also holds while it is
+    // applied and journaled, so the copy matches the end of the old journal.
+    void compact() {
+        if (!journal.hasRecords()) {
+            return;
+        }
+        Map<String, Set<String>> holders = new HashMap<>();
+        Map<String, FileManifest> manifestCopy;
+        Map<String, ErasureLayout> layoutCopy;
+        long generation;
+        try {
+            synchronized (stateLock) {
+                for (Map.Entry<String, Set<String>> entry : fileRegistry.entrySet()) {
+                    holders.put(entry.getKey(), new HashSet<>(entry.getValue()));
+                }
+                manifestCopy = new HashMap<>(manifests);
+                layoutCopy = new HashMap<>(erasureFiles);
+                generation = journal.rotate();
+            }
+            journal.snapshot(generation, holders, manifestCopy, layoutCopy);
+        } catch (IOException e) {
+            System.err.println("Directory snapshot failed, journal keeps growing: " + e.getMessage());
+        }
+    }
+
+    // Returns false if the daemon already held the file
+    private boolean addHolder(String filename, String daemonId) {
+        synchronized (stateLock) {
+            boolean added = fileRegistry.computeIfAbsent(filename, k -> ConcurrentHashMap.newKeySet()).add(daemonId);
+            if (added && journal != null) {
+                journal.addHolder(filename, daemonId);
+            }
+            return added;
+        }
+    }
+
+    private void removeHolder(String filename, String daemonId, Set<String> holders) {
+        synchronized (stateLock) {
+            if (holders.remove(daemonId) && journal != null) {
+                journal.removeHolder(filename, daemonId);
+            }
+        }
+        Map<String, CopyStamp> stamps = copyStamps.get(filename);
+        if (stamps != null) {
+            stamps.remove(daemonId);
+        }
     }
 
     @Override
     public void registerDaemon(String daemonId, DaemonService daemon) throws RemoteException {
         daemons.put(daemonId, daemon);
+        renewLease(daemonId);
+        ring.add(daemonId);
         System.out.println("Daemon registered: " + daemonId);
     }
 
+    @Override
+    public boolean heartbeat(String daemonId, DaemonLoad load) throws RemoteException {
+        if (!daemons.containsKey(daemonId)) {
+            return false;
+        }
+        renewLease(daemonId);
+        if (load != null) {
+            ranker.reported(daemonId, load);
+        }
+        return true;
+    }
+
+    @Override
+    public void reportLatencies(Map<String, Long> nanosByDaemon) throws RemoteException {
+        for (Map.Entry<String, Long> entry : nanosByDaemon.entrySet()) {
+            if (daemons.containsKey(entry.getKey())) {
+                ranker.observed(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // Restored holders get a lease like a daemon that just registered, only longer, so
+    // the reaper drops the files of daemons that never come back
+    private void grantRecoveryLeases() {
+        long expiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(recoveryGraceMillis);
+        for (Set<String> holders : fileRegistry.values()) {
+            for (String daemonId : holders) {
+                leases.putIfAbsent(daemonId, expiry);
+            }
+        }
+    }
+
+    private void renewLease(String daemonId) {
+        leases.put(daemonId, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis));
+    }
+
+    private boolean isLive(String daemonId) {
+        Long expiry = leases.get(daemonId);
+        return expiry != null && expiry - System.nanoTime() > 0;
+    }
+
+    // Drops daemons whose lease ran out, together with every file entry that points at them
+    void expireLeases() {
+        for (String id : new ArrayList<>(leases.keySet())) {
+            if (!isLive(id)) {
+                leases.remove(id);
+                daemons.remove(id);
+                ring.remove(id);
+                ranker.forget(id);
+                removeDaemonHolders(id);
+                expiredLeases.increment();
+                System.out.println("Lease expired, removing daemon: " + id);
+            }
+        }
+    }
+
+    private void removeDaemonHolders(String daemonId) {
+        synchronized (stateLock) {
+            for (Set<String> holders : fileRegistry.values()) {
+                holders.remove(daemonId);
+            }
+            if (journal != null) {
+                journal.removeDaemon(daemonId);
+            }
+        }
+        for (Map<String, CopyStamp> stamps : copyStamps.values()) {
+            stamps.remove(daemonId);
+        }
+    }
+
     @Override
     public void registerFile(String filename, String daemonId) throws RemoteException {
-        fileRegistry.computeIfAbsent(filename, k -> ConcurrentHashMap.newKeySet()).add(daemonId);
+        addHolder(filename, daemonId);
+        fileChanged(filename);
+        registrations.increment();
         System.out.println("File registered: " + filename + " by daemon: " + daemonId);
+    }
+
+    // A copy whose size disagrees with the upload manifest is stale: it is not served
+    // until anti-entropy has repaired it and the daemon reports it again.
+    // Daemons report their whole storage when they start or re-register, so the file's
+    // version only moves when the copy is new to the directory or its size or
+    // modification time differ from what the daemon reported last time.
+    @Override
+    public void registerFiles(String daemonId, Collection<FileInfo> files) throws RemoteException {
+        int stale = 0;
+        int changed = 0;
+        for (FileInfo file : files) {
+            String filename = file.getFilename();
+            FileManifest manifest = manifests.get(filename);
+            if (manifest != null && manifest.getSize() != file.getSize()) {
+                Set<String> holders = fileRegistry.get(filename);
+                if (holders != null) {
+                    removeHolder(filename, daemonId, holders);
+                }
+                stale++;
+                continue;
+            }
+            boolean added = addHolder(filename, daemonId);
+            CopyStamp stamp = new CopyStamp(file.getSize(), file.getModified());
+            CopyStamp previous = copyStamps.computeIfAbsent(filename, k -> new ConcurrentHashMap<>())
+                    .put(daemonId, stamp);
+            // A known holder without a stamp registered the copy itself, e.g. when an upload committed
+            if (added || (previous != null && !previous.equals(stamp))) {
+                fileChanged(filename);
+                changed++;
+            }
+        }
+        registrations.add(files.size() - stale);
+        System.out.println("Daemon " + daemonId + " registered " + (files.size() - stale) + " files, "
+                + changed + " new or changed" + (stale > 0 ? ", ignored " + stale + " stale copies" : ""));
+    }
+
+    @Override
+    public void unregisterFiles(String daemonId, Collection<String> filenames) throws RemoteException {
+        for (String filename : filenames) {
+            Set<String> holders = fileRegistry.get(filename);
+            if (holders != null) {
+                removeHolder(filename, daemonId, holders);
+            }
+        }
+        System.out.println("Daemon " + daemonId + " no longer holds " + filenames.size() + " files");
+    }
+
+    @Override
+    public long getFileVersion(String filename) {
+        return fileVersions.getOrDefault(filename, 0L);
+    }
+
+    // Listeners are told the name of every file that is registered again
+    public void addFileListener(Consumer<String> listener) {
+        fileListeners.add(listener);
+    }
+
+    private void fileChanged(String filename) {
+        fileVersions.merge(filename, 1L, Long::sum);
+        for (Consumer<String> listener : fileListeners) {
+            listener.accept(filename);
+        }
+    }
+
+    @Override
+    public List<DaemonService> getPlacement(String filename) throws RemoteException {
+        List<DaemonService> targets = new ArrayList<>();
+        for (String id : ring.replicas(filename, replicationFactor)) {
+            DaemonService daemon = daemons.get(id);
+            if (daemon != null) {
+                targets.add(daemon);
+            }
+        }
+        return targets;
+    }
 
-        // Assign the file to all available daemons if it's a new file
-        if (fileRegistry.get(filename).size() == 1) {
-            System.out.println("Assigning " + filename + " to all active daemons...");
-            for (String activeDaemon : daemons.keySet()) {
-                fileRegistry.get(filename).add(activeDaemon);
-                System.out.println("File " + filename + " assigned to daemon: " + activeDaemon);
+    @Override
+    public Set<String> getAssignedFiles(String daemonId) throws RemoteException {
+        Set<String> assigned = new HashSet<>();
+        for (String filename : fileRegistry.keySet()) {
+            if (ring.replicas(filename, replicationFactor).contains(daemonId)) {
+                assigned.add(filename);
+            }
+        }
+        return assigned;
+    }
+
+    @Override
+    public Set<String> getFilesHeldBy(String daemonId) throws RemoteException {
+        Set<String> held = new HashSet<>();
+        for (Map.Entry<String, Set<String>> entry : fileRegistry.entrySet()) {
+            if (entry.getValue().contains(daemonId)) {
+                held.add(entry.getKey());
             }
         }
+        return held;
     }
 
     @Override
     public List<DaemonService> getDaemonsForFile(String filename) throws RemoteException {
-        Set<String> daemonIds = fileRegistry.getOrDefault(filename, Collections.emptySet());
-        List<DaemonService> availableDaemons = new ArrayList<>();
-        List<String> toRemove = new ArrayList<>();
+        long start = Metrics.start();
+        List<DaemonService> availableDaemons = stubs(ranker.rank(liveHolders(filename)));
+        lookupLatency.recordSince(start);
 
+        System.out.println("Returning daemons for file " + filename + ": " + availableDaemons.size());
+        return availableDaemons;
+    }
+
+    @Override
+    public List<DaemonService> getHoldersForFile(String filename) throws RemoteException {
+        return stubs(liveHolders(filename));
+    }
+
+    // Answered from the lease table only; dead daemons are removed by the reaper
+    private List<String> liveHolders(String filename) {
+        List<String> live = new ArrayList<>();
+        for (String id : orderedHolders(filename)) {
+            if (daemons.containsKey(id) && isLive(id)) {
+                live.add(id);
+            } else if (daemons.containsKey(id)) {
+                // Lease ran out and the reaper has not dropped the daemon yet
+                unavailableHolders.increment();
+            }
+        }
+        return live;
+    }
+
+    private List<DaemonService> stubs(List<String> daemonIds) {
+        List<DaemonService> stubs = new ArrayList<>();
         for (String id : daemonIds) {
             DaemonService daemon = daemons.get(id);
             if (daemon != null) {
-                try {
-                    daemon.getDaemonId(); // Ping daemon
-                    availableDaemons.add(daemon);
-                } catch (RemoteException e) {
-                    System.out.println("Removing offline daemon: " + id);
-                    toRemove.add(id);
+                stubs.add(daemon);
+            }
+        }
+        return stubs;
+    }
+
+    // Holders in placement order first, then holders the file has not been moved off yet
+    private List<String> orderedHolders(String filename) {
+        Set<String> holders = fileRegistry.getOrDefault(filename, Collections.emptySet());
+        List<String> ordered = new ArrayList<>();
+        for (String id : ring.replicas(filename, replicationFactor)) {
+            if (holders.contains(id)) {
+                ordered.add(id);
+            }
+        }
+        for (String id : holders) {
+            if (!ordered.contains(id)) {
+                ordered.add(id);
+            }
+        }
+        return ordered;
+    }
+
+    // One rebalancing round: copies files to placement replicas that lack them, then
+    // drops surplus replicas of files whose placement is fully populated. Files still
+    // being uploaded have no live holder yet and are left alone.
+    void rebalance() {
+        List<Future<?>> started = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> entry : fileRegistry.entrySet()) {
+            if (started.size() >= rebalanceMaxMoves) {
+                break;
+            }
+            String filename = entry.getKey();
+            Set<String> holders = entry.getValue();
+            List<DaemonService> sources = new ArrayList<>();
+            List<String> sourceIds = new ArrayList<>();
+            for (String id : orderedHolders(filename)) {
+                DaemonService daemon = daemons.get(id);
+                if (daemon != null && isLive(id)) {
+                    sources.add(daemon);
+                    sourceIds.add(id);
                 }
             }
+            if (sources.isEmpty()) {
+                continue;
+            }
+
+            List<String> targets = ring.replicas(filename, replicationFactor);
+            boolean complete = true;
+            for (String target : targets) {
+                if (holders.contains(target)) {
+                    continue;
+                }
+                complete = false;
+                DaemonService daemon = daemons.get(target);
+                if (daemon != null && started.size() < rebalanceMaxMoves) {
+                    started.add(moves.submit(() -> copyReplica(filename, target, daemon, sources)));
+                }
+            }
+            if (complete) {
+                for (String id : sourceIds) {
+                    if (!targets.contains(id)) {
+                        dropReplica(filename, id, holders);
+                    }
+                }
+            }
+        }
+        for (Future<?> future : started) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                System.err.println("Rebalance move failed: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
+    }
 
-        // Remove dead daemons from the registry
-        for (String id : toRemove) {
-            daemons.remove(id);
-            fileRegistry.get(filename).remove(id);
+    private void copyReplica(String filename, String targetId, DaemonService target, List<DaemonService> sources) {
+        try {
+            target.replicate(filename, sources);
+            addHolder(filename, targetId);
+            rebalanceMoves.increment();
+            System.out.println("Rebalanced " + filename + " onto daemon: " + targetId);
+        } catch (RemoteException e) {
+            rebalanceFailures.increment();
+            System.err.println("Failed to copy " + filename + " to daemon " + targetId + ": " + e.getMessage());
         }
+    }
 
-        System.out.println("Returning daemons for file " + filename + ": " + availableDaemons.size());
-        return availableDaemons;
+    private void dropReplica(String filename, String daemonId, Set<String> holders) {
+        // Unregister first so no new reader is sent to the copy being deleted
+        removeHolder(filename, daemonId, holders);
+        DaemonService daemon = daemons.get(daemonId);
+        try {
+            if (daemon != null) {
+                daemon.deleteFile(filename);
+            }
+            rebalanceMoves.increment();
+            System.out.println("Rebalanced " + filename + " off daemon: " + daemonId);
+        } catch (RemoteException e) {
+            rebalanceFailures.increment();
+            System.err.println("Failed to delete " + filename + " from daemon " + daemonId + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void registerManifest(FileManifest manifest) throws RemoteException {
+        synchronized (stateLock) {
+            manifests.put(manifest.getFilename(), manifest);
+            if (journal != null) {
+                journal.putManifest(manifest);
+            }
+        }
+        fileChanged(manifest.getFilename());
+    }
+
+    @Override
+    public FileManifest getManifest(String filename) throws RemoteException {
+        return manifests.get(filename);
+    }
+
+    @Override
+    public ErasureLayout allocateErasureLayout(String filename) throws RemoteException {
+        if (!"erasure".equals(placement)) {
+            return null;
+        }
+        List<String> live = new ArrayList<>();
+        for (String id : daemons.keySet()) {
+            if (isLive(id)) {
+                live.add(id);
+            }
+        }
+        int total = dataShards + parityShards;
+        if (live.size() < total) {
+            System.out.println("Only " + live.size() + " live daemons, need " + total
+                    + " for erasure coding; replicating " + filename);
+            return null;
+        }
+        Collections.shuffle(live);
+        return new ErasureLayout(filename, -1, dataShards, parityShards, erasureBlockSize, live.subList(0, total));
+    }
+
+    @Override
+    public void commitErasureLayout(ErasureLayout layout) throws RemoteException {
+        synchronized (stateLock) {
+            erasureFiles.put(layout.getFilename(), layout);
+            if (journal != null) {
+                journal.putLayout(layout);
+            }
+        }
+        fileChanged(layout.getFilename());
+        System.out.println("Erasure-coded file registered: " + layout.getFilename() + " on " + layout.getShardOwners());
+    }
+
+    @Override
+    public ErasureLayout getErasureLayout(String filename) throws RemoteException {
+        return erasureFiles.get(filename);
+    }
+
+    @Override
+    public List<ErasureLayout> getShardAssignments(String daemonId) throws RemoteException {
+        List<ErasureLayout> assigned = new ArrayList<>();
+        for (ErasureLayout layout : erasureFiles.values()) {
+            if (layout.getShardOwners().contains(daemonId)) {
+                assigned.add(layout);
+            }
+        }
+        return assigned;
+    }
+
+    @Override
+    public DaemonService getDaemon(String daemonId) throws RemoteException {
+        return isLive(daemonId) ? daemons.get(daemonId) : null;
+    }
+
+    // Daemons holding a lease, by id
+    public Map<String, DaemonService> getLiveDaemons() {
+        Map<String, DaemonService> live = new TreeMap<>();
+        for (Map.Entry<String, DaemonService> entry : daemons.entrySet()) {
+            if (isLive(entry.getKey())) {
+                live.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return live;
+    }
+
+    @Override
+    public List<String> getShards() {
+        List<String> endpoints = new ArrayList<>();
+        for (String endpoint : shards.split(",")) {
+            if (!endpoint.isBlank()) {
+                endpoints.add(endpoint.trim());
+            }
+        }
+        return endpoints;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
     }
 
     // Add this method to get available files
     public Set<String> getAvailableFiles() {
-        return fileRegistry.keySet();
+        if (erasureFiles.isEmpty()) {
+            return fileRegistry.keySet();
+        }
+        Set<String> files = new HashSet<>(fileRegistry.keySet());
+        files.addAll(erasureFiles.keySet());
+        return files;
+    }
+
+    private static final class CopyStamp {
+        final long size;
+        final long modified;
+
+        CopyStamp(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CopyStamp)) {
+                return false;
+            }
+            CopyStamp other = (CopyStamp) o;
+            return size == other.size && modified == other.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified);
+        }
     }
 }
@@ -0,0 +1,378 @@
+package com.server.usth.impl;
+
+import com.server.usth.services.ErasureLayout;
+import com.server.usth.services.FileManifest;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+// Durable copy of the directory's file state: which daemons hold which files, chunk
+// manifests and erasure layouts. Every change is appended to a journal; a compaction
+// writes all state to a snapshot and starts a new journal generation. Recovery maps
+// the snapshot into memory, then replays the journals written after it, so a restart
+// costs one sequential read instead of every daemon re-registering its files.
+//
+// Journal record: length(4) payload crc32(4), payload = type(1) fields. A torn record
+// at the tail, from a crash mid-append, ends the replay and is cut off.
+// Snapshot: magic(4) generation(8), then the holder, manifest and layout sections,
+// each a count(4) followed by entries in the field encoding used by the journal.
+// Strings are length(2) followed by UTF-8.
+// Appends are not forced to disk; they survive a process crash but not a power loss
+// until the next compaction syncs the snapshot.
+class DirectoryJournal implements AutoCloseable {
+    private static final int SNAPSHOT_MAGIC = 0x44495253; // "DIRS"
+    private static final byte ADD_HOLDER = 1;
+    private static final byte REMOVE_HOLDER = 2;
+    private static final byte REMOVE_DAEMON = 3;
+    private static final byte PUT_MANIFEST = 4;
+    private static final byte PUT_LAYOUT = 5;
+
+    private final Path directory;
+    private FileChannel journal;
+    private long generation;
+    private long records;
+
+    DirectoryJournal(Path directory) {
+        this.directory = directory;
+    }
+
+    // Loads the snapshot and replays the journals into the given maps, then opens the
+    // latest journal for appending
+    synchronized void recover(Map<String, Set<String>> fileRegistry, Map<String, FileManifest> manifests,
+                              Map<String, ErasureLayout> erasureFiles) throws IOException {
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        Path snapshot = directory.resolve("snapshot.bin");
+        long snapshotGeneration = 0;
+        if (Files.exists(snapshot)) {
+            snapshotGeneration = loadSnapshot(snapshot, fileRegistry, manifests, erasureFiles);
+        }
+
+        TreeMap<Long, Path> journals = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                journals.put(Long.parseLong(name.substring(8, name.length() - 4)), file);
+            }
+        }
+        long replayed = 0;
+        generation = snapshotGeneration;
+        for (Map.Entry<Long, Path> entry : journals.entrySet()) {
+            if (entry.getKey() < snapshotGeneration) {
+                // Already folded into the snapshot; left over from a compaction cut short
+                Files.deleteIfExists(entry.getValue());
+                continue;
+            }
+            replayed += replay(entry.getValue(), fileRegistry, manifests, erasureFiles);
+            generation = entry.getKey();
+        }
+        records = replayed;
+        journal = FileChannel.open(journalPath(generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        System.out.println("Directory state recovered in " + (System.nanoTime() - start) / 1_000_000 + " ms: "
+                + fileRegistry.size() + " files, " + replayed + " journal records replayed");
+    }
+
+    synchronized void addHolder(String filename, String daemonId) {
+        append(ADD_HOLDER, out -> {
+            writeString(out, filename);
+            writeString(out, daemonId);
+        });
+    }
+
+    synchronized void removeHolder(String filename, String daemonId) {
+        append(REMOVE_HOLDER, out -> {
+            writeString(out, filename);
+            writeString(out, daemonId);
+        });
+    }
+
+    // The daemon is dropped from every file it held
+    synchronized void removeDaemon(String daemonId) {
+        append(REMOVE_DAEMON, out -> writeString(out, daemonId));
+    }
+
+    synchronized void putManifest(FileManifest manifest) {
+        append(PUT_MANIFEST, out -> writeManifest(out, manifest));
+    }
+
+    synchronized void putLayout(ErasureLayout layout) {
+        append(PUT_LAYOUT, out -> writeLayout(out, layout));
+    }
+
+    synchronized boolean hasRecords() {
+        return records > 0;
+    }
+
+    // Starts a new journal generation and returns it. State captured under the same lock
+    // as the rotation, and written with snapshot(), then covers every older generation.
+    synchronized long rotate() throws IOException {
+        journal.close();
+        generation++;
+        records = 0;
+        journal = FileChannel.open(journalPath(generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return generation;
+    }
+
+    // Writes the state as of the start of the given generation and deletes older journals
+    void snapshot(long generation, Map<String, Set<String>> fileRegistry, Map<String, FileManifest> manifests,
+                  Map<String, ErasureLayout> erasureFiles) throws IOException {
+        Path temp = directory.resolve("snapshot.bin.tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(generation);
+            out.writeInt(fileRegistry.size());
+            for (Map.Entry<String, Set<String>> entry : fileRegistry.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (String daemonId : entry.getValue()) {
+                    writeString(out, daemonId);
+                }
+            }
+            out.writeInt(manifests.size());
+            for (FileManifest manifest : manifests.values()) {
+                writeManifest(out, manifest);
+            }
+            out.writeInt(erasureFiles.size());
+            for (ErasureLayout layout : erasureFiles.values()) {
+                writeLayout(out, layout);
+            }
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temp, directory.resolve("snapshot.bin"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long old = generation - 1; old >= 0 && Files.deleteIfExists(journalPath(old)); old--) {
+            // Delete back to the previous compaction, which removed everything before it
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.force(false);
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing directory journal: " + e.getMessage());
+        }
+    }
+
+    private interface Fields {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(byte type, Fields fields) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(type);
+            fields.write(out);
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+            record.putInt(bytes.length).put(bytes).putInt((int) crc.getValue()).flip();
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+            records++;
+        } catch (IOException e) {
+            // The in-memory state is still right; it is only at risk if the directory restarts
+            System.err.println("Failed to journal directory change: " + e.getMessage());
+        }
+    }
+
+    private static long loadSnapshot(Path snapshot, Map<String, Set<String>> fileRegistry,
+                                     Map<String, FileManifest> manifests,
+                                     Map<String, ErasureLayout> erasureFiles) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a directory snapshot: " + snapshot);
+            }
+            long generation = in.getLong();
+            for (int files = in.getInt(); files > 0; files--) {
+                String filename = readString(in);
+                Set<String> holders = fileRegistry.computeIfAbsent(filename, k -> ConcurrentHashMap.newKeySet());
+                for (int count = in.getInt(); count > 0; count--) {
+                    holders.add(readString(in));
+                }
+            }
+            for (int count = in.getInt(); count > 0; count--) {
+                FileManifest manifest = readManifest(in);
+                manifests.put(manifest.getFilename(), manifest);
+            }
+            for (int count = in.getInt(); count > 0; count--) {
+                ErasureLayout layout = readLayout(in);
+                erasureFiles.put(layout.getFilename(), layout);
+            }
+            return generation;
+        }
+    }
+
+    // Returns the number of records applied
+    private static long replay(Path file, Map<String, Set<String>> fileRegistry, Map<String, FileManifest> manifests,
+                               Map<String, ErasureLayout> erasureFiles) throws IOException {
+        long applied = 0;
+        long valid = 0;
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length <= 0 || in.remaining() < 8L + length) {
+                    break;
+                }
+                ByteBuffer payload = in.slice(in.position() + 4, length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != in.getInt(in.position() + 4 + length)) {
+                    break;
+                }
+                apply(payload, fileRegistry, manifests, erasureFiles);
+                in.position(in.position() + 8 + length);
+                valid = in.position();
+                applied++;
+            }
+        }
+        if (valid < size) {
+            System.err.println("Discarding " + (size - valid) + " bytes of torn journal tail in " + file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        return applied;
+    }
+
+    private static void apply(ByteBuffer in, Map<String, Set<String>> fileRegistry,
+                              Map<String, FileManifest> manifests, Map<String, ErasureLayout> erasureFiles)
+            throws IOException {
+        byte type = in.get();
+        switch (type) {
+            case ADD_HOLDER -> {
+                String filename = readString(in);
+                fileRegistry.computeIfAbsent(filename, k -> ConcurrentHashMap.newKeySet()).add(readString(in));
+            }
+            case REMOVE_HOLDER -> {
+                String filename = readString(in);
+                Set<String> holders = fileRegistry.get(filename);
+                String daemonId = readString(in);
+                if (holders != null) {
+                    holders.remove(daemonId);
+                }
+            }
+            case REMOVE_DAEMON -> {
+                String daemonId = readString(in);
+                for (Set<String> holders : fileRegistry.values()) {
+                    holders.remove(daemonId);
+                }
+            }
+            case PUT_MANIFEST -> {
+                FileManifest manifest = readManifest(in);
+                manifests.put(manifest.getFilename(), manifest);
+            }
+            case PUT_LAYOUT -> {
+                ErasureLayout layout = readLayout(in);
+                erasureFiles.put(layout.getFilename(), layout);
+            }
+            default -> throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    // Chunk hashes are stored as raw 32-byte digests rather than hex
+    private static void writeManifest(DataOutputStream out, FileManifest manifest) throws IOException {
+        writeString(out, manifest.getFilename());
+        out.writeLong(manifest.getSize());
+        out.writeInt(manifest.getChunkSize());
+        out.writeInt(manifest.getChunkCount());
+        for (String hash : manifest.getChunkHashes()) {
+            out.write(HexFormat.of().parseHex(hash));
+        }
+    }
+
+    private static FileManifest readManifest(ByteBuffer in) {
+        String filename = readString(in);
+        long size = in.getLong();
+        int chunkSize = in.getInt();
+        int count = in.getInt();
+        List<String> hashes = new ArrayList<>(count);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < count; i++) {
+            in.get(hash);
+            hashes.add(HexFormat.of().formatHex(hash));
+        }
+        return new FileManifest(filename, size, chunkSize, hashes);
+    }
+
+    private static void writeLayout(DataOutputStream out, ErasureLayout layout) throws IOException {
+        writeString(out, layout.getFilename());
+        out.writeLong(layout.getSize());
+        out.writeInt(layout.getDataShards());
+        out.writeInt(layout.getParityShards());
+        out.writeInt(layout.getBlockSize());
+        out.writeInt(layout.getShardOwners().size());
+        for (String owner : layout.getShardOwners()) {
+            writeString(out, owner);
+        }
+    }
+
+    private static ErasureLayout readLayout(ByteBuffer in) {
+        String filename = readString(in);
+        long size = in.getLong();
+        int dataShards = in.getInt();
+        int parityShards = in.getInt();
+        int blockSize = in.getInt();
+        List<String> owners = new ArrayList<>();
+        for (int count = in.getInt(); count > 0; count--) {
+            owners.add(readString(in));
+        }
+        return new ErasureLayout(filename, size, dataShards, parityShards, blockSize, owners);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Name too long to journal: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = Short.toUnsignedInt(in.getShort());
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Path journalPath(long generation) {
+        return directory.resolve("journal-" + generation + ".log");
+    }
+}
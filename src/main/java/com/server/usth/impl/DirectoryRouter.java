@@ -0,0 +1,275 @@
+package com.server.usth.impl;
+
+import com.server.usth.services.DaemonLoad;
+import com.server.usth.services.DaemonService;
+import com.server.usth.services.ErasureLayout;
+import com.server.usth.services.FileInfo;
+import com.server.usth.services.FileManifest;
+
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Client-side view of a sharded directory. Each file belongs to one shard, picked by
+// a hash of its name, and every per-file call goes straight to that shard, so the
+// shards share the metadata load. Daemon membership and heartbeats go to all shards,
+// since each one places its own files on the same daemons; listings are the union of
+// all shards. The shard map is fetched once from the first directory contacted and
+// kept; a shard's stub is looked up again after a call to it fails, right away when the
+// call could not have reached the shard.
+public class DirectoryRouter implements Directory {
+    private final List<String> endpoints;
+    private final Directory[] shards;
+
+    private DirectoryRouter(List<String> endpoints) {
+        this.endpoints = List.copyOf(endpoints);
+        this.shards = new Directory[endpoints.size()];
+    }
+
+    // The directory behind the registry on localhost:1099, or -Ddirectory.host and
+    // -Ddirectory.port, routed over its shards if it has any
+    public static Directory connect() throws RemoteException, NotBoundException {
+        return connect(System.getProperty("directory.host", "localhost"), Integer.getInteger("directory.port", 1099));
+    }
+
+    public static Directory connect(String host, int port) throws RemoteException, NotBoundException {
+        Directory directory = (Directory) LocateRegistry.getRegistry(host, port).lookup("Directory");
+        List<String> endpoints = directory.getShards();
+        if (endpoints.size() <= 1) {
+            return directory;
+        }
+        DirectoryRouter router = new DirectoryRouter(endpoints);
+        int self = endpoints.indexOf(host + ":" + port);
+        if (self >= 0) {
+            router.shards[self] = directory;
+        }
+        return router;
+    }
+
+    // For a directory node that routes its own callers: calls for its shard stay in process
+    public static Directory forLocal(DirectoryImpl local) {
+        List<String> endpoints = local.getShards();
+        if (endpoints.size() <= 1) {
+            return local;
+        }
+        DirectoryRouter router = new DirectoryRouter(endpoints);
+        router.shards[local.getShardIndex()] = local;
+        return router;
+    }
+
+    public static int shardOf(String key, int shardCount) {
+        return Math.floorMod(key.hashCode(), shardCount);
+    }
+
+    private synchronized Directory shard(int index) throws RemoteException {
+        if (shards[index] == null) {
+            String[] hostPort = endpoints.get(index).split(":");
+            try {
+                shards[index] = (Directory) LocateRegistry.getRegistry(hostPort[0], Integer.parseInt(hostPort[1]))
+                        .lookup("Directory");
+            } catch (NotBoundException e) {
+                throw new RemoteException("No directory bound at " + endpoints.get(index), e);
+            }
+        }
+        return shards[index];
+    }
+
+    private synchronized void forget(int index, Directory stale) {
+        // In-process shards never go stale
+        if (shards[index] == stale && !(stale instanceof DirectoryImpl)) {
+            shards[index] = null;
+        }
+    }
+
+    private interface Call<T> {
+        T apply(Directory shard) throws RemoteException;
+    }
+
+    private <T> T on(int index, Call<T> call) throws RemoteException {
+        Directory shard = shard(index);
+        try {
+            return call.apply(shard);
+        } catch (ConnectException | NoSuchObjectException e) {
+            // The call never reached the shard; it may have restarted, so look it up once more
+            forget(index, shard);
+            return call.apply(shard(index));
+        } catch (RemoteException e) {
+            forget(index, shard);
+            throw e;
+        }
+    }
+
+    private <T> T owner(String filename, Call<T> call) throws RemoteException {
+        return on(shardOf(filename, shards.length), call);
+    }
+
+    private <T> Set<T> union(Call<? extends Collection<T>> call) throws RemoteException {
+        Set<T> all = new HashSet<>();
+        for (int i = 0; i < shards.length; i++) {
+            all.addAll(on(i, call));
+        }
+        return all;
+    }
+
+    @Override
+    public void registerDaemon(String daemonId, DaemonService daemon) throws RemoteException {
+        for (int i = 0; i < shards.length; i++) {
+            on(i, shard -> {
+                shard.registerDaemon(daemonId, daemon);
+                return null;
+            });
+        }
+    }
+
+    // False if any shard lost the lease; re-registering then renews it on all of them
+    @Override
+    public boolean heartbeat(String daemonId, DaemonLoad load) throws RemoteException {
+        boolean known = true;
+        for (int i = 0; i < shards.length; i++) {
+            known &= on(i, shard -> shard.heartbeat(daemonId, load));
+        }
+        return known;
+    }
+
+    // Every shard ranks replicas for its own files
+    @Override
+    public void reportLatencies(Map<String, Long> nanosByDaemon) throws RemoteException {
+        for (int i = 0; i < shards.length; i++) {
+            on(i, shard -> {
+                shard.reportLatencies(nanosByDaemon);
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public void registerFile(String filename, String daemonId) throws RemoteException {
+        owner(filename, shard -> {
+            shard.registerFile(filename, daemonId);
+            return null;
+        });
+    }
+
+    @Override
+    public void registerFiles(String daemonId, Collection<FileInfo> files) throws RemoteException {
+        Map<Integer, List<FileInfo>> byShard = new TreeMap<>();
+        for (FileInfo file : files) {
+            byShard.computeIfAbsent(shardOf(file.getFilename(), shards.length), k -> new ArrayList<>()).add(file);
+        }
+        for (Map.Entry<Integer, List<FileInfo>> entry : byShard.entrySet()) {
+            on(entry.getKey(), shard -> {
+                shard.registerFiles(daemonId, entry.getValue());
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public void unregisterFiles(String daemonId, Collection<String> filenames) throws RemoteException {
+        Map<Integer, List<String>> byShard = new TreeMap<>();
+        for (String filename : filenames) {
+            byShard.computeIfAbsent(shardOf(filename, shards.length), k -> new ArrayList<>()).add(filename);
+        }
+        for (Map.Entry<Integer, List<String>> entry : byShard.entrySet()) {
+            on(entry.getKey(), shard -> {
+                shard.unregisterFiles(daemonId, entry.getValue());
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public List<DaemonService> getDaemonsForFile(String filename) throws RemoteException {
+        return owner(filename, shard -> shard.getDaemonsForFile(filename));
+    }
+
+    @Override
+    public List<DaemonService> getHoldersForFile(String filename) throws RemoteException {
+        return owner(filename, shard -> shard.getHoldersForFile(filename));
+    }
+
+    @Override
+    public List<DaemonService> getPlacement(String filename) throws RemoteException {
+        return owner(filename, shard -> shard.getPlacement(filename));
+    }
+
+    @Override
+    public Set<String> getAssignedFiles(String daemonId) throws RemoteException {
+        return union(shard -> shard.getAssignedFiles(daemonId));
+    }
+
+    @Override
+    public Set<String> getFilesHeldBy(String daemonId) throws RemoteException {
+        return union(shard -> shard.getFilesHeldBy(daemonId));
+    }
+
+    @Override
+    public Set<String> getAvailableFiles() throws RemoteException {
+        return union(Directory::getAvailableFiles);
+    }
+
+    @Override
+    public long getFileVersion(String filename) throws RemoteException {
+        return owner(filename, shard -> shard.getFileVersion(filename));
+    }
+
+    @Override
+    public void registerManifest(FileManifest manifest) throws RemoteException {
+        owner(manifest.getFilename(), shard -> {
+            shard.registerManifest(manifest);
+            return null;
+        });
+    }
+
+    @Override
+    public FileManifest getManifest(String filename) throws RemoteException {
+        return owner(filename, shard -> shard.getManifest(filename));
+    }
+
+    @Override
+    public ErasureLayout allocateErasureLayout(String filename) throws RemoteException {
+        return owner(filename, shard -> shard.allocateErasureLayout(filename));
+    }
+
+    @Override
+    public void commitErasureLayout(ErasureLayout layout) throws RemoteException {
+        owner(layout.getFilename(), shard -> {
+            shard.commitErasureLayout(layout);
+            return null;
+        });
+    }
+
+    @Override
+    public ErasureLayout getErasureLayout(String filename) throws RemoteException {
+        return owner(filename, shard -> shard.getErasureLayout(filename));
+    }
+
+    @Override
+    public List<ErasureLayout> getShardAssignments(String daemonId) throws RemoteException {
+        List<ErasureLayout> assigned = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            assigned.addAll(on(i, shard -> shard.getShardAssignments(daemonId)));
+        }
+        return assigned;
+    }
+
+    // Every shard knows every daemon; spread the lookups by daemon id
+    @Override
+    public DaemonService getDaemon(String daemonId) throws RemoteException {
+        return on(shardOf(daemonId, shards.length), shard -> shard.getDaemon(daemonId));
+    }
+
+    @Override
+    public List<String> getShards() {
+        return endpoints;
+    }
+}
@@ -0,0 +1,85 @@
+package com.server.usth.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Consistent-hash ring. Every daemon owns virtualNodes points on the ring and a file
+// is placed on the first distinct daemons found walking clockwise from its hash, so a
+// daemon joining or leaving only moves the files next to its own points.
+// Lookups read an immutable snapshot; membership changes replace it.
+public class PlacementRing {
+    private final int virtualNodes;
+    private volatile NavigableMap<Long, String> ring = Collections.emptyNavigableMap();
+
+    public PlacementRing(int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    // Returns true if the daemon was not on the ring yet
+    public synchronized boolean add(String daemonId) {
+        if (ring.containsValue(daemonId)) {
+            return false;
+        }
+        TreeMap<Long, String> next = new TreeMap<>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            next.put(hash(daemonId + "#" + i), daemonId);
+        }
+        ring = Collections.unmodifiableNavigableMap(next);
+        return true;
+    }
+
+    // Returns true if the daemon was on the ring
+    public synchronized boolean remove(String daemonId) {
+        if (!ring.containsValue(daemonId)) {
+            return false;
+        }
+        TreeMap<Long, String> next = new TreeMap<>(ring);
+        next.values().removeIf(daemonId::equals);
+        ring = Collections.unmodifiableNavigableMap(next);
+        return true;
+    }
+
+    // Up to count distinct daemons for the key, in placement order
+    public List<String> replicas(String key, int count) {
+        NavigableMap<Long, String> snapshot = ring;
+        List<String> replicas = new ArrayList<>(count);
+        if (snapshot.isEmpty()) {
+            return replicas;
+        }
+        long point = hash(key);
+        collect(snapshot.tailMap(point, true), replicas, count);
+        collect(snapshot.headMap(point, false), replicas, count);
+        return replicas;
+    }
+
+    private static void collect(Map<Long, String> arc, List<String> replicas, int count) {
+        for (String daemonId : arc.values()) {
+            if (replicas.size() == count) {
+                return;
+            }
+            if (!replicas.contains(daemonId)) {
+                replicas.add(daemonId);
+            }
+        }
+    }
+
+    private static long hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return ByteBuffer.wrap(digest.digest(key.getBytes(StandardCharsets.UTF_8))).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.server.usth.impl;
+
+import com.server.usth.services.DaemonLoad;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Orders a file's holders so readers start on the least busy one. A daemon's score is
+// its load times its latency:
+//  - load is the requests running and queued, uploads and recoveries it reported with
+//    its last heartbeat, plus one per LOAD_BYTES_PER_SECOND it is moving, plus the lookups
+//    that have put it first since then, so a burst of lookups between two heartbeats is
+//    still spread;
+//  - latency blends the read time the daemon last reported with what clients saw from
+//    it, an exponential moving average of their reports.
+// A daemon nobody has reported on yet counts as idle at DEFAULT_LATENCY_NANOS. Policies:
+//  - "p2c" draws two holders at random and takes the lower score for each position,
+//    which keeps hot daemons at the back without sending every reader to one daemon;
+//  - "least-loaded" sorts by score;
+//  - "placement" keeps the order given, ring placement first.
+class ReplicaRanker {
+    // Bytes per second in or out that count as much as one request in flight
+    static final long LOAD_BYTES_PER_SECOND = 32L * 1024 * 1024;
+    // Weight of a new client report in the latency average
+    static final double CLIENT_LATENCY_WEIGHT = 0.3;
+    // Latency assumed until a daemon or client says otherwise
+    static final long DEFAULT_LATENCY_NANOS = 1_000_000;
+
+    enum Policy {
+        P2C, LEAST_LOADED, PLACEMENT;
+
+        static Policy parse(String name) {
+            switch (name.trim()) {
+                case "p2c":
+                    return P2C;
+                case "least-loaded":
+                    return LEAST_LOADED;
+                case "placement":
+                    return PLACEMENT;
+                default:
+                    throw new IllegalArgumentException("Unknown replica ranking: " + name
+                            + " (expected p2c, least-loaded or placement)");
+            }
+        }
+    }
+
+    private final Policy policy;
+    private final Map<String, DaemonLoad> loads = new ConcurrentHashMap<>();
+    // Kept across reports from daemons that served no reads in between
+    private final Map<String, Long> readLatencies = new ConcurrentHashMap<>();
+    private final Map<String, Double> clientLatencies = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> handedOut = new ConcurrentHashMap<>();
+
+    ReplicaRanker(Policy policy) {
+        this.policy = policy;
+    }
+
+    void reported(String daemonId, DaemonLoad load) {
+        loads.put(daemonId, load);
+        if (load.getReadLatencyNanos() > 0) {
+            readLatencies.put(daemonId, load.getReadLatencyNanos());
+        }
+        // The new report covers the lookups handed out before it
+        handedOut.remove(daemonId);
+    }
+
+    void observed(String daemonId, long nanos) {
+        if (nanos > 0) {
+            clientLatencies.merge(daemonId, (double) nanos,
+                    (old, now) -> old + CLIENT_LATENCY_WEIGHT * (now - old));
+        }
+    }
+
+    void forget(String daemonId) {
+        loads.remove(daemonId);
+        readLatencies.remove(daemonId);
+        clientLatencies.remove(daemonId);
+        handedOut.remove(daemonId);
+    }
+
+    // Returns the ids in reading order; the first one is counted as handed out
+    List<String> rank(List<String> daemonIds) {
+        if (daemonIds.size() < 2 || policy == Policy.PLACEMENT) {
+            return daemonIds;
+        }
+        Map<String, Double> scores = new HashMap<>();
+        for (String id : daemonIds) {
+            scores.put(id, score(id));
+        }
+        List<String> ranked;
+        if (policy == Policy.LEAST_LOADED) {
+            ranked = new ArrayList<>(daemonIds);
+            // Stable, so ties keep placement order
+            ranked.sort(Comparator.comparingDouble(scores::get));
+        } else {
+            List<String> left = new ArrayList<>(daemonIds);
+            ranked = new ArrayList<>(daemonIds.size());
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (left.size() > 1) {
+                int a = random.nextInt(left.size());
+                int b = random.nextInt(left.size() - 1);
+                if (b >= a) {
+                    b++;
+                }
+                int pick = scores.get(left.get(a)) <= scores.get(left.get(b)) ? a : b;
+                ranked.add(left.remove(pick));
+            }
+            ranked.add(left.get(0));
+        }
+        handedOut.computeIfAbsent(ranked.get(0), k -> new AtomicInteger()).incrementAndGet();
+        return ranked;
+    }
+
+    double score(String daemonId) {
+        DaemonLoad load = loads.get(daemonId);
+        AtomicInteger pending = handedOut.get(daemonId);
+        double work = 1 + (pending == null ? 0 : pending.get());
+        if (load != null) {
+            work += load.getInFlightRequests() + load.getQueuedRequests() + load.getUploads() + load.getRecoveries()
+                    + (double) (load.getSentBytesPerSecond() + load.getReceivedBytesPerSecond()) / LOAD_BYTES_PER_SECOND;
+        }
+        long served = readLatencies.getOrDefault(daemonId, 0L);
+        Double seen = clientLatencies.get(daemonId);
+        double latency;
+        if (seen != null && served > 0) {
+            latency = (seen + served) / 2;
+        } else if (seen != null) {
+            latency = seen;
+        } else if (served > 0) {
+            latency = served;
+        } else {
+            latency = DEFAULT_LATENCY_NANOS;
+        }
+        return work * latency;
+    }
+}
@@ -0,0 +1,188 @@
+package com.server.usth.services;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Admission for a daemon's chunk reads and writes, over RMI and the data plane alike.
+// Reads share one budget for the storage disk (daemon.admission.maxReads); background
+// reads, those other daemons make to recover or replicate files, may take at most
+// daemon.admission.maxBackground of it and only when no client read is waiting, so
+// recovery cannot starve downloads. Writes have their own budget.
+//
+// Requests beyond a budget queue, one queue per client host served round-robin, so a
+// client with many connections cannot crowd out the others. When daemon.admission.maxQueued
+// requests are already waiting, or a request has waited daemon.admission.maxWaitMillis,
+// it is turned away with a DaemonBusyException that says when to try again.
+class AdmissionControl {
+    enum Kind {
+        READ, BACKGROUND, WRITE
+    }
+
+    // Bounds for the retry-after hint
+    private static final long MIN_RETRY_AFTER_MILLIS = 10;
+    private static final long MAX_RETRY_AFTER_MILLIS = 5000;
+
+    private final int maxReads;
+    private final int maxBackground;
+    private final int maxWrites;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final Map<Kind, Integer> running = new EnumMap<>(Kind.class);
+    // Per kind, waiting requests by client in the order clients get their next turn
+    private final Map<Kind, LinkedHashMap<String, ArrayDeque<Waiter>>> waiting = new EnumMap<>(Kind.class);
+    private int queued;
+    // Moving average of how long an admitted request holds its slot
+    private double serviceNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private final Metrics.Counter rejected;
+
+    AdmissionControl(String daemonId) {
+        this.maxReads = Math.max(1, Integer.getInteger("daemon.admission.maxReads", 16));
+        this.maxBackground = Math.max(1, Math.min(maxReads, Integer.getInteger("daemon.admission.maxBackground", 4)));
+        this.maxWrites = Math.max(1, Integer.getInteger("daemon.admission.maxWrites", 16));
+        this.maxQueued = Math.max(0, Integer.getInteger("daemon.admission.maxQueued", 64));
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("daemon.admission.maxWaitMillis", 2000));
+        for (Kind kind : Kind.values()) {
+            running.put(kind, 0);
+            waiting.put(kind, new LinkedHashMap<>());
+        }
+        this.rejected = Metrics.counter("daemon_admission_rejected_total",
+                "Chunk reads and writes turned away because the daemon was saturated", "daemon", daemonId);
+        Metrics.gauge("daemon_admission_queued", "Chunk reads and writes waiting for admission",
+                this::getQueued, "daemon", daemonId);
+    }
+
+    // Blocks until the request may run; close the permit when it is done
+    Permit admit(Kind kind, String client) throws DaemonBusyException, InterruptedIOException {
+        synchronized (this) {
+            if (waiting.get(kind).isEmpty() && canRun(kind)) {
+                return start(kind);
+            }
+            if (queued >= maxQueued) {
+                throw reject(kind, "queue full");
+            }
+            Waiter waiter = new Waiter();
+            waiting.get(kind).computeIfAbsent(client, k -> new ArrayDeque<>()).add(waiter);
+            queued++;
+            long deadline = System.nanoTime() + maxWaitNanos;
+            try {
+                while (waiter.permit == null) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        remove(kind, client, waiter);
+                        throw reject(kind, "waited too long");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.permit != null) {
+                    release(waiter.permit);
+                } else {
+                    remove(kind, client, waiter);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for admission");
+            }
+            return waiter.permit;
+        }
+    }
+
+    synchronized int getQueued() {
+        return queued;
+    }
+
+    private boolean canRun(Kind kind) {
+        int reads = running.get(Kind.READ) + running.get(Kind.BACKGROUND);
+        switch (kind) {
+            case READ:
+                return reads < maxReads;
+            case BACKGROUND:
+                return reads < maxReads && running.get(Kind.BACKGROUND) < maxBackground
+                        && waiting.get(Kind.READ).isEmpty();
+            default:
+                return running.get(Kind.WRITE) < maxWrites;
+        }
+    }
+
+    private Permit start(Kind kind) {
+        running.merge(kind, 1, Integer::sum);
+        return new Permit(kind);
+    }
+
+    private synchronized void release(Permit permit) {
+        running.merge(permit.kind, -1, Integer::sum);
+        serviceNanos += 0.1 * ((System.nanoTime() - permit.started) - serviceNanos);
+        // Client reads first, so a freed read slot never goes to background work ahead of them
+        boolean admitted = false;
+        for (Kind kind : Kind.values()) {
+            while (canRun(kind) && !waiting.get(kind).isEmpty()) {
+                admitNext(kind);
+                admitted = true;
+            }
+        }
+        if (admitted) {
+            notifyAll();
+        }
+    }
+
+    // The first client in line gets one request in and goes to the back of the line
+    private void admitNext(Kind kind) {
+        Iterator<Map.Entry<String, ArrayDeque<Waiter>>> clients = waiting.get(kind).entrySet().iterator();
+        Map.Entry<String, ArrayDeque<Waiter>> first = clients.next();
+        Waiter waiter = first.getValue().poll();
+        clients.remove();
+        if (!first.getValue().isEmpty()) {
+            waiting.get(kind).put(first.getKey(), first.getValue());
+        }
+        queued--;
+        waiter.permit = start(kind);
+    }
+
+    private void remove(Kind kind, String client, Waiter waiter) {
+        ArrayDeque<Waiter> line = waiting.get(kind).get(client);
+        if (line != null && line.remove(waiter)) {
+            queued--;
+            if (line.isEmpty()) {
+                waiting.get(kind).remove(client);
+            }
+        }
+    }
+
+    // Long enough for the requests already waiting to be served, at the current pace
+    private DaemonBusyException reject(Kind kind, String reason) {
+        rejected.increment();
+        int slots = kind == Kind.WRITE ? maxWrites : maxReads;
+        long millis = TimeUnit.NANOSECONDS.toMillis((long) (serviceNanos * (queued + 1) / slots));
+        long retryAfter = Math.max(MIN_RETRY_AFTER_MILLIS, Math.min(MAX_RETRY_AFTER_MILLIS, millis));
+        return new DaemonBusyException("Daemon busy (" + reason + "), retry after " + retryAfter + " ms", retryAfter);
+    }
+
+    private static final class Waiter {
+        Permit permit;
+    }
+
+    final class Permit implements AutoCloseable {
+        private final Kind kind;
+        private final long started = System.nanoTime();
+        private boolean closed;
+
+        private Permit(Kind kind) {
+            this.kind = kind;
+        }
+
+        @Override
+        public void close() {
+            synchronized (AdmissionControl.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            release(this);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.server.usth.services;
+
+import com.server.usth.impl.Directory;
+import com.server.usth.impl.DirectoryRouter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Background consistency check of a daemon's replicated files. Each round compares
+// the Merkle tree of every local file with a reference tree: the file's upload
+// manifest when the directory has one, otherwise the tree a strict majority of the
+// replicas agree on, fetched level by level from one of them. Only the chunks under
+// differing subtrees are fetched again, from the other replicas, and each one is
+// checked against the reference leaf before it is written.
+class AntiEntropy {
+    private final DaemonImpl daemon;
+    private final String daemonId;
+    private final int chunkSize;
+    private final int rehashEvery;
+    private final BandwidthThrottle throttle;
+    private final DataPlaneClient dataPlane;
+    private ScheduledExecutorService scheduler;
+    private Directory directory;
+    private long rounds;
+
+    AntiEntropy(DaemonImpl daemon, String daemonId, int chunkSize, int rehashEvery,
+                BandwidthThrottle throttle, DataPlaneClient dataPlane) {
+        this.daemon = daemon;
+        this.daemonId = daemonId;
+        this.chunkSize = chunkSize;
+        this.rehashEvery = Math.max(1, rehashEvery);
+        this.throttle = throttle;
+        this.dataPlane = dataPlane;
+    }
+
+    void start(long intervalMillis) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "daemon-anti-entropy");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::runRound, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    void runRound() {
+        // Cached trees trust file timestamps; every few rounds rehash to catch silent corruption
+        boolean rehash = rounds++ % rehashEvery == 0;
+        try {
+            if (directory == null) {
+                directory = DirectoryRouter.connect();
+            }
+            for (String filename : directory.getAvailableFiles()) {
+                if (!daemon.hasFile(filename)) {
+                    continue;
+                }
+                try {
+                    check(filename, rehash);
+                } catch (Exception e) {
+                    System.err.println("Anti-entropy check of " + filename + " failed: " + e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Anti-entropy round failed: " + e.getMessage());
+            directory = null;
+        }
+    }
+
+    // Returns the number of chunks repaired
+    int check(String filename, boolean rehash) throws IOException, InterruptedException {
+        List<DaemonService> peers = new ArrayList<>();
+        for (DaemonService peer : directory.getHoldersForFile(filename)) {
+            try {
+                if (!daemonId.equals(peer.getDaemonId())) {
+                    peers.add(peer);
+                }
+            } catch (RemoteException e) {
+                // Unreachable replicas take no part in this round
+            }
+        }
+
+        FileManifest manifest = directory.getManifest(filename);
+        Reference reference = manifest != null
+                ? new Reference(MerkleTree.fromManifest(manifest))
+                : majority(filename, peers, rehash);
+        if (reference == null) {
+            return 0;
+        }
+        MerkleTree local = daemon.merkleTree(filename, reference.chunkSize, rehash);
+        if (local.getSize() == reference.size && Arrays.equals(local.root(), reference.root)) {
+            return 0;
+        }
+        if (peers.isEmpty()) {
+            System.err.println("Replica of " + filename + " is inconsistent and no other replica can repair it");
+            return 0;
+        }
+
+        if (daemon.isChunkStore()) {
+            // Chunk files are shared between files, so drop corrupt ones and re-sync the manifest
+            System.out.println("Anti-entropy: " + filename + " differs from its reference, re-syncing chunks");
+            daemon.resyncChunks(filename, peers);
+            return 1;
+        }
+        if (local.getSize() != reference.size) {
+            daemon.resize(filename, reference.size);
+            local = daemon.merkleTree(filename, reference.chunkSize, false);
+        }
+
+        Map<Integer, byte[]> differing = MerkleTree.diff(local, reference::nodes);
+        int repaired = 0;
+        for (Map.Entry<Integer, byte[]> leaf : differing.entrySet()) {
+            long offset = (long) leaf.getKey() * reference.chunkSize;
+            int length = (int) Math.min(reference.chunkSize, reference.size - offset);
+            if (repair(filename, offset, length, leaf.getValue(), reference.peer, peers)) {
+                repaired++;
+            }
+        }
+        System.out.println("Anti-entropy: repaired " + repaired + " of " + differing.size()
+                + " differing chunks of " + filename);
+        return repaired;
+    }
+
+    private boolean repair(String filename, long offset, int length, byte[] expected,
+                           DaemonService preferred, List<DaemonService> peers) throws InterruptedException {
+        List<DaemonService> order = new ArrayList<>(peers);
+        if (preferred != null && order.remove(preferred)) {
+            order.add(0, preferred);
+        }
+        throttle.acquire(length);
+        for (DaemonService peer : order) {
+            try {
+                InetSocketAddress endpoint = peer.getDataEndpoint();
+                byte[] data = endpoint != null
+                        ? dataPlane.read(endpoint, filename, offset, length)
+                        : peer.downloadChunk(filename, offset, length);
+                if (data.length == length && Arrays.equals(sha256(data), expected)) {
+                    daemon.writeRange(filename, offset, data);
+                    return true;
+                }
+            } catch (IOException e) {
+                System.err.println("Could not fetch chunk at " + offset + " of " + filename + ": " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    // Without a manifest, the reference is the tree shared by a strict majority of all
+    // replicas including this one; nothing is repaired when there is no such majority
+    // or this replica already belongs to it.
+    private Reference majority(String filename, List<DaemonService> peers, boolean rehash) throws IOException {
+        if (peers.isEmpty()) {
+            return null;
+        }
+        MerkleTree local = daemon.merkleTree(filename, chunkSize, rehash);
+        String localKey = local.getSize() + ":" + HexFormat.of().formatHex(local.root());
+        Map<String, List<Reference>> groups = new LinkedHashMap<>();
+        for (DaemonService peer : peers) {
+            try {
+                long size = peer.getFileSize(filename);
+                byte[] root = peer.getMerkleNodes(filename, chunkSize, 0, new int[]{0})[0];
+                groups.computeIfAbsent(size + ":" + HexFormat.of().formatHex(root), k -> new ArrayList<>())
+                        .add(new Reference(peer, filename, size, chunkSize, root));
+            } catch (RemoteException e) {
+                System.err.println("Replica of " + filename + " did not answer: " + e.getMessage());
+            }
+        }
+        int replicas = peers.size() + 1;
+        for (Map.Entry<String, List<Reference>> group : groups.entrySet()) {
+            if (group.getValue().size() * 2 > replicas && !group.getKey().equals(localKey)) {
+                return group.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // A tree to compare against, held locally or answered node by node by a replica
+    private static class Reference {
+        final MerkleTree tree;
+        final DaemonService peer;
+        final String filename;
+        final long size;
+        final int chunkSize;
+        final byte[] root;
+
+        Reference(MerkleTree tree) {
+            this.tree = tree;
+            this.peer = null;
+            this.filename = null;
+            this.size = tree.getSize();
+            this.chunkSize = tree.getChunkSize();
+            this.root = tree.root();
+        }
+
+        Reference(DaemonService peer, String filename, long size, int chunkSize, byte[] root) {
+            this.tree = null;
+            this.peer = peer;
+            this.filename = filename;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.root = root;
+        }
+
+        byte[][] nodes(int depth, int[] indexes) throws RemoteException {
+            return tree != null ? tree.nodes(depth, indexes) : peer.getMerkleNodes(filename, chunkSize, depth, indexes);
+        }
+    }
+}
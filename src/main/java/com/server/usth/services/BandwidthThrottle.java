@@ -0,0 +1,42 @@
+package com.server.usth.services;
+
+import java.util.concurrent.TimeUnit;
+
+// Token bucket shared by every transfer it should cap. Callers acquire the bytes they
+// are about to move; once the bucket runs dry they sleep until the rate has paid off
+// the debt. A rate of zero or less disables throttling.
+public class BandwidthThrottle {
+    private final long bytesPerSecond;
+    private long available;
+    private long lastRefill = System.nanoTime();
+
+    public BandwidthThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long refill = (now - lastRefill) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+            if (refill > 0) {
+                // At most one second of burst
+                available = Math.min(bytesPerSecond, available + refill);
+                lastRefill = now;
+            }
+            available -= bytes;
+            waitNanos = available < 0 ? -available * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.server.usth.services;
+
+import com.server.usth.impl.DirectoryImpl;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hot-chunk cache in front of the daemons for downloads served by this application.
+// Chunk bytes live off-heap in direct ByteBuffer slabs cut into fixed-size slots, so a
+// large cache adds nothing to GC work. Eviction is segmented LRU: new chunks enter a
+// small probation segment and only a second hit promotes them to the protected one,
+// so a single scan through a large file cannot flush the popular chunks. Concurrent
+// misses for the same chunk share one fetch, which a waiter takes over if the request
+// running it is cancelled. Keys carry the file version from the directory, and a file's
+// entries are dropped when it is registered again.
+@Service
+public class ChunkCache {
+    private static final int SLOTS_PER_SLAB = 16;
+    private static final double PROBATION_SHARE = 0.2;
+
+    @Value("${cache.chunk.budget-bytes:268435456}")
+    private long budgetBytes;
+
+    @Value("${cache.chunk.slot-size:1048576}")
+    private int slotSize;
+
+    @Autowired
+    private DirectoryImpl directory;
+
+    public interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    // Access-ordered; the eldest entry is the least recently used
+    private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, CompletableFuture<byte[]>> loading = new ConcurrentHashMap<>();
+    private int totalSlots;
+    private int protectedSlots;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        totalSlots = (int) Math.min(Integer.MAX_VALUE, Math.max(0, budgetBytes / slotSize));
+        protectedSlots = totalSlots - Math.max(1, (int) (totalSlots * PROBATION_SHARE));
+        for (int slot = totalSlots - 1; slot >= 0; slot--) {
+            freeSlots.push(slot);
+        }
+        directory.addFileListener(this::invalidate);
+        Metrics.counter("cache_chunk_hits_total", "Chunk requests answered from the cache or a shared fetch", this::getHits);
+        Metrics.counter("cache_chunk_misses_total", "Chunk requests that fetched from a daemon", this::getMisses);
+        Metrics.counter("cache_chunk_evictions_total", "Chunks evicted to make room", this::getEvictions);
+        Metrics.gauge("cache_chunk_bytes", "Bytes of chunks held in the cache", this::getCachedBytes);
+    }
+
+    public boolean isEnabled() {
+        return totalSlots > 0;
+    }
+
+    public byte[] get(String filename, long version, long index, Loader loader) throws IOException {
+        if (!isEnabled()) {
+            return loader.load();
+        }
+        Key key = new Key(filename, version, index);
+        while (true) {
+            byte[] cached = lookup(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+
+            CompletableFuture<byte[]> mine = new CompletableFuture<>();
+            CompletableFuture<byte[]> existing = loading.putIfAbsent(key, mine);
+            if (existing != null) {
+                // Someone is already fetching this chunk; wait for their result
+                byte[] shared = join(existing);
+                if (shared != null) {
+                    hits.incrementAndGet();
+                    return shared;
+                }
+                // Their fetch was abandoned, not failed; try again, maybe as the fetcher
+                continue;
+            }
+            misses.incrementAndGet();
+            try {
+                byte[] data = loader.load();
+                if (data.length <= slotSize) {
+                    store(key, data);
+                }
+                mine.complete(data);
+                return data;
+            } catch (IOException | RuntimeException e) {
+                // A fetcher that was interrupted, e.g. because its client went away, says
+                // nothing about the chunk; the others waiting on it fetch it themselves
+                loading.remove(key, mine);
+                if (isInterruption(e)) {
+                    mine.complete(null);
+                } else {
+                    mine.completeExceptionally(e);
+                }
+                throw e;
+            } finally {
+                loading.remove(key, mine);
+            }
+        }
+    }
+
+    // Drops every cached chunk of the file, whatever its version
+    public synchronized void invalidate(String filename) {
+        removeIf(probation, filename);
+        removeIf(protectedSegment, filename);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        long bytes = 0;
+        for (Entry entry : probation.values()) {
+            bytes += entry.length;
+        }
+        for (Entry entry : protectedSegment.values()) {
+            bytes += entry.length;
+        }
+        return bytes;
+    }
+
+    private synchronized byte[] lookup(Key key) {
+        Entry entry = probation.remove(key);
+        if (entry != null) {
+            // Second hit: promote, demoting the protected segment's LRU entry if it is full
+            protectedSegment.put(key, entry);
+            if (protectedSegment.size() > protectedSlots) {
+                Iterator<Map.Entry<Key, Entry>> eldest = protectedSegment.entrySet().iterator();
+                Map.Entry<Key, Entry> demoted = eldest.next();
+                eldest.remove();
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        } else {
+            entry = protectedSegment.get(key);
+        }
+        return entry == null ? null : read(entry);
+    }
+
+    private synchronized void store(Key key, byte[] data) {
+        if (probation.containsKey(key) || protectedSegment.containsKey(key)) {
+            return;
+        }
+        if (freeSlots.isEmpty()) {
+            evictOne();
+        }
+        int slot = freeSlots.pop();
+        ByteBuffer view = slotView(slot);
+        view.put(data);
+        probation.put(key, new Entry(slot, data.length));
+    }
+
+    private void evictOne() {
+        LinkedHashMap<Key, Entry> victims = probation.isEmpty() ? protectedSegment : probation;
+        Iterator<Map.Entry<Key, Entry>> eldest = victims.entrySet().iterator();
+        freeSlots.push(eldest.next().getValue().slot);
+        eldest.remove();
+        evictions.incrementAndGet();
+    }
+
+    private void removeIf(LinkedHashMap<Key, Entry> segment, String filename) {
+        Iterator<Map.Entry<Key, Entry>> it = segment.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> entry = it.next();
+            if (entry.getKey().filename.equals(filename)) {
+                freeSlots.push(entry.getValue().slot);
+                it.remove();
+            }
+        }
+    }
+
+    private byte[] read(Entry entry) {
+        byte[] data = new byte[entry.length];
+        slotView(entry.slot).get(data);
+        return data;
+    }
+
+    // Slabs are allocated on first use, so an idle cache holds no memory
+    private ByteBuffer slotView(int slot) {
+        int slab = slot / SLOTS_PER_SLAB;
+        while (slabs.size() <= slab) {
+            int slots = Math.min(SLOTS_PER_SLAB, totalSlots - slabs.size() * SLOTS_PER_SLAB);
+            slabs.add(ByteBuffer.allocateDirect(slots * slotSize));
+        }
+        int position = (slot % SLOTS_PER_SLAB) * slotSize;
+        return slabs.get(slab).duplicate().position(position).limit(position + slotSize).slice();
+    }
+
+    // Null when the fetcher gave up without an answer
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Chunk fetch failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for chunk");
+        }
+    }
+
+    private static boolean isInterruption(Exception e) {
+        return Thread.currentThread().isInterrupted()
+                || e instanceof InterruptedIOException || e instanceof ClosedByInterruptException;
+    }
+
+    private static final class Key {
+        final String filename;
+        final long version;
+        final long index;
+
+        Key(String filename, long version, long index) {
+            this.filename = filename;
+            this.version = version;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return version == other.version && index == other.index && filename.equals(other.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(filename, version, index);
+        }
+    }
+
+    private static final class Entry {
+        final int slot;
+        final int length;
+
+        Entry(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.server.usth.services;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Content-addressed storage for a daemon. Chunks live once under
+// .chunks/<first two hex digits>/<sha256>, and each file is a manifest under
+// .manifests/<filename> listing its size, chunk size and chunk hashes in order.
+//
+// Overwriting or removing a file leaves its chunks behind; collectGarbage deletes the
+// ones no manifest references. Chunks are stored before the manifest that uses them is
+// committed, so a chunk stored or found present within the grace period is always kept.
+public class ChunkStore {
+    private final Path chunkRoot;
+    private final Path manifestRoot;
+    private final Map<String, FileManifest> manifests = new ConcurrentHashMap<>();
+
+    public ChunkStore(Path storageDirectory) throws IOException {
+        this.chunkRoot = storageDirectory.resolve(".chunks");
+        this.manifestRoot = storageDirectory.resolve(".manifests");
+        Files.createDirectories(chunkRoot);
+        Files.createDirectories(manifestRoot);
+    }
+
+    public Path chunkPath(String hash) {
+        if (!isHash(hash)) {
+            throw new IllegalArgumentException("Not a chunk hash: " + hash);
+        }
+        return chunkRoot.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    // Exactly what sha256Hex produces: 64 lowercase hex digits. Hashes name files, so
+    // anything else could reach outside the chunk directory.
+    public static boolean isHash(String hash) {
+        if (hash == null || hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean has(String hash) {
+        return Files.exists(chunkPath(hash));
+    }
+
+    // Chunks found present are stamped as just used, so garbage collection leaves them
+    // alone until the manifest the caller is about to commit references them
+    public Set<String> missing(Collection<String> hashes) throws IOException {
+        Set<String> missing = new LinkedHashSet<>();
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (String hash : hashes) {
+            if (!isHash(hash)) {
+                throw new IOException("Not a chunk hash: " + hash);
+            }
+        }
+        for (String hash : hashes) {
+            try {
+                Files.setLastModifiedTime(chunkPath(hash), now);
+            } catch (NoSuchFileException e) {
+                missing.add(hash);
+            }
+        }
+        return missing;
+    }
+
+    // Stores a chunk after checking that its content matches the key
+    public void put(String hash, byte[] data) throws IOException {
+        String actual = sha256Hex(data, 0, data.length);
+        if (!actual.equals(hash)) {
+            throw new IOException("Chunk content does not match hash " + hash);
+        }
+        Path target = chunkPath(hash);
+        if (Files.exists(target)) {
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(hash + "." + Thread.currentThread().getId() + ".tmp");
+        Files.write(temp, data);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public FileManifest manifest(String filename) throws IOException {
+        FileManifest cached = manifests.get(filename);
+        if (cached != null) {
+            return cached;
+        }
+        Path path = manifestPath(filename);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        String[] header = lines.get(0).split(" ");
+        FileManifest manifest = new FileManifest(filename, Long.parseLong(header[0]),
+                Integer.parseInt(header[1]), lines.subList(1, lines.size()));
+        manifests.put(filename, manifest);
+        return manifest;
+    }
+
+    // Manifests are named after their files, so this directory lists the stored files
+    public Path getManifestRoot() {
+        return manifestRoot;
+    }
+
+    public Path manifestPath(String filename) {
+        return manifestRoot.resolve(filename);
+    }
+
+    // Publishes a file once every chunk it references is present
+    public void commit(FileManifest manifest) throws IOException {
+        Set<String> missing = missing(manifest.getChunkHashes());
+        if (!missing.isEmpty()) {
+            throw new IOException("Cannot commit " + manifest.getFilename() + ": "
+                    + missing.size() + " chunks missing");
+        }
+        StringBuilder text = new StringBuilder();
+        text.append(manifest.getSize()).append(' ').append(manifest.getChunkSize()).append('\n');
+        for (String hash : manifest.getChunkHashes()) {
+            text.append(hash).append('\n');
+        }
+        Path target = manifestPath(manifest.getFilename());
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        Files.writeString(temp, text, StandardCharsets.UTF_8);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        manifests.put(manifest.getFilename(), manifest);
+    }
+
+    // Drops a file's manifest; its chunks stay until collectGarbage, they may be shared
+    public void remove(String filename) throws IOException {
+        manifests.remove(filename);
+        Files.deleteIfExists(manifestPath(filename));
+    }
+
+    // Mark and sweep: deletes chunks no manifest references that have not been stored or
+    // found present for graceMillis, and temp files as old. Returns the chunks deleted.
+    public List<Path> collectGarbage(long graceMillis) throws IOException {
+        Set<String> referenced = new HashSet<>();
+        try (Stream<Path> paths = Files.walk(manifestRoot)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isRegularFile(path) && !path.getFileName().toString().startsWith(".")) {
+                    FileManifest manifest = manifest(manifestRoot.relativize(path).toString());
+                    if (manifest != null) {
+                        referenced.addAll(manifest.getChunkHashes());
+                    }
+                }
+            }
+        }
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        List<Path> deleted = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(chunkRoot)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (!Files.isRegularFile(path) || referenced.contains(path.getFileName().toString())) {
+                    continue;
+                }
+                try {
+                    if (Files.getLastModifiedTime(path).toMillis() < cutoff && Files.deleteIfExists(path)) {
+                        deleted.add(path);
+                    }
+                } catch (NoSuchFileException e) {
+                    // Deleted meanwhile
+                }
+            }
+        }
+        return deleted;
+    }
+
+    // Maps a byte range of a stored file onto the chunk files that hold it
+    public List<FileHandleCache.Region> resolve(FileManifest manifest, long offset, long length) {
+        List<FileHandleCache.Region> regions = new ArrayList<>();
+        long end = Math.min(offset + length, manifest.getSize());
+        long position = offset;
+        while (position < end) {
+            int index = (int) (position / manifest.getChunkSize());
+            long inChunk = position - manifest.chunkOffset(index);
+            long count = Math.min(manifest.chunkLength(index) - inChunk, end - position);
+            regions.add(new FileHandleCache.Region(chunkPath(manifest.getChunkHashes().get(index)), inChunk, count));
+            position += count;
+        }
+        return regions;
+    }
+
+    public static String sha256Hex(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.server.usth.services;
+
+import java.io.InterruptedIOException;
+import java.rmi.RemoteException;
+
+// A daemon turned a request away because its admission queue was full or the request
+// waited too long in it. Nothing was read or written; the same request may be sent
+// again after the hinted delay, or to another replica right away.
+public class DaemonBusyException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    // How many times callers send a request again after being turned away, before
+    // treating the daemon as failed
+    public static final int MAX_RETRIES = 5;
+
+    private final long retryAfterMillis;
+
+    public DaemonBusyException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    // The hint carried by e or one of its causes, -1 if the failure was not a rejection.
+    // RMI hands a rejection to the caller wrapped in a ServerException.
+    public static long retryAfterMillis(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof DaemonBusyException) {
+                return ((DaemonBusyException) t).getRetryAfterMillis();
+            }
+        }
+        return -1;
+    }
+
+    // Waits out the hint if e was a rejection and returns true; false at once otherwise
+    public static boolean backOff(Throwable e) throws InterruptedIOException {
+        long retryAfter = retryAfterMillis(e);
+        if (retryAfter < 0) {
+            return false;
+        }
+        try {
+            Thread.sleep(retryAfter);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted backing off from a busy daemon");
+        }
+        return true;
+    }
+}
@@ -1,121 +1,1176 @@
 package com.server.usth.services;
 
+import com.server.usth.client.DownloadEngine;
+import com.server.usth.client.DownloadSink;
 import com.server.usth.impl.Directory;
+import com.server.usth.impl.DirectoryRouter;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 // File: DaemonImpl.java
 public class DaemonImpl extends UnicastRemoteObject implements DaemonService {
     private final String daemonId;
     private final String storageDirectory;
+    private final Map<String, UploadSession> uploads = new ConcurrentHashMap<>();
+    private final Map<String, FileDigest> digests = new ConcurrentHashMap<>();
+    private final Set<String> recovering = ConcurrentHashMap.newKeySet();
+    private final Map<String, FileTree> merkleTrees = new ConcurrentHashMap<>();
+    // Files as last reported to the directory, so a re-announce sends only what changed
+    private final Map<String, FileInfo> announced = new ConcurrentHashMap<>();
+    // Recovery and rebalancing transfers: files in parallel, chunk size, bytes in flight
+    // across all files, and a shared bandwidth cap in bytes per second (0 = unlimited)
+    private final int recoveryParallelFiles = Math.max(1, Integer.getInteger("daemon.recovery.parallelFiles", 4));
+    private final int recoveryChunkSize = Integer.getInteger("daemon.recovery.chunkSize", 1024 * 1024);
+    private final long recoveryMemoryBudget = Long.getLong("daemon.recovery.memoryBudget", 64L * 1024 * 1024);
+    private final BandwidthThrottle recoveryThrottle =
+            new BandwidthThrottle(Long.getLong("daemon.recovery.bandwidth", 0));
+    // Non-null when running with -Ddaemon.storage=chunks
+    private final ChunkStore chunkStore;
+    private final int storeChunkSize = Integer.getInteger("daemon.chunkSize", 1024 * 1024);
+    // How often unreferenced chunks are collected, and how long a chunk nothing references
+    // yet is kept for the upload or recovery that is about to commit a manifest using it
+    private final long chunkGcIntervalMillis = Long.getLong("daemon.chunkGc.intervalMillis", 600_000);
+    private final long chunkGcGraceMillis = Long.getLong("daemon.chunkGc.graceMillis", 3_600_000);
+    private final FileHandleCache handleCache = new FileHandleCache(Integer.getInteger("daemon.openFiles", 256));
+    // Recovery, shard rebuilds and anti-entropy; peers serve them after client reads
+    private final DataPlaneClient dataPlaneClient = new DataPlaneClient(true);
+    private final int dataPort;
+    private DataPlaneServer dataPlane;
+    private InetSocketAddress dataEndpoint;
+    private final long heartbeatMillis = Long.getLong("daemon.heartbeatMillis", 3000);
+    // An upload session nothing has been written to for this long is dropped with its part file
+    private final long uploadIdleMillis = Long.getLong("daemon.uploadIdleMillis", 600_000);
+    private ScheduledExecutorService heartbeats;
+    private ScheduledExecutorService chunkGc;
+    // Replica consistency checks: round interval, tree chunk size for files without a
+    // manifest, and how many rounds may reuse cached trees before files are rehashed
+    private final long antiEntropyIntervalMillis = Long.getLong("daemon.antiEntropy.intervalMillis", 60_000);
+    private final int antiEntropyChunkSize = Integer.getInteger("daemon.antiEntropy.chunkSize", 1024 * 1024);
+    private final int antiEntropyRehashEvery = Integer.getInteger("daemon.antiEntropy.rehashEvery", 10);
+    private AntiEntropy antiEntropy;
+    // Whether the storage scan hashes every file; off by default since it reads all data
+    private final boolean scanHashes = Boolean.getBoolean("daemon.scan.hash");
+    private StorageScanner scanner;
+    private final DaemonMetrics metrics;
+    private final AdmissionControl admission;
 
     public DaemonImpl(String daemonId, String storageDirectory) throws RemoteException {
+        this(daemonId, storageDirectory, Integer.getInteger("daemon.dataPort", 0));
+    }
+
+    // dataPort 0 picks an ephemeral port, a negative port disables the data plane
+    public DaemonImpl(String daemonId, String storageDirectory, int dataPort) throws RemoteException {
         super();
         this.daemonId = daemonId;
         this.storageDirectory = storageDirectory;
+        this.dataPort = dataPort;
+        try {
+            this.chunkStore = "chunks".equals(System.getProperty("daemon.storage"))
+                    ? new ChunkStore(Paths.get(storageDirectory)) : null;
+        } catch (IOException e) {
+            throw new RemoteException("Cannot open chunk store in " + storageDirectory, e);
+        }
+        this.metrics = new DaemonMetrics(daemonId);
+        this.admission = new AdmissionControl(daemonId);
+        Metrics.gauge("daemon_uploads_in_progress", "Open upload sessions", uploads::size, "daemon", daemonId);
+        Metrics.gauge("daemon_recoveries_in_progress", "Files being recovered", recovering::size, "daemon", daemonId);
+        Metrics.gauge("daemon_open_files", "File handles held open for reads", handleCache::getOpenHandles,
+                "daemon", daemonId);
     }
 
     @Override
     public byte[] downloadChunk(String filename, long offset, int size) throws RemoteException {
-        try (RandomAccessFile file = new RandomAccessFile(storageDirectory + "/" + filename, "r")) {
-            byte[] chunk = new byte[size];
-            file.seek(offset);
-            int bytesRead = file.read(chunk);
-            if (bytesRead < size) {
-                byte[] actualChunk = new byte[bytesRead];
-                System.arraycopy(chunk, 0, actualChunk, 0, bytesRead);
-                return actualChunk;
+        AdmissionControl.Permit permit = admit(AdmissionControl.Kind.READ);
+        long start = metrics.begin();
+        try {
+            byte[] data = readRange(filename, offset, size);
+            metrics.sent(data.length);
+            return data;
+        } catch (IOException e) {
+            metrics.requestErrors.increment();
+            throw new RemoteException("Error reading chunk", e);
+        } finally {
+            metrics.endRead(start);
+            permit.close();
+        }
+    }
+
+    @Override
+    public byte[][] downloadChunks(String filename, long[] offsets, int[] sizes) throws RemoteException {
+        if (offsets.length != sizes.length) {
+            throw new RemoteException(offsets.length + " offsets but " + sizes.length + " sizes");
+        }
+        AdmissionControl.Permit permit = admit(AdmissionControl.Kind.READ);
+        long start = metrics.begin();
+        try {
+            byte[][] chunks = new byte[offsets.length][];
+            for (int i = 0; i < offsets.length; i++) {
+                chunks[i] = readRange(filename, offsets[i], sizes[i]);
+                metrics.sent(chunks[i].length);
             }
-            return chunk;
+            return chunks;
         } catch (IOException e) {
+            metrics.requestErrors.increment();
+            throw new RemoteException("Error reading chunks", e);
+        } finally {
+            metrics.endRead(start);
+            permit.close();
+        }
+    }
+
+    @Override
+    public FileHead getFileHead(String filename, int firstChunkSize) throws RemoteException {
+        AdmissionControl.Permit permit = admit(AdmissionControl.Kind.READ);
+        long start = metrics.begin();
+        try {
+            long size = localSize(filename);
+            byte[] first = readRange(filename, 0, (int) Math.min(size, firstChunkSize));
+            metrics.sent(first.length);
+            return new FileHead(size, first);
+        } catch (IOException e) {
+            metrics.requestErrors.increment();
+            throw new RemoteException("Error reading " + filename, e);
+        } finally {
+            metrics.endRead(start);
+            permit.close();
+        }
+    }
+
+    @Override
+    public byte[] downloadChunkEncoded(String filename, long offset, int size, int compressionLevel) throws RemoteException {
+        AdmissionControl.Permit permit = admit(AdmissionControl.Kind.READ);
+        long start = metrics.begin();
+        try {
+            byte[] data = readRange(filename, offset, size);
+            byte[] frame = TransferCodec.encode(data, 0, data.length, compressionLevel);
+            metrics.sent(frame.length);
+            return frame;
+        } catch (IOException e) {
+            metrics.requestErrors.increment();
             throw new RemoteException("Error reading chunk", e);
+        } finally {
+            metrics.endRead(start);
+            permit.close();
+        }
+    }
+
+    byte[] readRange(String filename, long offset, int size) throws IOException {
+        if (chunkStore == null) {
+            return handleCache.read(storedPath(filename), offset, size);
+        }
+        return handleCache.read(chunkStore.resolve(requireManifest(filename), offset, size));
+    }
+
+    // Used by the data plane to send a byte range of a stored file without copying
+    long transferRange(String filename, long offset, long count, WritableByteChannel target) throws IOException {
+        if (chunkStore == null) {
+            return handleCache.transferTo(storedPath(filename), offset, count, target);
+        }
+        return handleCache.transferTo(chunkStore.resolve(requireManifest(filename), offset, count), target);
+    }
+
+    long localSize(String filename) throws IOException {
+        if (chunkStore == null) {
+            return handleCache.size(storedPath(filename));
+        }
+        return requireManifest(filename).getSize();
+    }
+
+    // The file a client names, or its manifest in chunk mode. Names come off the network
+    // unchecked, so one that leads outside the storage directory, e.g. through "..", is refused.
+    private Path storedPath(String filename) throws IOException {
+        return confined(chunkStore == null ? Paths.get(storageDirectory) : chunkStore.getManifestRoot(), filename);
+    }
+
+    // Where a file of that name goes in the storage directory itself, in either mode
+    private Path storagePath(String filename) throws IOException {
+        return confined(Paths.get(storageDirectory), filename);
+    }
+
+    // A hidden temp file beside where the file goes, in a directory that exists, so it can
+    // be moved into place atomically; the storage scan skips dot files
+    private Path tempFor(String filename, String suffix) throws IOException {
+        Path target = storagePath(filename);
+        Files.createDirectories(target.getParent());
+        return target.resolveSibling("." + target.getFileName() + suffix);
+    }
+
+    private static Path confined(Path root, String filename) throws IOException {
+        Path base = root.toAbsolutePath().normalize();
+        Path path = base.resolve(filename).normalize();
+        if (!path.startsWith(base) || path.equals(base)) {
+            throw new NoSuchFileException(filename, null, "outside the storage directory");
+        }
+        return path;
+    }
+
+    boolean hasFile(String filename) {
+        if (chunkStore == null) {
+            return new File(storageDirectory, filename).exists();
+        }
+        return Files.exists(chunkStore.manifestPath(filename));
+    }
+
+    private FileManifest requireManifest(String filename) throws IOException {
+        storedPath(filename);
+        FileManifest manifest = chunkStore.manifest(filename);
+        if (manifest == null) {
+            throw new NoSuchFileException(filename);
+        }
+        return manifest;
+    }
+
+    public FileHandleCache getHandleCache() {
+        return handleCache;
+    }
+
+    public String getStorageDirectory() {
+        return storageDirectory;
+    }
+
+    DaemonMetrics probes() {
+        return metrics;
+    }
+
+    AdmissionControl admission() {
+        return admission;
+    }
+
+    // Queues the calling client for a slot of the kind; turns it away with a
+    // DaemonBusyException when the daemon is saturated
+    private AdmissionControl.Permit admit(AdmissionControl.Kind kind) throws RemoteException {
+        String client;
+        try {
+            client = getClientHost();
+        } catch (ServerNotActiveException e) {
+            client = "local"; // Called in-process, not over RMI
+        }
+        try {
+            return admission.admit(kind, client);
+        } catch (InterruptedIOException e) {
+            throw new RemoteException("Interrupted waiting for admission", e);
         }
     }
 
+    @Override
+    public Metrics.Snapshot getMetrics() throws RemoteException {
+        return Metrics.snapshot().labelled("daemon", daemonId);
+    }
+
+    FileChannel getUploadChannel(String uploadId) {
+        UploadSession session = uploads.get(uploadId);
+        if (session == null) {
+            return null;
+        }
+        session.touch();
+        return session.channel;
+    }
+
+    @Override
+    public InetSocketAddress getDataEndpoint() throws RemoteException {
+        return dataEndpoint;
+    }
+
+    private void startDataPlane() throws IOException {
+        if (dataPort < 0) {
+            return;
+        }
+        // Listens only where RMI clients are told to connect, not on every interface
+        String host = System.getProperty("java.rmi.server.hostname", "localhost");
+        dataPlane = new DataPlaneServer(this, new InetSocketAddress(host, dataPort));
+        dataPlane.start();
+        dataEndpoint = new InetSocketAddress(host, dataPlane.getPort());
+    }
+
     @Override
     public long getFileSize(String filename) throws RemoteException {
-        File file = new File(storageDirectory + "/" + filename);
-        return file.length();
+        if (chunkStore != null) {
+            try {
+                FileManifest manifest = chunkStore.manifest(filename);
+                return manifest == null ? 0 : manifest.getSize();
+            } catch (IOException e) {
+                throw new RemoteException("Error reading manifest of " + filename, e);
+            }
+        }
+        try {
+            return storedPath(filename).toFile().length();
+        } catch (IOException e) {
+            throw new RemoteException("Error reading size of " + filename, e);
+        }
+    }
+
+    @Override
+    public String getFileDigest(String filename) throws RemoteException {
+        try {
+            // In chunk mode the manifest changes whenever the file does
+            Path stamp = storedPath(filename);
+            long size = Files.size(stamp);
+            long modified = Files.getLastModifiedTime(stamp).toMillis();
+            // Hashing a large file is expensive, so reuse the digest until the file changes
+            FileDigest cached = digests.get(filename);
+            if (cached != null && cached.size == size && cached.modified == modified) {
+                return cached.hex;
+            }
+            String hex = sha256(filename);
+            digests.put(filename, new FileDigest(size, modified, hex));
+            return hex;
+        } catch (IOException e) {
+            throw new RemoteException("Error hashing " + filename, e);
+        }
+    }
+
+    // What the storage scan reports for a file
+    FileInfo describe(String filename) throws IOException {
+        Path stamp = storedPath(filename);
+        // One stat per file; going through the handle cache would open every file
+        BasicFileAttributes attributes = Files.readAttributes(stamp, BasicFileAttributes.class);
+        long size = chunkStore == null ? attributes.size() : localSize(filename);
+        return new FileInfo(filename, size, attributes.lastModifiedTime().toMillis(),
+                scanHashes ? getFileDigest(filename) : null);
+    }
+
+    private String sha256(String filename) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long size = localSize(filename);
+            for (long offset = 0; offset < size; offset += 1024 * 1024) {
+                digest.update(readRange(filename, offset, (int) Math.min(1024 * 1024, size - offset)));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+    }
+
+    @Override
+    public boolean isChunkStore() throws RemoteException {
+        return chunkStore != null;
+    }
+
+    @Override
+    public Set<String> missingChunks(Collection<String> hashes) throws RemoteException {
+        requireChunkStore();
+        try {
+            return chunkStore.missing(hashes);
+        } catch (IOException e) {
+            throw new RemoteException("Error checking chunks", e);
+        }
+    }
+
+    @Override
+    public void storeChunk(String hash, byte[] data) throws RemoteException {
+        requireChunkStore();
+        AdmissionControl.Permit permit = admit(AdmissionControl.Kind.WRITE);
+        long start = metrics.begin();
+        try {
+            chunkStore.put(hash, data);
+            metrics.received(data.length);
+        } catch (IOException e) {
+            metrics.requestErrors.increment();
+            throw new RemoteException("Error storing chunk " + hash, e);
+        } finally {
+            metrics.endWrite(start);
+            permit.close();
+        }
+    }
+
+    @Override
+    public void commitManifest(FileManifest manifest) throws RemoteException {
+        requireChunkStore();
+        try {
+            chunkStore.commit(manifest);
+            digests.remove(manifest.getFilename());
+            merkleTrees.remove(manifest.getFilename());
+            System.out.println("Stored " + manifest.getFilename() + " as " + manifest.getChunkCount() + " chunks");
+        } catch (IOException e) {
+            throw new RemoteException("Error committing manifest of " + manifest.getFilename(), e);
+        }
+    }
+
+    @Override
+    public FileManifest getManifest(String filename) throws RemoteException {
+        if (chunkStore == null) {
+            return null;
+        }
+        try {
+            return chunkStore.manifest(filename);
+        } catch (IOException e) {
+            throw new RemoteException("Error reading manifest of " + filename, e);
+        }
+    }
+
+    private void requireChunkStore() throws RemoteException {
+        if (chunkStore == null) {
+            throw new RemoteException("Daemon " + daemonId + " does not use chunk storage");
+        }
+    }
+
+    // Splits a complete local file into the chunk store and publishes its manifest
+    private void ingest(String filename, Path source) throws IOException {
+        long size = Files.size(source);
+        List<String> hashes = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            for (long offset = 0; offset < size; offset += storeChunkSize) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(storeChunkSize, size - offset));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of " + source);
+                    }
+                }
+                byte[] data = buffer.array();
+                String hash = ChunkStore.sha256Hex(data, 0, data.length);
+                chunkStore.put(hash, data);
+                hashes.add(hash);
+            }
+        }
+        chunkStore.commit(new FileManifest(filename, size, storeChunkSize, hashes));
+        digests.remove(filename);
+        merkleTrees.remove(filename);
+    }
+
+    @Override
+    public byte[][] getMerkleNodes(String filename, int chunkSize, int depth, int[] indexes) throws RemoteException {
+        try {
+            MerkleTree tree = merkleTree(filename, chunkSize, false);
+            if (depth < 0 || depth > tree.getHeight()) {
+                throw new RemoteException("No level " + depth + " in tree of " + filename);
+            }
+            return tree.nodes(depth, indexes);
+        } catch (IOException e) {
+            throw new RemoteException("Error hashing " + filename, e);
+        }
+    }
+
+    // Built once per file version and chunk size; rehash ignores the cached tree, which
+    // is how bit rot that leaves size and timestamp untouched gets noticed
+    MerkleTree merkleTree(String filename, int chunkSize, boolean rehash) throws IOException {
+        Path stamp = storedPath(filename);
+        long modified = Files.getLastModifiedTime(stamp).toMillis();
+        long size = localSize(filename);
+        FileTree cached = merkleTrees.get(filename);
+        if (!rehash && cached != null && cached.size == size && cached.modified == modified
+                && cached.tree.getChunkSize() == chunkSize) {
+            return cached.tree;
+        }
+        List<byte[]> leaves = new ArrayList<>();
+        try {
+            for (long offset = 0; offset < size; offset += chunkSize) {
+                byte[] chunk = readRange(filename, offset, (int) Math.min(chunkSize, size - offset));
+                leaves.add(MessageDigest.getInstance("SHA-256").digest(chunk));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+        MerkleTree tree = MerkleTree.build(size, chunkSize, leaves);
+        merkleTrees.put(filename, new FileTree(size, modified, tree));
+        return tree;
+    }
+
+    // Anti-entropy repairs of whole-file replicas
+    void writeRange(String filename, long offset, byte[] data) throws IOException {
+        Path path = storedPath(filename);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        }
+        digests.remove(filename);
+        merkleTrees.remove(filename);
+    }
+
+    void resize(String filename, long size) throws IOException {
+        Path path = storedPath(filename);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            if (channel.size() > size) {
+                channel.truncate(size);
+            } else if (channel.size() < size) {
+                channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+            channel.force(false);
+        }
+        handleCache.invalidate(path);
+        digests.remove(filename);
+        merkleTrees.remove(filename);
+    }
+
+    // Chunk mode: deletes chunk files whose content no longer matches their hash, then
+    // fetches whatever the file is missing from the other replicas
+    void resyncChunks(String filename, List<DaemonService> peers) throws IOException {
+        FileManifest manifest = requireManifest(filename);
+        for (FileHandleCache.Region region : chunkStore.resolve(manifest, 0, manifest.getSize())) {
+            byte[] data = Files.readAllBytes(region.path);
+            if (!ChunkStore.sha256Hex(data, 0, data.length).equals(region.path.getFileName().toString())) {
+                handleCache.invalidate(region.path);
+                Files.deleteIfExists(region.path);
+            }
+        }
+        merkleTrees.remove(filename);
+        if (!requestFileFromDaemons(filename, peers, new RecoveryEngine.Progress())) {
+            throw new IOException("Could not re-sync " + filename);
+        }
+    }
+
+    private static class FileTree {
+        final long size;
+        final long modified;
+        final MerkleTree tree;
+
+        FileTree(long size, long modified, MerkleTree tree) {
+            this.size = size;
+            this.modified = modified;
+            this.tree = tree;
+        }
+    }
+
+    private static class FileDigest {
+        final long size;
+        final long modified;
+        final String hex;
+
+        FileDigest(long size, long modified, String hex) {
+            this.size = size;
+            this.modified = modified;
+            this.hex = hex;
+        }
     }
 
     public void start() {
         try {
-            Registry registry = LocateRegistry.getRegistry("localhost", 1099);
-            Directory directory = (Directory) registry.lookup("Directory");
+            Directory directory = DirectoryRouter.connect();
+            new File(storageDirectory).mkdirs();
+            scanner = new StorageScanner(chunkStore == null ? Paths.get(storageDirectory) : chunkStore.getManifestRoot(),
+                    this::describe);
+            startDataPlane();
             directory.registerDaemon(daemonId, this);
+            // Heartbeat from the start: recovery can outlast the lease
+            startHeartbeats(directory);
 
             System.out.println("Daemon " + daemonId + " is running...");
 
-            // Ensure storage directory exists
-            File storage = new File(storageDirectory);
-            if (!storage.exists()) {
-                storage.mkdirs();
-            }
-
-            // Step 1: Get the list of all available files
+            // Step 1: Announce everything in storage, including files placed there by hand,
+            // then find the files placed on this daemon that it lacks
+            Set<String> localFiles = announceFiles(directory);
             Set<String> availableFiles = directory.getAvailableFiles();
+            Set<String> assignedFiles = directory.getAssignedFiles(daemonId);
 
+            List<String> missingFiles = new ArrayList<>();
             for (String filename : availableFiles) {
-                File localFile = new File(storageDirectory, filename);
-
-                if (!localFile.exists()) {
-                    System.out.println("File " + filename + " is missing. Requesting from other daemons...");
+                if (!localFiles.contains(filename) && assignedFiles.contains(filename)) {
+                    missingFiles.add(filename);
+                }
+            }
 
-                    List<DaemonService> sourceDaemons = directory.getDaemonsForFile(filename);
+            // Missing files are fetched several at a time, each in chunks from all its replicas;
+            // a file is announced as soon as it is complete
+            if (!missingFiles.isEmpty()) {
+                System.out.println(missingFiles.size() + " files are missing. Requesting from other daemons...");
+            }
+            new RecoveryEngine(recoveryParallelFiles).recoverAll(missingFiles, (filename, progress) -> {
+                List<DaemonService> sourceDaemons = directory.getHoldersForFile(filename);
+                if (sourceDaemons.isEmpty() || !requestFileFromDaemons(filename, sourceDaemons, progress)) {
+                    return false;
+                }
+                directory.registerFile(filename, daemonId);
+                return true;
+            });
 
-                    if (!sourceDaemons.isEmpty()) {
-                        requestFileFromDaemons(filename, sourceDaemons);
+            // Step 2: Rebuild erasure-coded shards assigned to this daemon
+            for (ErasureLayout layout : directory.getShardAssignments(daemonId)) {
+                for (int i = 0; i < layout.getTotalShards(); i++) {
+                    if (daemonId.equals(layout.getShardOwners().get(i)) && !hasFile(layout.shardName(i))) {
+                        rebuildShard(directory, layout, i);
                     }
                 }
             }
 
             System.out.println("Daemon " + daemonId + " file recovery completed.");
+
+            antiEntropy = new AntiEntropy(this, daemonId, antiEntropyChunkSize, antiEntropyRehashEvery,
+                    recoveryThrottle, dataPlaneClient);
+            antiEntropy.start(antiEntropyIntervalMillis);
+            if (chunkStore != null) {
+                startChunkGc();
+            }
+
+            scanner.watch(this::announceChanged, this::announceDeleted);
         } catch (Exception e) {
             System.err.println("Daemon exception: " + e.toString());
             e.printStackTrace();
         }
     }
 
-    private void requestFileFromDaemons(String filename, List<DaemonService> sourceDaemons) {
-        for (DaemonService sourceDaemon : sourceDaemons) {
+    // Stops serving and goes silent, as if the process had died: the directory drops the
+    // daemon once its lease runs out. Files in storage are left in place.
+    public void shutdown() {
+        if (heartbeats != null) {
+            heartbeats.shutdownNow();
+        }
+        if (antiEntropy != null) {
+            antiEntropy.stop();
+        }
+        if (chunkGc != null) {
+            chunkGc.shutdownNow();
+        }
+        if (scanner != null) {
+            scanner.stop();
+        }
+        if (dataPlane != null) {
+            dataPlane.stop();
+        }
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // Already unexported
+        }
+        dataPlaneClient.close();
+        handleCache.clear();
+        System.out.println("Daemon " + daemonId + " stopped");
+    }
+
+    private void startHeartbeats(Directory initial) {
+        heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "daemon-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeats.scheduleWithFixedDelay(new Runnable() {
+            private Directory directory = initial;
+
+            @Override
+            public void run() {
+                try {
+                    if (directory == null) {
+                        // The directory went away; look it up again, it may have restarted
+                        directory = DirectoryRouter.connect();
+                    }
+                    if (!directory.heartbeat(daemonId, metrics.load(admission.getQueued(), uploads.size(), recovering.size()))) {
+                        System.out.println("Lease lost, re-registering daemon " + daemonId);
+                        directory.registerDaemon(daemonId, DaemonImpl.this);
+                        announceFiles(directory);
+                    }
+                } catch (Exception e) {
+                    System.err.println("Heartbeat to directory failed: " + e.getMessage());
+                    directory = null;
+                }
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        long expiry = Math.min(uploadIdleMillis, 60_000);
+        heartbeats.scheduleWithFixedDelay(() -> expireIdleUploads(uploadIdleMillis), expiry, expiry,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // Uploads whose client went away without committing or aborting
+    void expireIdleUploads(long idleMillis) {
+        long now = System.nanoTime();
+        for (Map.Entry<String, UploadSession> entry : uploads.entrySet()) {
+            UploadSession session = entry.getValue();
+            if (now - session.lastUsed >= TimeUnit.MILLISECONDS.toNanos(idleMillis)
+                    && uploads.remove(entry.getKey(), session)) {
+                session.discard();
+                System.out.println("Expired idle upload of " + session.filename + " (upload " + entry.getKey() + ")");
+            }
+        }
+    }
+
+    // Deletes chunks that overwritten and deleted files left behind
+    private void startChunkGc() {
+        chunkGc = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "daemon-chunk-gc");
+            t.setDaemon(true);
+            return t;
+        });
+        chunkGc.scheduleWithFixedDelay(() -> {
             try {
-                long fileSize = sourceDaemon.getFileSize(filename);
-                byte[] data = sourceDaemon.downloadChunk(filename, 0, (int) fileSize);
+                List<Path> deleted = chunkStore.collectGarbage(chunkGcGraceMillis);
+                for (Path chunk : deleted) {
+                    handleCache.invalidate(chunk);
+                }
+                if (!deleted.isEmpty()) {
+                    System.out.println("Collected " + deleted.size() + " unreferenced chunks");
+                }
+            } catch (IOException e) {
+                System.err.println("Chunk garbage collection failed: " + e.getMessage());
+            }
+        }, chunkGcIntervalMillis, chunkGcIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Scans storage and reports the difference from what the directory lists for this
+    // daemon: files it does not list or that changed since they were last reported, and
+    // files it lists that are gone. Returns the names found.
+    private Set<String> announceFiles(Directory directory) throws IOException {
+        long start = System.nanoTime();
+        List<FileInfo> files = scanner.scan();
+        Set<String> held = directory.getFilesHeldBy(daemonId);
+        Set<String> names = new HashSet<>();
+        List<FileInfo> changed = new ArrayList<>();
+        for (FileInfo file : files) {
+            names.add(file.getFilename());
+            FileInfo previous = announced.get(file.getFilename());
+            if (!held.contains(file.getFilename()) || previous == null
+                    || previous.getSize() != file.getSize() || previous.getModified() != file.getModified()) {
+                changed.add(file);
+            }
+        }
+        if (!changed.isEmpty()) {
+            directory.registerFiles(daemonId, changed);
+            recordAnnounced(changed);
+        }
+        List<String> gone = new ArrayList<>();
+        for (String filename : held) {
+            if (!names.contains(filename)) {
+                gone.add(filename);
+            }
+        }
+        if (!gone.isEmpty()) {
+            directory.unregisterFiles(daemonId, gone);
+        }
+        announced.keySet().retainAll(names);
+        System.out.println("Scanned " + files.size() + " files in " + (System.nanoTime() - start) / 1_000_000
+                + " ms, announced " + changed.size() + " and withdrew " + gone.size());
+        return names;
+    }
+
+    private void recordAnnounced(List<FileInfo> files) {
+        for (FileInfo file : files) {
+            announced.put(file.getFilename(), file);
+        }
+    }
+
+    private void announceChanged(List<FileInfo> files) {
+        // Replaced outside the daemon: whatever we cached about the old bytes is stale
+        for (FileInfo file : files) {
+            forget(file.getFilename());
+        }
+        try {
+            lookupDirectory().registerFiles(daemonId, files);
+            recordAnnounced(files);
+        } catch (Exception e) {
+            // The next lease renewal after a directory restart re-announces everything
+            System.err.println("Could not report " + files.size() + " changed files: " + e.getMessage());
+        }
+    }
+
+    private void announceDeleted(List<String> filenames) {
+        filenames.forEach(this::forget);
+        try {
+            lookupDirectory().unregisterFiles(daemonId, filenames);
+            announced.keySet().removeAll(filenames);
+        } catch (Exception e) {
+            System.err.println("Could not report " + filenames.size() + " deleted files: " + e.getMessage());
+        }
+    }
+
+    // Drops the open handle, digest and tree held for a file
+    private void forget(String filename) {
+        try {
+            handleCache.invalidate(storedPath(filename));
+        } catch (IOException e) {
+            // Outside the storage directory, so nothing was ever cached for it
+        }
+        digests.remove(filename);
+        merkleTrees.remove(filename);
+    }
 
-                File file = new File(storageDirectory, filename);
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    fos.write(data);
+    private static Directory lookupDirectory() throws Exception {
+        return DirectoryRouter.connect();
+    }
+
+    // Returns false if no source could serve the file, or it is already being recovered
+    private boolean requestFileFromDaemons(String filename, List<DaemonService> sourceDaemons,
+                                           RecoveryEngine.Progress progress) {
+        if (!recovering.add(filename)) {
+            System.out.println("Recovery of " + filename + " already in progress.");
+            return false;
+        }
+        try {
+            List<DaemonService> sources = new ArrayList<>();
+            for (DaemonService source : sourceDaemons) {
+                try {
+                    if (!daemonId.equals(source.getDaemonId())) {
+                        sources.add(source);
+                    }
+                } catch (RemoteException e) {
+                    System.err.println("Skipping unreachable daemon: " + e.getMessage());
                 }
+            }
+            if (sources.isEmpty()) {
+                System.err.println("Failed to recover " + filename + ": no other daemon holds it.");
+                metrics.recoveryFailures.increment();
+                return false;
+            }
+            FileManifest manifest = chunkStore == null ? null : findManifest(filename, sources);
+            if (manifest != null) {
+                recoverChunks(manifest, sources, progress);
+            } else {
+                recoverWholeFile(filename, sources, progress);
+            }
+            System.out.println("Recovered file: " + filename);
+            metrics.recoveredFiles.increment();
+            return true;
+        } catch (Exception e) {
+            System.err.println("Failed to recover " + filename + " from any daemon: " + e.getMessage());
+            metrics.recoveryFailures.increment();
+            return false;
+        } finally {
+            recovering.remove(filename);
+        }
+    }
 
-                System.out.println("Recovered file: " + filename);
-                return; // Exit after successful recovery
-            } catch (Exception e) {
-                System.err.println("Failed to recover " + filename + " from a daemon. Trying another...");
+    private static FileManifest findManifest(String filename, List<DaemonService> sources) {
+        for (DaemonService source : sources) {
+            try {
+                FileManifest manifest = source.getManifest(filename);
+                if (manifest != null) {
+                    return manifest;
+                }
+            } catch (RemoteException e) {
+                System.err.println("Could not fetch manifest of " + filename + ": " + e.getMessage());
             }
         }
-        System.err.println("Failed to recover " + filename + " from any daemon.");
+        return null;
     }
 
+    @Override
+    public void replicate(String filename, List<DaemonService> sources) throws RemoteException {
+        if (!requestFileFromDaemons(filename, sources, new RecoveryEngine.Progress())) {
+            throw new RemoteException("Could not replicate " + filename);
+        }
+    }
+
+    @Override
+    public void deleteFile(String filename) throws RemoteException {
+        try {
+            Path path = storedPath(filename);
+            if (chunkStore != null) {
+                chunkStore.remove(filename);
+            } else {
+                handleCache.invalidate(path);
+                Files.deleteIfExists(path);
+            }
+            digests.remove(filename);
+            merkleTrees.remove(filename);
+            System.out.println("Deleted file: " + filename);
+        } catch (IOException e) {
+            throw new RemoteException("Error deleting " + filename, e);
+        }
+    }
+
+    // Chunk store to chunk store: only chunks we do not already hold cross the network.
+    // Chunks are spread round-robin over the sources; a failed chunk moves to the next one.
+    private void recoverChunks(FileManifest manifest, List<DaemonService> sources,
+                               RecoveryEngine.Progress progress) throws IOException, InterruptedException {
+        List<InetSocketAddress> endpoints = new ArrayList<>();
+        for (DaemonService source : sources) {
+            InetSocketAddress endpoint = null;
+            try {
+                endpoint = source.getDataEndpoint();
+            } catch (RemoteException e) {
+                // Fall back to RMI for this source
+            }
+            endpoints.add(endpoint);
+        }
+        Set<String> missing = chunkStore.missing(manifest.getChunkHashes());
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            if (missing.contains(manifest.getChunkHashes().get(i))) {
+                progress.addExpected(manifest.chunkLength(i));
+            }
+        }
+        for (int i = 0; i < manifest.getChunkCount() && !missing.isEmpty(); i++) {
+            String hash = manifest.getChunkHashes().get(i);
+            if (!missing.remove(hash)) {
+                continue;
+            }
+            long offset = manifest.chunkOffset(i);
+            int length = manifest.chunkLength(i);
+            recoveryThrottle.acquire(length);
+            IOException failure = null;
+            for (int attempt = 0; attempt < sources.size(); attempt++) {
+                int s = (i + attempt) % sources.size();
+                try {
+                    byte[] data = endpoints.get(s) != null
+                            ? dataPlaneClient.read(endpoints.get(s), manifest.getFilename(), offset, length)
+                            : sources.get(s).downloadChunk(manifest.getFilename(), offset, length);
+                    chunkStore.put(hash, data);
+                    failure = null;
+                    break;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            progress.addCompleted(length);
+            metrics.recoveredBytes.add(length);
+        }
+        chunkStore.commit(manifest);
+        digests.remove(manifest.getFilename());
+        merkleTrees.remove(manifest.getFilename());
+    }
+
+    // Fetches the file in bounded chunks from all sources at once, into a temp file
+    // that is published under the final name when complete
+    private void recoverWholeFile(String filename, List<DaemonService> sources,
+                                  RecoveryEngine.Progress progress) throws IOException {
+        long fileSize = -1;
+        for (DaemonService source : sources) {
+            try {
+                fileSize = source.getFileSize(filename);
+                break;
+            } catch (RemoteException e) {
+                System.err.println("Could not get size of " + filename + ": " + e.getMessage());
+            }
+        }
+        if (fileSize < 0) {
+            throw new IOException("No source could report the size of " + filename);
+        }
+        progress.addExpected(fileSize);
+
+        DownloadEngine engine = new DownloadEngine(sources, recoveryChunkSize,
+                Math.max(recoveryChunkSize, recoveryMemoryBudget / recoveryParallelFiles));
+        engine.setThrottle(recoveryThrottle);
+        engine.setBackground(true);
+        engine.setProgressListener(bytes -> {
+            progress.addCompleted(bytes);
+            metrics.recoveredBytes.add(bytes);
+        });
+        Path temp = tempFor(filename, ".recovery");
+        try {
+            try (DownloadSink sink = DownloadSink.open(temp, fileSize)) {
+                engine.download(filename, sink);
+            }
+            publish(filename, temp);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Decodes a lost shard stripe by stripe from dataShards of the other shards
+    private void rebuildShard(Directory directory, ErasureLayout layout, int index) {
+        String shardName = layout.shardName(index);
+        System.out.println("Shard " + shardName + " is missing. Rebuilding from other shards...");
+        List<DaemonService> owners = new ArrayList<>();
+        for (String owner : layout.getShardOwners()) {
+            try {
+                owners.add(owner.equals(daemonId) ? null : directory.getDaemon(owner));
+            } catch (RemoteException e) {
+                owners.add(null);
+            }
+        }
+
+        Path temp;
+        try {
+            temp = tempFor(shardName, ".recovery");
+        } catch (IOException e) {
+            System.err.println("Failed to rebuild " + shardName + ": " + e.getMessage());
+            return;
+        }
+        try (ShardReader reader = new ShardReader(layout, owners);
+             FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long stripe = 0; stripe < layout.getStripeCount(); stripe++) {
+                ByteBuffer block = ByteBuffer.wrap(reader.readStripe(stripe, Set.of(index))[index]);
+                long position = stripe * layout.getBlockSize();
+                while (block.hasRemaining()) {
+                    position += channel.write(block, position);
+                }
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Failed to rebuild " + shardName + ": " + e.getMessage());
+            deleteQuietly(temp);
+            return;
+        }
+
+        try {
+            publish(shardName, temp);
+            System.out.println("Rebuilt shard: " + shardName);
+        } catch (IOException e) {
+            System.err.println("Failed to store rebuilt " + shardName + ": " + e.getMessage());
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // Leftover temp files are overwritten by the next attempt
+        }
+    }
+
+    // Moves a completed temp file into place, or into the chunk store in chunk mode
+    private void publish(String filename, Path temp) throws IOException {
+        if (chunkStore != null) {
+            ingest(filename, temp);
+            Files.deleteIfExists(temp);
+            return;
+        }
+        Path target = storedPath(filename);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forget(filename);
+    }
 
     @Override
     public void receiveFile(String filename, byte[] data) throws RemoteException {
+        AdmissionControl.Permit permit = admit(AdmissionControl.Kind.WRITE);
+        long start = metrics.begin();
         try {
-            File file = new File(storageDirectory, filename);
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                fos.write(data);
+            Path temp = tempFor(filename, "." + UUID.randomUUID() + ".part");
+            try {
+                Files.write(temp, data);
+                publish(filename, temp);
+            } finally {
+                Files.deleteIfExists(temp);
             }
+            metrics.received(data.length);
             System.out.println("Received and stored file: " + filename);
         } catch (IOException e) {
+            metrics.requestErrors.increment();
             throw new RemoteException("Error saving file", e);
+        } finally {
+            metrics.endWrite(start);
+            permit.close();
+        }
+    }
+
+    @Override
+    public String beginReceive(String filename) throws RemoteException {
+        String uploadId = UUID.randomUUID().toString();
+        try {
+            Path temp = tempFor(filename, "." + uploadId + ".part");
+            FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            uploads.put(uploadId, new UploadSession(filename, temp, channel));
+            System.out.println("Receiving file: " + filename + " (upload " + uploadId + ")");
+            return uploadId;
+        } catch (IOException e) {
+            throw new RemoteException("Error starting upload of " + filename, e);
+        }
+    }
+
+    @Override
+    public void receiveChunk(String uploadId, long offset, byte[] data) throws RemoteException {
+        UploadSession session = uploads.get(uploadId);
+        if (session == null) {
+            throw new RemoteException("Unknown upload: " + uploadId);
+        }
+        AdmissionControl.Permit permit = admit(AdmissionControl.Kind.WRITE);
+        long start = metrics.begin();
+        try {
+            // Positional writes, so chunks may arrive out of order or concurrently
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = offset;
+            session.touch();
+            while (buffer.hasRemaining()) {
+                position += session.channel.write(buffer, position);
+            }
+            metrics.received(data.length);
+        } catch (IOException e) {
+            metrics.requestErrors.increment();
+            throw new RemoteException("Error writing chunk of " + session.filename, e);
+        } finally {
+            metrics.endWrite(start);
+            permit.close();
+        }
+    }
+
+    @Override
+    public void receiveChunkEncoded(String uploadId, long offset, byte[] frame) throws RemoteException {
+        byte[] data;
+        try {
+            data = TransferCodec.decode(frame);
+        } catch (IOException e) {
+            throw new RemoteException("Bad chunk frame for upload " + uploadId, e);
+        }
+        receiveChunk(uploadId, offset, data);
+    }
+
+    @Override
+    public void commitReceive(String uploadId) throws RemoteException {
+        UploadSession session = uploads.remove(uploadId);
+        if (session == null) {
+            throw new RemoteException("Unknown upload: " + uploadId);
+        }
+        try {
+            session.channel.force(false);
+            session.channel.close();
+            publish(session.filename, session.temp);
+            System.out.println("Received and stored file: " + session.filename);
+        } catch (IOException e) {
+            session.discard();
+            throw new RemoteException("Error committing " + session.filename, e);
+        }
+    }
+
+    @Override
+    public void abortReceive(String uploadId) throws RemoteException {
+        UploadSession session = uploads.remove(uploadId);
+        if (session != null) {
+            session.discard();
+            System.out.println("Aborted upload of " + session.filename);
+        }
+    }
+
+    private static class UploadSession {
+        final String filename;
+        final Path temp;
+        final FileChannel channel;
+        // System.nanoTime() of the last write
+        volatile long lastUsed = System.nanoTime();
+
+        UploadSession(String filename, Path temp, FileChannel channel) {
+            this.filename = filename;
+            this.temp = temp;
+            this.channel = channel;
+        }
+
+        void touch() {
+            lastUsed = System.nanoTime();
+        }
+
+        void discard() {
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                System.err.println("Failed to discard partial upload " + temp + ": " + e.getMessage());
+            }
         }
     }
 
@@ -125,13 +1180,15 @@ public class DaemonImpl extends UnicastRemoteObject implements DaemonService {
     }
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: DaemonImpl <daemonId> <storageDirectory>");
+        if (args.length != 2 && args.length != 3) {
+            System.out.println("Usage: DaemonImpl <daemonId> <storageDirectory> [dataPort]");
             return;
         }
 
         try {
-            DaemonImpl daemon = new DaemonImpl(args[0], args[1]);
+            DaemonImpl daemon = args.length == 3
+                    ? new DaemonImpl(args[0], args[1], Integer.parseInt(args[2]))
+                    : new DaemonImpl(args[0], args[1]);
             daemon.start();
         } catch (Exception e) {
             System.err.println("Daemon startup failed: " + e.toString());
@@ -0,0 +1,67 @@
+package com.server.usth.services;
+
+import java.io.Serializable;
+
+// How busy a daemon is, sent with every heartbeat. Requests in flight count chunk reads
+// and writes being served over RMI and the data plane, queued ones those waiting for
+// admission; rates and the read latency cover the time since the previous heartbeat,
+// with a latency of 0 when nothing was read.
+public class DaemonLoad implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int inFlightRequests;
+    private final int queuedRequests;
+    private final int uploads;
+    private final int recoveries;
+    private final long sentBytesPerSecond;
+    private final long receivedBytesPerSecond;
+    private final long readLatencyNanos;
+
+    public DaemonLoad(int inFlightRequests, int queuedRequests, int uploads, int recoveries,
+                      long sentBytesPerSecond, long receivedBytesPerSecond, long readLatencyNanos) {
+        this.inFlightRequests = inFlightRequests;
+        this.queuedRequests = queuedRequests;
+        this.uploads = uploads;
+        this.recoveries = recoveries;
+        this.sentBytesPerSecond = sentBytesPerSecond;
+        this.receivedBytesPerSecond = receivedBytesPerSecond;
+        this.readLatencyNanos = readLatencyNanos;
+    }
+
+    public int getInFlightRequests() {
+        return inFlightRequests;
+    }
+
+    public int getQueuedRequests() {
+        return queuedRequests;
+    }
+
+    public int getUploads() {
+        return uploads;
+    }
+
+    public int getRecoveries() {
+        return recoveries;
+    }
+
+    public long getSentBytesPerSecond() {
+        return sentBytesPerSecond;
+    }
+
+    public long getReceivedBytesPerSecond() {
+        return receivedBytesPerSecond;
+    }
+
+    // Mean time to serve one read since the previous report
+    public long getReadLatencyNanos() {
+        return readLatencyNanos;
+    }
+
+    @Override
+    public String toString() {
+        return inFlightRequests + " requests, " + queuedRequests + " queued, " + uploads + " uploads, "
+                + recoveries + " recoveries, "
+                + sentBytesPerSecond + " B/s out, " + receivedBytesPerSecond + " B/s in, "
+                + readLatencyNanos / 1000 + " us/read";
+    }
+}
@@ -0,0 +1,97 @@
+package com.server.usth.services;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// A daemon's probes, labelled with its id so several daemons can share a process.
+// Requests are also tracked for the load reported to the directory, which does not
+// depend on metrics being enabled: begin() a request and end it with endRead/endWrite.
+class DaemonMetrics {
+    final Metrics.Histogram readLatency;
+    final Metrics.Histogram writeLatency;
+    final Metrics.Counter bytesSent;
+    final Metrics.Counter bytesReceived;
+    final Metrics.Counter requestErrors;
+    final Metrics.Counter recoveredFiles;
+    final Metrics.Counter recoveryFailures;
+    final Metrics.Counter recoveredBytes;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    // Totals at the previous load report
+    private long reportedAt = System.nanoTime();
+    private long reportedSent;
+    private long reportedReceived;
+    private long reportedReads;
+    private long reportedReadNanos;
+
+    DaemonMetrics(String daemonId) {
+        readLatency = Metrics.timer("daemon_read_seconds",
+                "Time to serve a chunk read over RMI or the data plane", "daemon", daemonId);
+        writeLatency = Metrics.timer("daemon_write_seconds",
+                "Time to store a received chunk", "daemon", daemonId);
+        bytesSent = Metrics.counter("daemon_sent_bytes_total",
+                "File bytes served to readers", "daemon", daemonId);
+        bytesReceived = Metrics.counter("daemon_received_bytes_total",
+                "File bytes received from writers", "daemon", daemonId);
+        requestErrors = Metrics.counter("daemon_request_errors_total",
+                "Chunk reads and writes that failed", "daemon", daemonId);
+        recoveredFiles = Metrics.counter("daemon_recovered_files_total",
+                "Files recovered or replicated from other daemons", "daemon", daemonId);
+        recoveryFailures = Metrics.counter("daemon_recovery_failures_total",
+                "Files that could not be recovered from any daemon", "daemon", daemonId);
+        recoveredBytes = Metrics.counter("daemon_recovered_bytes_total",
+                "Bytes fetched from other daemons by recovery and replication", "daemon", daemonId);
+    }
+
+    // Returns the start time to pass to endRead or endWrite
+    long begin() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void endRead(long start) {
+        inFlight.decrementAndGet();
+        reads.increment();
+        readNanos.add(System.nanoTime() - start);
+        readLatency.recordSince(start);
+    }
+
+    void endWrite(long start) {
+        inFlight.decrementAndGet();
+        writeLatency.recordSince(start);
+    }
+
+    void sent(long bytes) {
+        sent.add(bytes);
+        bytesSent.add(bytes);
+    }
+
+    void received(long bytes) {
+        received.add(bytes);
+        bytesReceived.add(bytes);
+    }
+
+    // Load since the previous call
+    synchronized DaemonLoad load(int queued, int uploads, int recoveries) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - reportedAt) / 1e9;
+        long sentTotal = sent.sum();
+        long receivedTotal = received.sum();
+        long readTotal = reads.sum();
+        long readNanosTotal = readNanos.sum();
+        long newReads = readTotal - reportedReads;
+        DaemonLoad load = new DaemonLoad(inFlight.get(), queued, uploads, recoveries,
+                (long) ((sentTotal - reportedSent) / seconds), (long) ((receivedTotal - reportedReceived) / seconds),
+                newReads == 0 ? 0 : (readNanosTotal - reportedReadNanos) / newReads);
+        reportedAt = now;
+        reportedSent = sentTotal;
+        reportedReceived = receivedTotal;
+        reportedReads = readTotal;
+        reportedReadNanos = readNanosTotal;
+        return load;
+    }
+}
@@ -5,16 +5,60 @@ import com.server.usth.impl.Directory;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 
 public interface DaemonService extends Remote {
     byte[] downloadChunk(String filename, long offset, int size) throws RemoteException;
+    // Several ranges in one round trip; the result holds one array per requested range
+    byte[][] downloadChunks(String filename, long[] offsets, int[] sizes) throws RemoteException;
     long getFileSize(String filename) throws RemoteException;
+    // Size plus the first firstChunkSize bytes, in one round trip
+    FileHead getFileHead(String filename, int firstChunkSize) throws RemoteException;
+    // Hex SHA-256 of the stored file; identical replicas return the same value
+    String getFileDigest(String filename) throws RemoteException;
     void receiveFile(String filename, byte[] data) throws RemoteException;
+
+    // Compressed transfers: chunks travel as TransferCodec frames. The caller picks the
+    // Deflate level it wants; the daemon sends a chunk raw when it does not compress.
+    byte[] downloadChunkEncoded(String filename, long offset, int size, int compressionLevel) throws RemoteException;
+    void receiveChunkEncoded(String uploadId, long offset, byte[] frame) throws RemoteException;
+
+    // Chunked receive: begin returns an upload id, chunks are written at their offset,
+    // commit atomically publishes the file under its final name.
+    String beginReceive(String filename) throws RemoteException;
+    void receiveChunk(String uploadId, long offset, byte[] data) throws RemoteException;
+    void commitReceive(String uploadId) throws RemoteException;
+    void abortReceive(String uploadId) throws RemoteException;
     String getDaemonId() throws RemoteException;
+
+    // Placement moves: replicate pulls the file from the first source that can serve it
+    void replicate(String filename, List<DaemonService> sources) throws RemoteException;
+    void deleteFile(String filename) throws RemoteException;
+
+    // Content-addressed storage, only supported by daemons running with -Ddaemon.storage=chunks
+    boolean isChunkStore() throws RemoteException;
+    Set<String> missingChunks(Collection<String> hashes) throws RemoteException;
+    void storeChunk(String hash, byte[] data) throws RemoteException;
+    void commitManifest(FileManifest manifest) throws RemoteException;
+    // Null when the daemon stores the file whole
+    FileManifest getManifest(String filename) throws RemoteException;
+
+    // Merkle tree over the SHA-256 of each chunkSize chunk of the stored file, see MerkleTree.
+    // Returns the hashes of the given nodes at depth (0 = root) for anti-entropy comparisons.
+    byte[][] getMerkleNodes(String filename, int chunkSize, int depth, int[] indexes) throws RemoteException;
+
+    // Address of the daemon's bulk data plane, or null if it only serves over RMI
+    InetSocketAddress getDataEndpoint() throws RemoteException;
+
+    // The daemon's transfer, recovery and storage probes, see Metrics
+    Metrics.Snapshot getMetrics() throws RemoteException;
 }
 
@@ -0,0 +1,276 @@
+package com.server.usth.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Client side of DataPlaneServer. Keeps a pool of idle connections per daemon
+// endpoint; a connection is returned to the pool only after a clean exchange.
+// A daemon that turns a request away raises DaemonBusyException.
+public class DataPlaneClient implements AutoCloseable {
+    private static final int MAX_IDLE_PER_ENDPOINT = 8;
+
+    private final Map<InetSocketAddress, Queue<SocketChannel>> idle = new ConcurrentHashMap<>();
+    private final boolean background;
+
+    public DataPlaneClient() {
+        this(false);
+    }
+
+    // Reads by a background client are served within the daemons' recovery budget,
+    // after client downloads
+    public DataPlaneClient(boolean background) {
+        this.background = background;
+    }
+
+    // Receive a file region straight into target at targetPosition
+    public long read(InetSocketAddress endpoint, String filename, long offset, long length,
+                     FileChannel target, long targetPosition) throws IOException {
+        SocketChannel socket = borrow(endpoint);
+        boolean clean = false;
+        try {
+            long count = checkCount(sendReadRequest(socket, filename, offset, length), length);
+            receive(socket, filename, target, targetPosition, count);
+            clean = true;
+            return count;
+        } finally {
+            giveBack(endpoint, socket, clean);
+        }
+    }
+
+    // Pipelined read of several regions over one connection: all requests go out before
+    // the first response is read, so the batch costs one round trip. Each region lands
+    // in target at its own offset; returns the bytes received per region.
+    public long[] read(InetSocketAddress endpoint, String filename, long[] offsets, int[] lengths,
+                       FileChannel target) throws IOException {
+        SocketChannel socket = borrow(endpoint);
+        boolean clean = false;
+        try {
+            // Requests are a few dozen bytes each, so writing them all cannot block on responses
+            for (int i = 0; i < offsets.length; i++) {
+                DataPlaneServer.writeFully(socket, header(DataPlaneServer.OP_READ, filename, offsets[i], lengths[i]));
+            }
+            long[] received = new long[offsets.length];
+            ByteBuffer count = ByteBuffer.allocate(8);
+            for (int i = 0; i < offsets.length; i++) {
+                readStatus(socket);
+                count.clear();
+                DataPlaneServer.readFully(socket, count, false);
+                received[i] = checkCount(count.getLong(0), lengths[i]);
+                receive(socket, filename, target, offsets[i], received[i]);
+            }
+            clean = true;
+            return received;
+        } finally {
+            giveBack(endpoint, socket, clean);
+        }
+    }
+
+    // Receive a file region into a heap array, for callers that need the bytes
+    public byte[] read(InetSocketAddress endpoint, String filename, long offset, int length) throws IOException {
+        SocketChannel socket = borrow(endpoint);
+        boolean clean = false;
+        try {
+            long count = checkCount(sendReadRequest(socket, filename, offset, length), length);
+            ByteBuffer buffer = ByteBuffer.allocate((int) count);
+            DataPlaneServer.readFully(socket, buffer, false);
+            clean = true;
+            return buffer.array();
+        } finally {
+            giveBack(endpoint, socket, clean);
+        }
+    }
+
+    // A daemon may answer short at the end of the file, never with more than was asked for
+    private static long checkCount(long count, long length) throws IOException {
+        if (count < 0 || count > length) {
+            throw new IOException("Daemon answered " + count + " bytes for a read of " + length);
+        }
+        return count;
+    }
+
+    // Receive a file region as a TransferCodec frame, compressed at level when it pays off,
+    // and return the decoded bytes
+    public byte[] readEncoded(InetSocketAddress endpoint, String filename, long offset, int length,
+                              int level) throws IOException {
+        SocketChannel socket = borrow(endpoint);
+        boolean clean = false;
+        try {
+            ByteBuffer request = header(DataPlaneServer.OP_READ_ENCODED, filename, offset, length, 1);
+            request.put(request.limit() - 1, (byte) level);
+            DataPlaneServer.writeFully(socket, request);
+            readStatus(socket);
+            ByteBuffer count = ByteBuffer.allocate(8);
+            DataPlaneServer.readFully(socket, count, false);
+            if (count.getLong(0) < 0 || count.getLong(0) > TransferCodec.MAX_FRAME_SIZE) {
+                throw new IOException("Daemon answered with a frame of " + count.getLong(0) + " bytes");
+            }
+            ByteBuffer frame = ByteBuffer.allocate((int) count.getLong(0));
+            DataPlaneServer.readFully(socket, frame, false);
+            clean = true;
+            return TransferCodec.decode(frame.array());
+        } finally {
+            giveBack(endpoint, socket, clean);
+        }
+    }
+
+    // Write a TransferCodec frame into an open upload session at offset
+    public void writeEncoded(InetSocketAddress endpoint, String uploadId, long offset, byte[] frame) throws IOException {
+        SocketChannel socket = borrow(endpoint);
+        boolean clean = false;
+        try {
+            DataPlaneServer.writeFully(socket, header(DataPlaneServer.OP_WRITE_ENCODED, uploadId, offset, frame.length));
+            DataPlaneServer.writeFully(socket, ByteBuffer.wrap(frame));
+            readStatus(socket);
+            clean = true;
+        } finally {
+            giveBack(endpoint, socket, clean);
+        }
+    }
+
+    // Write data into an open upload session at offset
+    public void write(InetSocketAddress endpoint, String uploadId, long offset, ByteBuffer data) throws IOException {
+        SocketChannel socket = borrow(endpoint);
+        boolean clean = false;
+        try {
+            DataPlaneServer.writeFully(socket, header(DataPlaneServer.OP_WRITE, uploadId, offset, data.remaining()));
+            DataPlaneServer.writeFully(socket, data);
+            readStatus(socket);
+            clean = true;
+        } finally {
+            giveBack(endpoint, socket, clean);
+        }
+    }
+
+    // Zero-copy send of a local file region into an upload session
+    public void write(InetSocketAddress endpoint, String uploadId, long offset,
+                      FileChannel source, long sourcePosition, long length) throws IOException {
+        SocketChannel socket = borrow(endpoint);
+        boolean clean = false;
+        try {
+            DataPlaneServer.writeFully(socket, header(DataPlaneServer.OP_WRITE, uploadId, offset, length));
+            long position = sourcePosition;
+            long end = sourcePosition + length;
+            while (position < end) {
+                long n = source.transferTo(position, end - position, socket);
+                if (n <= 0) {
+                    throw new EOFException("Source ended before " + length + " bytes were sent");
+                }
+                position += n;
+            }
+            readStatus(socket);
+            clean = true;
+        } finally {
+            giveBack(endpoint, socket, clean);
+        }
+    }
+
+    private long sendReadRequest(SocketChannel socket, String filename, long offset, long length) throws IOException {
+        DataPlaneServer.writeFully(socket, header(DataPlaneServer.OP_READ, filename, offset, length));
+        readStatus(socket);
+        ByteBuffer count = ByteBuffer.allocate(8);
+        DataPlaneServer.readFully(socket, count, false);
+        return count.getLong(0);
+    }
+
+    private static void receive(SocketChannel socket, String filename, FileChannel target,
+                                long targetPosition, long count) throws IOException {
+        long position = targetPosition;
+        long end = targetPosition + count;
+        while (position < end) {
+            long n = target.transferFrom(socket, position, end - position);
+            if (n <= 0) {
+                throw new EOFException("Data plane closed while reading " + filename);
+            }
+            position += n;
+        }
+    }
+
+    private static void readStatus(SocketChannel socket) throws IOException {
+        ByteBuffer status = ByteBuffer.allocate(1);
+        DataPlaneServer.readFully(socket, status, false);
+        if (status.get(0) == DataPlaneServer.STATUS_BUSY) {
+            ByteBuffer retryAfter = ByteBuffer.allocate(8);
+            DataPlaneServer.readFully(socket, retryAfter, false);
+            throw new DaemonBusyException("Daemon busy, retry after " + retryAfter.getLong(0) + " ms",
+                    retryAfter.getLong(0));
+        }
+        if (status.get(0) != DataPlaneServer.STATUS_OK) {
+            ByteBuffer length = ByteBuffer.allocate(2);
+            DataPlaneServer.readFully(socket, length, false);
+            ByteBuffer message = ByteBuffer.allocate(length.getShort(0) & 0xFFFF);
+            DataPlaneServer.readFully(socket, message, false);
+            // The error response is complete, so the connection is still usable,
+            // but callers treat any failure as dirty and close it anyway
+            throw new IOException(new String(message.array(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private ByteBuffer header(byte op, String name, long offset, long length) {
+        return header(op, name, offset, length, 0);
+    }
+
+    // extra bytes are left zeroed after the fixed header for op-specific fields
+    private ByteBuffer header(byte op, String name, long offset, long length, int extra) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Name of " + nameBytes.length + " bytes is too long for the data plane");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(3 + nameBytes.length + 16 + extra);
+        buffer.put(background ? (byte) (op | DataPlaneServer.FLAG_BACKGROUND) : op).putShort((short) nameBytes.length).put(nameBytes).putLong(offset).putLong(length);
+        buffer.position(buffer.capacity()).flip();
+        return buffer;
+    }
+
+    private SocketChannel borrow(InetSocketAddress endpoint) throws IOException {
+        Queue<SocketChannel> pool = idle.get(endpoint);
+        if (pool != null) {
+            SocketChannel socket;
+            while ((socket = pool.poll()) != null) {
+                if (socket.isOpen()) {
+                    return socket;
+                }
+            }
+        }
+        SocketChannel socket = SocketChannel.open(endpoint);
+        socket.socket().setTcpNoDelay(true);
+        return socket;
+    }
+
+    private void giveBack(InetSocketAddress endpoint, SocketChannel socket, boolean clean) {
+        if (clean) {
+            Queue<SocketChannel> pool = idle.computeIfAbsent(endpoint, k -> new ConcurrentLinkedQueue<>());
+            if (pool.size() < MAX_IDLE_PER_ENDPOINT) {
+                pool.offer(socket);
+                return;
+            }
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing data plane connection: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Queue<SocketChannel> pool : idle.values()) {
+            SocketChannel socket;
+            while ((socket = pool.poll()) != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Closing idle connections on shutdown
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.server.usth.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Bulk byte transfer for a daemon. RMI stays the control plane (lookup, upload
+// sessions, sizes); file bytes move over plain sockets with transferTo/transferFrom
+// so they never pass through Java serialization or the heap.
+//
+// Wire format, all integers big-endian:
+//   request:  op(1) nameLength(2) name(nameLength, UTF-8) offset(8) length(8) [payload]
+//   response: status(1), then for READ length(8) payload, for errors messageLength(2) message,
+//             for BUSY retryAfterMillis(8)
+// READ names a stored file, WRITE names an upload id from DaemonService.beginReceive.
+// READ_ENCODED is followed by compressionLevel(1) and answers with a TransferCodec frame
+// in place of the raw bytes; WRITE_ENCODED carries a frame as its payload. Encoded
+// transfers go through the heap, so they trade the zero-copy path for fewer bytes sent.
+// Connections are persistent and carry any number of requests.
+//
+// The server listens on the address daemons advertise (java.rmi.server.hostname) and only
+// serves names inside the daemon's storage directory. Encoded requests are bounded by
+// TransferCodec.MAX_FRAME_SIZE; a request with a negative or larger length closes the
+// connection.
+//
+// Every request goes through the daemon's AdmissionControl. One it turns away gets BUSY,
+// after its payload has been drained, and the connection stays usable. A READ op with
+// FLAG_BACKGROUND set comes from another daemon's recovery or replication and runs
+// within the smaller background budget.
+public class DataPlaneServer {
+    static final byte OP_READ = 1;
+    static final byte OP_WRITE = 2;
+    static final byte OP_READ_ENCODED = 3;
+    static final byte OP_WRITE_ENCODED = 4;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte STATUS_BUSY = 2;
+    static final byte FLAG_BACKGROUND = 0x40;
+
+    private final DaemonImpl daemon;
+    private final DaemonMetrics metrics;
+    private final AdmissionControl admission;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "data-plane-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public DataPlaneServer(DaemonImpl daemon, InetSocketAddress address) throws IOException {
+        this.daemon = daemon;
+        this.metrics = daemon.probes();
+        this.admission = daemon.admission();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(address);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        Thread acceptor = new Thread(this::acceptLoop, "data-plane-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Data plane listening on port " + getPort());
+    }
+
+    public void stop() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing data plane: " + e.getMessage());
+        }
+        workers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel socket = serverChannel.accept();
+                socket.socket().setTcpNoDelay(true);
+                workers.submit(() -> serve(socket));
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    System.err.println("Data plane accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(SocketChannel socket) {
+        try (socket) {
+            // Clients are queued fairly by host, however many connections each one opens
+            String client = ((InetSocketAddress) socket.getRemoteAddress()).getAddress().getHostAddress();
+            ByteBuffer head = ByteBuffer.allocate(3);
+            while (true) {
+                head.clear();
+                if (!readFully(socket, head, true)) {
+                    return; // Client closed the connection
+                }
+                boolean background = (head.get(0) & FLAG_BACKGROUND) != 0;
+                byte op = (byte) (head.get(0) & ~FLAG_BACKGROUND);
+                ByteBuffer rest = ByteBuffer.allocate((head.getShort(1) & 0xFFFF) + 16);
+                readFully(socket, rest, false);
+                String name = new String(rest.array(), 0, rest.capacity() - 16, StandardCharsets.UTF_8);
+                long offset = rest.getLong(rest.capacity() - 16);
+                long length = rest.getLong(rest.capacity() - 8);
+
+                boolean read = op == OP_READ || op == OP_READ_ENCODED;
+                if (!read && op != OP_WRITE && op != OP_WRITE_ENCODED) {
+                    sendError(socket, "Unknown op " + op);
+                    return;
+                }
+                boolean encoded = op == OP_READ_ENCODED || op == OP_WRITE_ENCODED;
+                if (offset < 0 || length < 0 || (encoded && length > TransferCodec.MAX_FRAME_SIZE)) {
+                    // The payload cannot be skipped safely, so the connection goes
+                    sendError(socket, "Bad range " + offset + "+" + length);
+                    return;
+                }
+                int level = 0;
+                if (op == OP_READ_ENCODED) {
+                    ByteBuffer levelByte = ByteBuffer.allocate(1);
+                    readFully(socket, levelByte, false);
+                    level = levelByte.get(0);
+                }
+                AdmissionControl.Kind kind = !read ? AdmissionControl.Kind.WRITE
+                        : background ? AdmissionControl.Kind.BACKGROUND : AdmissionControl.Kind.READ;
+                AdmissionControl.Permit permit;
+                try {
+                    permit = admission.admit(kind, client);
+                } catch (DaemonBusyException e) {
+                    if (!read) {
+                        drain(socket, length);
+                    }
+                    sendBusy(socket, e.getRetryAfterMillis());
+                    continue;
+                }
+                // Ended however the request goes, so the load reported to the directory stays accurate
+                long start = metrics.begin();
+                try {
+                    if (op == OP_READ) {
+                        handleRead(socket, name, offset, length);
+                    } else if (op == OP_WRITE) {
+                        handleWrite(socket, name, offset, length);
+                    } else if (op == OP_READ_ENCODED) {
+                        handleReadEncoded(socket, name, offset, length, level);
+                    } else {
+                        handleWriteEncoded(socket, name, offset, length);
+                    }
+                } finally {
+                    if (read) {
+                        metrics.endRead(start);
+                    } else {
+                        metrics.endWrite(start);
+                    }
+                    permit.close();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Data plane connection closed: " + e.getMessage());
+        }
+    }
+
+    private void handleRead(SocketChannel socket, String filename, long offset, long length) throws IOException {
+        long size;
+        try {
+            size = daemon.localSize(filename);
+        } catch (IOException e) {
+            metrics.requestErrors.increment();
+            sendError(socket, "Cannot read " + filename + ": " + e.getMessage());
+            return;
+        }
+        long count = Math.max(0, Math.min(length, size - offset));
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.put(STATUS_OK).putLong(count).flip();
+        writeFully(socket, header);
+
+        long sent = daemon.transferRange(filename, offset, count, socket);
+        if (sent != count) {
+            // The file shrank mid-transfer; the stream is out of sync, drop the connection
+            throw new IOException("Short transfer of " + filename + ": " + sent + " of " + count);
+        }
+        metrics.sent(sent);
+    }
+
+    private void handleReadEncoded(SocketChannel socket, String filename, long offset, long length,
+                                   int level) throws IOException {
+        byte[] frame;
+        try {
+            // The request length is bounded by MAX_FRAME_SIZE, so this fits an int
+            long count = Math.max(0, Math.min(Math.min(length, TransferCodec.MAX_CHUNK_SIZE),
+                    daemon.localSize(filename) - offset));
+            byte[] data = daemon.readRange(filename, offset, (int) count);
+            frame = TransferCodec.encode(data, 0, data.length, level);
+        } catch (IOException e) {
+            metrics.requestErrors.increment();
+            sendError(socket, "Cannot read " + filename + ": " + e.getMessage());
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.put(STATUS_OK).putLong(frame.length).flip();
+        writeFully(socket, header);
+        writeFully(socket, ByteBuffer.wrap(frame));
+        metrics.sent(frame.length);
+    }
+
+    private void handleWriteEncoded(SocketChannel socket, String uploadId, long offset, long length) throws IOException {
+        // Checked before anything is allocated for the payload
+        FileChannel target = daemon.getUploadChannel(uploadId);
+        if (target == null) {
+            drain(socket, length);
+            metrics.requestErrors.increment();
+            sendError(socket, "Unknown upload: " + uploadId);
+            return;
+        }
+        ByteBuffer frame = ByteBuffer.allocate((int) length);
+        readFully(socket, frame, false);
+        ByteBuffer data;
+        try {
+            data = ByteBuffer.wrap(TransferCodec.decode(frame.array()));
+        } catch (IOException e) {
+            metrics.requestErrors.increment();
+            sendError(socket, "Bad chunk frame for upload " + uploadId + ": " + e.getMessage());
+            return;
+        }
+        long position = offset;
+        while (data.hasRemaining()) {
+            position += target.write(data, position);
+        }
+        metrics.received(position - offset);
+        ByteBuffer status = ByteBuffer.allocate(1);
+        status.put(STATUS_OK).flip();
+        writeFully(socket, status);
+    }
+
+    private void handleWrite(SocketChannel socket, String uploadId, long offset, long length) throws IOException {
+        FileChannel target = daemon.getUploadChannel(uploadId);
+        if (target == null) {
+            drain(socket, length);
+            metrics.requestErrors.increment();
+            sendError(socket, "Unknown upload: " + uploadId);
+            return;
+        }
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            long n = target.transferFrom(socket, position, end - position);
+            if (n <= 0) {
+                throw new EOFException("Connection closed during upload " + uploadId);
+            }
+            position += n;
+        }
+        metrics.received(length);
+        ByteBuffer status = ByteBuffer.allocate(1);
+        status.put(STATUS_OK).flip();
+        writeFully(socket, status);
+    }
+
+    // Reads and discards a payload so the connection stays usable
+    private static void drain(SocketChannel socket, long length) throws IOException {
+        ByteBuffer sink = ByteBuffer.allocate(8192);
+        long remaining = length;
+        while (remaining > 0) {
+            sink.clear().limit((int) Math.min(sink.capacity(), remaining));
+            int n = socket.read(sink);
+            if (n < 0) {
+                throw new EOFException("Connection closed while draining payload");
+            }
+            remaining -= n;
+        }
+    }
+
+    private static void sendBusy(SocketChannel socket, long retryAfterMillis) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(9);
+        buffer.put(STATUS_BUSY).putLong(retryAfterMillis).flip();
+        writeFully(socket, buffer);
+    }
+
+    private static void sendError(SocketChannel socket, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, Short.MAX_VALUE);
+        ByteBuffer buffer = ByteBuffer.allocate(3 + length);
+        buffer.put(STATUS_ERROR).putShort((short) length).put(bytes, 0, length).flip();
+        writeFully(socket, buffer);
+    }
+
+    static boolean readFully(SocketChannel socket, ByteBuffer buffer, boolean eofAllowed) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (socket.read(buffer) < 0) {
+                if (eofAllowed && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed mid-message");
+            }
+        }
+        return true;
+    }
+
+    static void writeFully(SocketChannel socket, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+}
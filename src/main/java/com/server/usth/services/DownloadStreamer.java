@@ -0,0 +1,276 @@
+package com.server.usth.services;
+
+import com.server.usth.impl.Directory;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Streams a stored file, or a byte range of it, to an HTTP response. Chunks are fetched
+// ahead of the writer from all replicas in parallel, but never more than prefetch-chunks
+// at a time, so memory per download is fixed and the first byte goes out as soon as the
+// first chunk arrives. Erasure-coded files are streamed stripe by stripe. Every chunk
+// goes through the hot-chunk cache, so popular files are served without a daemon round trip.
+@Service
+public class DownloadStreamer {
+
+    @Value("${download.chunk-size:1048576}")
+    private int chunkSize;
+
+    @Value("${download.prefetch-chunks:8}")
+    private int prefetchChunks;
+
+    @Autowired
+    private Directory directory;
+
+    @Autowired
+    private ChunkCache cache;
+
+    private final TransferExecutor transfers = TransferExecutor.shared();
+    private final DataPlaneClient dataPlaneClient = new DataPlaneClient();
+
+    private final Metrics.Histogram fetchLatency = Metrics.timer("http_download_chunk_fetch_seconds",
+            "Time to fetch a chunk missing from the cache from the daemons");
+    private final Metrics.Counter fetchFailures = Metrics.counter("http_download_fetch_failures_total",
+            "Chunk fetches from a daemon that failed and moved on to the next replica");
+    private final Metrics.Counter bytesSent = Metrics.counter("http_download_sent_bytes_total",
+            "Bytes written to HTTP download responses");
+
+    // Null when no live daemon holds the file
+    public Download open(String filename) throws IOException {
+        // Read before the layout so a concurrent re-registration can only make the version newer
+        long version = directory.getFileVersion(filename);
+        ErasureLayout layout = directory.getErasureLayout(filename);
+        if (layout != null) {
+            return new ErasureDownload(layout, version);
+        }
+        List<DaemonService> daemons = directory.getDaemonsForFile(filename);
+        if (daemons.isEmpty()) {
+            return null;
+        }
+        // The upload manifest is authoritative; a replica's own size may be stale
+        FileManifest manifest = directory.getManifest(filename);
+        long size = manifest != null ? manifest.getSize() : daemons.get(0).getFileSize(filename);
+        List<String> daemonIds = new ArrayList<>();
+        List<InetSocketAddress> endpoints = new ArrayList<>();
+        for (DaemonService daemon : daemons) {
+            daemonIds.add(daemon.getDaemonId());
+            InetSocketAddress endpoint = null;
+            try {
+                endpoint = daemon.getDataEndpoint();
+            } catch (RemoteException e) {
+                // Fall back to RMI for this daemon
+            }
+            endpoints.add(endpoint);
+        }
+        // Chunks are checked against the manifest when they line up with its chunks
+        FileManifest verifyWith = manifest != null && manifest.getChunkSize() == chunkSize ? manifest : null;
+        return new ReplicaDownload(filename, version, size, daemons, daemonIds, endpoints, verifyWith);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dataPlaneClient.close();
+    }
+
+    public abstract class Download {
+        private final String filename;
+        private final long version;
+        private final long size;
+        private final int unit;
+
+        Download(String filename, long version, long size, int unit) {
+            this.filename = filename;
+            this.version = version;
+            this.size = size;
+            this.unit = unit;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        // Chunk index covers bytes [index * unit, min((index + 1) * unit, size))
+        abstract byte[] fetch(long index) throws IOException;
+
+        // The daemon a fetch of the chunk goes to first, whose transfer permits it takes;
+        // null when the fetch waits on requests to several daemons
+        abstract String daemonFor(long index);
+
+        void close() {
+        }
+
+        private byte[] timedFetch(long index) throws IOException {
+            long start = Metrics.start();
+            try {
+                return fetch(index);
+            } finally {
+                fetchLatency.recordSince(start);
+            }
+        }
+
+        // Writes bytes first..last inclusive
+        public void writeTo(OutputStream out, long first, long last) throws IOException {
+            long firstChunk = first / unit;
+            long lastChunk = last / unit;
+            ArrayDeque<Future<byte[]>> window = new ArrayDeque<>();
+            long next = firstChunk;
+            try {
+                for (long index = firstChunk; index <= lastChunk; index++) {
+                    while (next <= lastChunk && window.size() < Math.max(1, prefetchChunks)) {
+                        long chunk = next++;
+                        Callable<byte[]> fetch = () -> cache.get(filename, version, chunk, () -> timedFetch(chunk));
+                        String daemonId = daemonFor(chunk);
+                        window.add(daemonId != null ? transfers.submit(daemonId, fetch) : transfers.submit(fetch));
+                    }
+                    byte[] data = await(window.poll());
+                    long start = index * unit;
+                    int from = (int) Math.max(0, first - start);
+                    int to = (int) Math.min(data.length, last + 1 - start);
+                    out.write(data, from, to - from);
+                    bytesSent.add(to - from);
+                }
+                out.flush();
+            } finally {
+                for (Future<byte[]> pending : window) {
+                    pending.cancel(true);
+                }
+                close();
+            }
+        }
+
+        private byte[] await(Future<byte[]> future) throws IOException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Chunk download failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted");
+            }
+        }
+    }
+
+    private class ReplicaDownload extends Download {
+        private final String filename;
+        private final List<DaemonService> daemons;
+        private final List<String> daemonIds;
+        private final List<InetSocketAddress> endpoints;
+        private final FileManifest manifest;
+
+        ReplicaDownload(String filename, long version, long size, List<DaemonService> daemons,
+                        List<String> daemonIds, List<InetSocketAddress> endpoints, FileManifest manifest) {
+            super(filename, version, size, chunkSize);
+            this.filename = filename;
+            this.daemons = daemons;
+            this.daemonIds = daemonIds;
+            this.endpoints = endpoints;
+            this.manifest = manifest;
+        }
+
+        // Chunks are spread round-robin over the replicas; a failed or corrupt chunk moves
+        // to the next one.
+        // When the last replica tried was busy, all of them are tried again after its hint.
+        @Override
+        byte[] fetch(long index) throws IOException {
+            long offset = index * chunkSize;
+            int length = (int) Math.min(chunkSize, getSize() - offset);
+            IOException failure = null;
+            int rounds = 0;
+            do {
+                for (int attempt = 0; attempt < daemons.size(); attempt++) {
+                    int i = (int) ((index + attempt) % daemons.size());
+                    try {
+                        byte[] data = endpoints.get(i) != null
+                                ? dataPlaneClient.read(endpoints.get(i), filename, offset, length)
+                                : daemons.get(i).downloadChunk(filename, offset, length);
+                        if (data.length != length) {
+                            failure = new IOException("Short chunk at " + offset + ": " + data.length + " of " + length);
+                        } else if (manifest != null && !manifest.getChunkHashes().get((int) index)
+                                .equals(ChunkStore.sha256Hex(data, 0, data.length))) {
+                            failure = new IOException("Chunk " + index + " of " + filename + " does not match its hash");
+                        } else {
+                            return data;
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    fetchFailures.increment();
+                }
+            } while (rounds++ < DaemonBusyException.MAX_RETRIES && DaemonBusyException.backOff(failure));
+            throw failure;
+        }
+
+        @Override
+        String daemonFor(long index) {
+            return daemonIds.get((int) (index % daemons.size()));
+        }
+    }
+
+    private class ErasureDownload extends Download {
+        private final ErasureLayout layout;
+        private final Set<Integer> dataShards;
+        private ShardReader reader;
+
+        ErasureDownload(ErasureLayout layout, long version) {
+            super(layout.getFilename(), version, layout.getSize(), (int) layout.getStripeSize());
+            this.layout = layout;
+            this.dataShards = IntStream.range(0, layout.getDataShards()).boxed().collect(Collectors.toSet());
+        }
+
+        private synchronized ShardReader reader() throws RemoteException {
+            if (reader == null) {
+                List<DaemonService> owners = new ArrayList<>();
+                for (String owner : layout.getShardOwners()) {
+                    owners.add(directory.getDaemon(owner));
+                }
+                reader = new ShardReader(layout, owners);
+            }
+            return reader;
+        }
+
+        // A stripe waits on its shard requests, which ShardReader submits per daemon
+        @Override
+        String daemonFor(long stripe) {
+            return null;
+        }
+
+        @Override
+        byte[] fetch(long stripe) throws IOException {
+            byte[][] shards = reader().readStripe(stripe, dataShards);
+            long offset = stripe * layout.getStripeSize();
+            byte[] data = new byte[(int) Math.min(layout.getStripeSize(), getSize() - offset)];
+            for (int i = 0, position = 0; position < data.length; i++) {
+                int length = Math.min(layout.getBlockSize(), data.length - position);
+                System.arraycopy(shards[i], 0, data, position, length);
+                position += length;
+            }
+            return data;
+        }
+
+        @Override
+        synchronized void close() {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.server.usth.services;
+
+import java.io.Serializable;
+import java.util.List;
+
+// Placement of an erasure-coded file. The file is cut into stripes of dataShards
+// blocks; each stripe gets parityShards parity blocks. Shard i is the concatenation
+// of block i of every stripe and is stored as an ordinary file named
+// shardName(i) on daemon shardOwners.get(i).
+public class ErasureLayout implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String filename;
+    private final long size;
+    private final int dataShards;
+    private final int parityShards;
+    private final int blockSize;
+    private final List<String> shardOwners;
+
+    public ErasureLayout(String filename, long size, int dataShards, int parityShards, int blockSize,
+                         List<String> shardOwners) {
+        this.filename = filename;
+        this.size = size;
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.blockSize = blockSize;
+        this.shardOwners = List.copyOf(shardOwners);
+    }
+
+    public ErasureLayout withSize(long size) {
+        return new ErasureLayout(filename, size, dataShards, parityShards, blockSize, shardOwners);
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public int getTotalShards() {
+        return dataShards + parityShards;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public List<String> getShardOwners() {
+        return shardOwners;
+    }
+
+    public long getStripeSize() {
+        return (long) dataShards * blockSize;
+    }
+
+    public long getStripeCount() {
+        return (size + getStripeSize() - 1) / getStripeSize();
+    }
+
+    public String shardName(int index) {
+        return shardName(filename, index);
+    }
+
+    public static String shardName(String filename, int index) {
+        return filename + ".shard" + index;
+    }
+}
@@ -0,0 +1,267 @@
+package com.server.usth.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cache of open read-only FileChannels. Reads are positional, so any number of
+// threads can share one channel without seeking or locking, and a hit takes no lock
+// either: it is a map lookup and a reference count. Handles are reference counted:
+// an evicted or invalidated channel is closed once its last reader releases it.
+//
+// Eviction is approximately least recently used. Once a miss takes the cache over
+// capacity, that thread drops the handles with the oldest access stamps; other
+// threads carry on meanwhile and the cache may briefly hold a few handles too many,
+// which the evicting thread trims too before it stops.
+public class FileHandleCache {
+    private final int capacity;
+    private final ConcurrentHashMap<Path, Handle> handles = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FileHandleCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public byte[] read(Path path, long offset, int size) throws IOException {
+        Handle handle = acquire(path);
+        try {
+            FileChannel channel = handle.channel;
+            long available = channel.size() - offset;
+            int length = (int) Math.max(0, Math.min(size, available));
+            byte[] chunk = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    // File shrank underneath us; hand back what was read
+                    return Arrays.copyOf(chunk, buffer.position());
+                }
+                position += n;
+            }
+            return chunk;
+        } finally {
+            handle.release();
+        }
+    }
+
+    // Reads a byte range that is spread over several files, e.g. chunks of a chunk-store file
+    public byte[] read(List<Region> regions) throws IOException {
+        long total = 0;
+        for (Region region : regions) {
+            total += region.length;
+        }
+        byte[] data = new byte[Math.toIntExact(total)];
+        int filled = 0;
+        for (Region region : regions) {
+            Handle handle = acquire(region.path);
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(data, filled, (int) region.length);
+                long position = region.offset;
+                while (buffer.hasRemaining()) {
+                    int n = handle.channel.read(buffer, position);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of " + region.path);
+                    }
+                    position += n;
+                }
+            } finally {
+                handle.release();
+            }
+            filled += (int) region.length;
+        }
+        return data;
+    }
+
+    public long transferTo(List<Region> regions, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        for (Region region : regions) {
+            long n = transferTo(region.path, region.offset, region.length, target);
+            sent += n;
+            if (n < region.length) {
+                break;
+            }
+        }
+        return sent;
+    }
+
+    // Zero-copy send of a file region; returns the number of bytes written to target
+    public long transferTo(Path path, long offset, long count, WritableByteChannel target) throws IOException {
+        Handle handle = acquire(path);
+        try {
+            FileChannel channel = handle.channel;
+            long end = Math.min(offset + count, channel.size());
+            long position = offset;
+            while (position < end) {
+                long n = channel.transferTo(position, end - position, target);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+            }
+            return position - offset;
+        } finally {
+            handle.release();
+        }
+    }
+
+    public long size(Path path) throws IOException {
+        Handle handle = acquire(path);
+        try {
+            return handle.channel.size();
+        } finally {
+            handle.release();
+        }
+    }
+
+    private Handle acquire(Path path) throws IOException {
+        Handle handle = handles.get(path);
+        // A handle evicted between the lookup and the retain is already closing
+        if (handle != null && handle.retain()) {
+            hits.increment();
+            return handle;
+        }
+        misses.increment();
+
+        while (true) {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            Handle opened = new Handle(channel);
+            Handle existing = handles.putIfAbsent(path, opened);
+            if (existing == null) {
+                evict();
+                return opened;
+            }
+            // Another thread opened it first
+            channel.close();
+            if (existing.retain()) {
+                return existing;
+            }
+            // That one is being evicted; take its place
+            handles.remove(path, existing);
+        }
+    }
+
+    // One thread at a time trims the cache back to capacity, oldest access first. A
+    // thread that finds another one trimming leaves it to that one, which checks again
+    // once done, so handles opened meanwhile do not stay over capacity.
+    private void evict() {
+        while (handles.size() > capacity && evicting.compareAndSet(false, true)) {
+            try {
+                int excess = handles.size() - capacity;
+                if (excess <= 0) {
+                    continue;
+                }
+                List<Map.Entry<Path, Handle>> entries = new ArrayList<>(handles.entrySet());
+                entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+                for (Map.Entry<Path, Handle> eldest : entries.subList(0, Math.min(excess, entries.size()))) {
+                    if (handles.remove(eldest.getKey(), eldest.getValue())) {
+                        eldest.getValue().release();
+                        evictions.increment();
+                    }
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    // Drop the cached channel for a file that was replaced or deleted
+    public void invalidate(Path path) {
+        Handle handle = handles.remove(path);
+        if (handle != null) {
+            handle.release();
+        }
+    }
+
+    public void clear() {
+        for (Path path : new ArrayList<>(handles.keySet())) {
+            invalidate(path);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getOpenHandles() {
+        return handles.size();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + " misses=" + getMisses()
+                + " evictions=" + getEvictions() + " open=" + getOpenHandles();
+    }
+
+    public static class Region {
+        final Path path;
+        final long offset;
+        final long length;
+
+        public Region(Path path, long offset, long length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Handle {
+        final FileChannel channel;
+        // One reference is owned by the cache itself, one by the thread that opened it
+        final AtomicInteger refs = new AtomicInteger(2);
+        // Access stamp for eviction; written without ordering, so only roughly recent
+        volatile long lastUsed = System.nanoTime();
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // False once the handle is closed or closing; it must not be used then
+        boolean retain() {
+            while (true) {
+                int current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + 1)) {
+                    lastUsed = System.nanoTime();
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close cached file handle: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
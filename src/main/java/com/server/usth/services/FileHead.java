@@ -0,0 +1,25 @@
+package com.server.usth.services;
+
+import java.io.Serializable;
+
+// A file's size together with its first bytes, so a download can start without a
+// separate size lookup. Files no larger than the requested first chunk arrive whole.
+public class FileHead implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long size;
+    private final byte[] firstChunk;
+
+    public FileHead(long size, byte[] firstChunk) {
+        this.size = size;
+        this.firstChunk = firstChunk;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public byte[] getFirstChunk() {
+        return firstChunk;
+    }
+}
@@ -0,0 +1,37 @@
+package com.server.usth.services;
+
+import java.io.Serializable;
+
+// A file as found in a daemon's storage. The digest is the hex SHA-256 of the
+// content, or null when the daemon was not asked to hash (daemon.scan.hash).
+public class FileInfo implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String filename;
+    private final long size;
+    private final long modified;
+    private final String digest;
+
+    public FileInfo(String filename, long size, long modified, String digest) {
+        this.filename = filename;
+        this.size = size;
+        this.modified = modified;
+        this.digest = digest;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+}
@@ -0,0 +1,51 @@
+package com.server.usth.services;
+
+import java.io.Serializable;
+import java.util.List;
+
+// Describes a file as an ordered list of fixed-size chunks, each keyed by its SHA-256.
+// Identical chunks in different files or versions share one key, so they are stored
+// and transferred once.
+public class FileManifest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String filename;
+    private final long size;
+    private final int chunkSize;
+    private final List<String> chunkHashes;
+
+    public FileManifest(String filename, long size, int chunkSize, List<String> chunkHashes) {
+        this.filename = filename;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkHashes = List.copyOf(chunkHashes);
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public List<String> getChunkHashes() {
+        return chunkHashes;
+    }
+
+    public int getChunkCount() {
+        return chunkHashes.size();
+    }
+
+    public long chunkOffset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    public int chunkLength(int index) {
+        return (int) Math.min(chunkSize, size - chunkOffset(index));
+    }
+}
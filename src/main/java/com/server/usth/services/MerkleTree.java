@@ -0,0 +1,135 @@
+package com.server.usth.services;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary hash tree over the SHA-256 of each fixed-size chunk of a file. The leaf level
+// is padded with zero hashes to a power of two, so node (depth, index) always has the
+// children (depth + 1, 2 * index) and (depth + 1, 2 * index + 1) and two replicas of the
+// same size have trees of the same shape. Comparing two trees level by level finds the
+// differing chunks in height + 1 round trips.
+public class MerkleTree {
+    private static final byte[] EMPTY = new byte[32];
+
+    // The nodes of the tree compared against, e.g. a peer's tree fetched over RMI
+    public interface Nodes {
+        byte[][] nodes(int depth, int[] indexes) throws IOException;
+    }
+
+    private final long size;
+    private final int chunkSize;
+    private final byte[][][] levels; // levels[0] is the root, levels[height] the leaves
+
+    private MerkleTree(long size, int chunkSize, byte[][][] levels) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.levels = levels;
+    }
+
+    // leaves holds the SHA-256 of every chunk in order
+    public static MerkleTree build(long size, int chunkSize, List<byte[]> leaves) {
+        int height = heightFor(size, chunkSize);
+        byte[][][] levels = new byte[height + 1][][];
+        byte[][] level = new byte[1 << height][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = i < leaves.size() ? leaves.get(i) : EMPTY;
+        }
+        levels[height] = level;
+        for (int depth = height - 1; depth >= 0; depth--) {
+            byte[][] children = levels[depth + 1];
+            byte[][] parents = new byte[children.length / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = combine(children[2 * i], children[2 * i + 1]);
+            }
+            levels[depth] = parents;
+        }
+        return new MerkleTree(size, chunkSize, levels);
+    }
+
+    // The tree an intact copy of the file would have, taken from its upload manifest
+    public static MerkleTree fromManifest(FileManifest manifest) {
+        List<byte[]> leaves = manifest.getChunkHashes().stream().map(HexFormat.of()::parseHex).toList();
+        return build(manifest.getSize(), manifest.getChunkSize(), leaves);
+    }
+
+    public static int chunkCount(long size, int chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    public static int heightFor(long size, int chunkSize) {
+        int chunks = Math.max(1, chunkCount(size, chunkSize));
+        return 32 - Integer.numberOfLeadingZeros(chunks - 1);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getHeight() {
+        return levels.length - 1;
+    }
+
+    public byte[] root() {
+        return levels[0][0];
+    }
+
+    public byte[] leaf(int index) {
+        return levels[getHeight()][index];
+    }
+
+    public byte[][] nodes(int depth, int[] indexes) {
+        byte[][] hashes = new byte[indexes.length][];
+        for (int i = 0; i < indexes.length; i++) {
+            hashes[i] = levels[depth][indexes[i]];
+        }
+        return hashes;
+    }
+
+    // Walks both trees from the root, descending only into differing nodes, and returns
+    // the differing leaves with their hashes in theirs. Both trees must have the same shape.
+    public static Map<Integer, byte[]> diff(MerkleTree ours, Nodes theirs) throws IOException {
+        Map<Integer, byte[]> leaves = new LinkedHashMap<>();
+        int height = ours.getHeight();
+        int[] frontier = {0};
+        for (int depth = 0; depth <= height && frontier.length > 0; depth++) {
+            byte[][] other = theirs.nodes(depth, frontier);
+            byte[][] own = ours.nodes(depth, frontier);
+            List<Integer> next = new ArrayList<>();
+            for (int i = 0; i < frontier.length; i++) {
+                if (Arrays.equals(other[i], own[i])) {
+                    continue;
+                }
+                if (depth == height) {
+                    leaves.put(frontier[i], other[i]);
+                } else {
+                    next.add(2 * frontier[i]);
+                    next.add(2 * frontier[i] + 1);
+                }
+            }
+            frontier = next.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return leaves;
+    }
+
+    private static byte[] combine(byte[] left, byte[] right) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(left);
+            digest.update(right);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
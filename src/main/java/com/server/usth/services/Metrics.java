@@ -0,0 +1,316 @@
+package com.server.usth.services;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Process-wide probes for the hot paths: counters are LongAdders, latencies go into
+// log-linear histograms (HDR-style, 16 buckets per power of two, so any recorded value
+// is off by at most 1/16) kept in an AtomicLongArray, so recording never takes a lock.
+// Probes are created once and held in fields; looking one up again by name and labels
+// returns the same instance.
+//
+// -Dmetrics.enabled=false turns every probe into a no-op: ENABLED is a compile-time
+// constant to the JIT, so the guarded code is removed from the hot path entirely.
+//
+// snapshot() captures everything for export in the Prometheus text format; histograms
+// are exported as summaries with a fixed set of quantiles.
+public final class Metrics {
+    public static final boolean ENABLED = !"false".equals(System.getProperty("metrics.enabled"));
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final Map<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    // Labels are name/value pairs, e.g. counter("x_total", "help", "daemon", "d1")
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series.computeIfAbsent(labelKey(labels), k -> new Counter());
+    }
+
+    // A counter that something else already keeps, read at snapshot time
+    public static void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "counter").series.put(labelKey(labels), new Function(value));
+    }
+
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").series.put(labelKey(labels), new Function(value));
+    }
+
+    // Durations recorded in nanoseconds, exported in seconds
+    public static Histogram timer(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "summary").series.computeIfAbsent(labelKey(labels), k -> new Histogram());
+    }
+
+    // Start of a timed section; pass the result to Histogram.recordSince
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    public static Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (Family family : FAMILIES.values()) {
+            Map<String, String> samples = snapshot.family(family.name, family.type, family.help);
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object probe = series.getValue();
+                if (probe instanceof Histogram) {
+                    ((Histogram) probe).export(family.name, labels, samples);
+                } else {
+                    long value = probe instanceof Counter ? ((Counter) probe).get() : ((Function) probe).value.getAsLong();
+                    samples.put(family.name + braces(labels), Long.toString(value));
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = FAMILIES.computeIfAbsent(name, k -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    private static String labelKey(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                key.append(',');
+            }
+            key.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return key.toString();
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        // Label key -> Counter, Histogram or Function
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Function {
+        final LongSupplier value;
+
+        Function(LongSupplier value) {
+            this.value = value;
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            if (ENABLED) {
+                count.increment();
+            }
+        }
+
+        public void add(long n) {
+            if (ENABLED) {
+                count.add(n);
+            }
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram() {
+        }
+
+        public void recordSince(long start) {
+            if (ENABLED) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        public void record(long value) {
+            if (ENABLED) {
+                long v = Math.max(0, value);
+                buckets.incrementAndGet(bucket(v));
+                sum.add(v);
+            }
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        // Upper bound of the bucket holding the q-th value, in nanoseconds; 0 when empty
+        public long quantile(double q) {
+            long[] counts = counts();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return quantile(counts, total, q);
+        }
+
+        private long[] counts() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        private static long quantile(long[] counts, long total, double q) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        private void export(String name, String labels, Map<String, String> samples) {
+            long[] counts = counts();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            for (double q : QUANTILES) {
+                samples.put(name + "{" + prefix + "quantile=\"" + q + "\"}", seconds(quantile(counts, total, q)));
+            }
+            samples.put(name + "_sum" + braces(labels), seconds(sum.sum()));
+            samples.put(name + "_count" + braces(labels), Long.toString(total));
+        }
+
+        // Values below 16 get a bucket each; above, each power of two is split into 16
+        static int bucket(long v) {
+            if (v < SUB_BUCKETS) {
+                return (int) v;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(v);
+            int shift = exponent - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((v >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        private static String seconds(long nanos) {
+            return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+        }
+    }
+
+    // Exported samples grouped by family. Daemons send theirs to the application, which
+    // merges them into its own; a series present in both keeps the merged-in value, so
+    // daemons label every series with their id first (see labelled).
+    public static final class Snapshot implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, String[]> families = new TreeMap<>();
+        // Family name -> sample name with labels -> value
+        private final Map<String, Map<String, String>> samples = new TreeMap<>();
+
+        private Map<String, String> family(String name, String type, String help) {
+            families.putIfAbsent(name, new String[]{type, help});
+            return samples.computeIfAbsent(name, k -> new LinkedHashMap<>());
+        }
+
+        public void merge(Snapshot other) {
+            for (Map.Entry<String, String[]> family : other.families.entrySet()) {
+                String[] meta = family.getValue();
+                family(family.getKey(), meta[0], meta[1]).putAll(other.samples.get(family.getKey()));
+            }
+        }
+
+        // The same samples with name="value" added to every series that lacks that label.
+        // Process-wide series, like the transfer pool's or the download client's, carry no
+        // daemon label; without one, those of different daemons would overwrite each other.
+        public Snapshot labelled(String name, String value) {
+            String label = labelKey(new String[]{name, value});
+            Snapshot copy = new Snapshot();
+            for (Map.Entry<String, String[]> family : families.entrySet()) {
+                String[] meta = family.getValue();
+                Map<String, String> target = copy.family(family.getKey(), meta[0], meta[1]);
+                for (Map.Entry<String, String> sample : samples.get(family.getKey()).entrySet()) {
+                    target.put(withLabel(sample.getKey(), name, label), sample.getValue());
+                }
+            }
+            return copy;
+        }
+
+        private static String withLabel(String series, String name, String label) {
+            int brace = series.indexOf('{');
+            if (brace < 0) {
+                return series + "{" + label + "}";
+            }
+            String labels = series.substring(brace + 1);
+            if (labels.startsWith(name + "=\"") || labels.contains("," + name + "=\"")) {
+                return series;
+            }
+            return series.substring(0, brace + 1) + label + "," + labels;
+        }
+
+        public String toPrometheus() {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, String[]> family : families.entrySet()) {
+                String name = family.getKey();
+                out.append("# HELP ").append(name).append(' ')
+                        .append(family.getValue()[1].replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(family.getValue()[0]).append('\n');
+                for (Map.Entry<String, String> sample : samples.get(name).entrySet()) {
+                    out.append(sample.getKey()).append(' ').append(sample.getValue()).append('\n');
+                }
+            }
+            return out.toString();
+        }
+    }
+}
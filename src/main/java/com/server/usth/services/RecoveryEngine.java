@@ -0,0 +1,105 @@
+package com.server.usth.services;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Recovers a batch of files, parallelFiles at a time on the shared transfer pool, so a
+// cold daemon catches up on several files at once without opening one transfer per file.
+// How each file is fetched is up to the caller; the engine only bounds concurrency and
+// logs progress periodically.
+public class RecoveryEngine {
+    private static final long REPORT_INTERVAL_MILLIS = 2000;
+
+    private final int parallelFiles;
+
+    public RecoveryEngine(int parallelFiles) {
+        this.parallelFiles = Math.max(1, parallelFiles);
+    }
+
+    public interface FileRecovery {
+        // Returns false if the file could not be recovered from any source
+        boolean recover(String filename, Progress progress) throws Exception;
+    }
+
+    // Blocks until every file has been attempted; returns how many were recovered
+    public int recoverAll(Collection<String> filenames, FileRecovery recovery) {
+        if (filenames.isEmpty()) {
+            return 0;
+        }
+        Progress progress = new Progress();
+        AtomicInteger recovered = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        TransferExecutor.Scope workers = TransferExecutor.shared().scope(parallelFiles);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "recovery-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+        reporter.scheduleAtFixedRate(() -> report(progress, recovered.get() + failed.get(), filenames.size(), start),
+                REPORT_INTERVAL_MILLIS, REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            // Blocks while parallelFiles files are in progress
+            for (String filename : filenames) {
+                workers.fork(() -> {
+                    try {
+                        if (recovery.recover(filename, progress)) {
+                            recovered.incrementAndGet();
+                            return null;
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Failed to recover " + filename + ": " + e.getMessage());
+                    }
+                    failed.incrementAndGet();
+                    return null;
+                });
+            }
+            workers.join();
+        } catch (InterruptedException | IOException e) {
+            System.err.println("Recovery interrupted: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        } finally {
+            reporter.shutdownNow();
+            workers.close();
+        }
+        report(progress, recovered.get() + failed.get(), filenames.size(), start);
+        if (failed.get() > 0) {
+            System.err.println("Recovery finished with " + failed.get() + " of " + filenames.size() + " files failed");
+        }
+        return recovered.get();
+    }
+
+    private static void report(Progress progress, int filesDone, int files, long start) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+        System.out.printf("Recovery: %d/%d files, %.1f/%.1f MB, %.1f MB/s%n", filesDone, files,
+                progress.completed.get() / 1e6, progress.expected.get() / 1e6,
+                progress.completed.get() / 1e6 / seconds);
+    }
+
+    // Byte counts across all files of a batch; totals grow as file sizes become known
+    public static class Progress {
+        private final AtomicLong expected = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+
+        public void addExpected(long bytes) {
+            expected.addAndGet(bytes);
+        }
+
+        public void addCompleted(long bytes) {
+            completed.addAndGet(bytes);
+        }
+
+        public long getExpected() {
+            return expected.get();
+        }
+
+        public long getCompleted() {
+            return completed.get();
+        }
+    }
+}
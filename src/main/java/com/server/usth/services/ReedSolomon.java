@@ -0,0 +1,199 @@
+package com.server.usth.services;
+
+// Systematic Reed-Solomon code over GF(2^8). Data shards are stored as-is and any
+// dataShards of the dataShards + parityShards shards are enough to rebuild the rest.
+// The encoding matrix is a Vandermonde matrix normalised so its top rows are the identity.
+public class ReedSolomon {
+    private static final int FIELD_SIZE = 256;
+    private static final int GENERATOR = 0x11d;
+    private static final int[] EXP = new int[FIELD_SIZE * 2];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & FIELD_SIZE) != 0) {
+                x ^= GENERATOR;
+            }
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 0; a < FIELD_SIZE; a++) {
+            for (int b = 0; b < FIELD_SIZE; b++) {
+                MUL[a][b] = (byte) multiply(a, b);
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final int[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException("Invalid shard counts " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        int total = dataShards + parityShards;
+        int[][] vandermonde = new int[total][dataShards];
+        for (int r = 0; r < total; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = power(r, c);
+            }
+        }
+        int[][] top = new int[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    // shards[0..dataShards) hold the data; parity shards are computed into the rest
+    public void encodeParity(byte[][] shards, int offset, int length) {
+        for (int p = 0; p < parityShards; p++) {
+            codeRow(matrix[dataShards + p], shards, shards[dataShards + p], offset, length);
+        }
+    }
+
+    // Rebuilds every shard with present[i] == false from at least dataShards present ones.
+    // All arrays must be allocated; missing ones are overwritten.
+    public void reconstruct(byte[][] shards, boolean[] present, int offset, int length) {
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < shards.length && found < dataShards; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            }
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards, only " + found + " present");
+        }
+
+        boolean dataMissing = false;
+        for (int i = 0; i < dataShards; i++) {
+            dataMissing |= !present[i];
+        }
+        if (dataMissing) {
+            int[][] sub = new int[dataShards][];
+            byte[][] inputs = new byte[dataShards][];
+            for (int i = 0; i < dataShards; i++) {
+                sub[i] = matrix[rows[i]];
+                inputs[i] = shards[rows[i]];
+            }
+            int[][] decode = invert(sub);
+            for (int i = 0; i < dataShards; i++) {
+                if (!present[i]) {
+                    codeRow(decode[i], inputs, shards[i], offset, length);
+                }
+            }
+        }
+        for (int p = 0; p < parityShards; p++) {
+            if (!present[dataShards + p]) {
+                codeRow(matrix[dataShards + p], shards, shards[dataShards + p], offset, length);
+            }
+        }
+    }
+
+    private void codeRow(int[] row, byte[][] inputs, byte[] output, int offset, int length) {
+        byte[] first = MUL[row[0]];
+        byte[] in = inputs[0];
+        for (int b = offset; b < offset + length; b++) {
+            output[b] = first[in[b] & 0xff];
+        }
+        for (int c = 1; c < dataShards; c++) {
+            byte[] table = MUL[row[c]];
+            in = inputs[c];
+            for (int b = offset; b < offset + length; b++) {
+                output[b] ^= table[in[b] & 0xff];
+            }
+        }
+    }
+
+    private static int multiply(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[FIELD_SIZE - 1 - LOG[a]];
+    }
+
+    private static int power(int base, int exponent) {
+        if (exponent == 0) {
+            return 1;
+        }
+        if (base == 0) {
+            return 0;
+        }
+        return EXP[(LOG[base] * exponent) % (FIELD_SIZE - 1)];
+    }
+
+    private static int[][] multiply(int[][] a, int[][] b) {
+        int[][] result = new int[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                int value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= multiply(a[r][i], b[i][c]);
+                }
+                result[r][c] = value;
+            }
+        }
+        return result;
+    }
+
+    // Gauss-Jordan elimination over GF(2^8)
+    private static int[][] invert(int[][] source) {
+        int n = source.length;
+        int[][] work = new int[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(source[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && work[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+            int[] swap = work[col];
+            work[col] = work[pivot];
+            work[pivot] = swap;
+
+            int scale = inverse(work[col][col]);
+            for (int c = 0; c < 2 * n; c++) {
+                work[col][c] = multiply(work[col][c], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                if (r != col && work[r][col] != 0) {
+                    int factor = work[r][col];
+                    for (int c = 0; c < 2 * n; c++) {
+                        work[r][c] ^= multiply(factor, work[col][c]);
+                    }
+                }
+            }
+        }
+        int[][] result = new int[n][n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(work[r], n, result[r], 0, n);
+        }
+        return result;
+    }
+}
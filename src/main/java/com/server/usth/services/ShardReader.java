@@ -0,0 +1,118 @@
+package com.server.usth.services;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+// Reads stripes of an erasure-coded file. For each stripe it fetches blocks from
+// dataShards shards in parallel, preferring data shards so no decoding is needed,
+// and falls back to parity shards when a shard is unavailable or fails. A shard that
+// fails once is skipped for the rest of this reader's stripes.
+public class ShardReader implements AutoCloseable {
+    private final ErasureLayout layout;
+    private final ReedSolomon codec;
+    private final List<DaemonService> owners;
+    private final List<InetSocketAddress> endpoints = new ArrayList<>();
+    private final Set<Integer> failed = ConcurrentHashMap.newKeySet();
+    private final TransferExecutor transfers = TransferExecutor.shared();
+    private final DataPlaneClient dataPlane = new DataPlaneClient();
+
+    // owners is index-aligned with the layout's shards; null marks an unavailable shard
+    public ShardReader(ErasureLayout layout, List<DaemonService> owners) {
+        this.layout = layout;
+        this.codec = new ReedSolomon(layout.getDataShards(), layout.getParityShards());
+        this.owners = owners;
+        for (int i = 0; i < owners.size(); i++) {
+            InetSocketAddress endpoint = null;
+            if (owners.get(i) == null) {
+                failed.add(i);
+            } else {
+                try {
+                    endpoint = owners.get(i).getDataEndpoint();
+                } catch (Exception e) {
+                    failed.add(i);
+                }
+            }
+            endpoints.add(endpoint);
+        }
+    }
+
+    // Returns all shards of the stripe; every index in wanted is guaranteed to be filled
+    public byte[][] readStripe(long stripe, Set<Integer> wanted) throws IOException {
+        int total = layout.getTotalShards();
+        int needed = layout.getDataShards();
+        byte[][] shards = new byte[total][];
+        boolean[] present = new boolean[total];
+        int have = 0;
+        int next = 0;
+
+        while (have < needed) {
+            // Start as many fetches as are still needed, in shard order
+            List<Integer> indexes = new ArrayList<>();
+            List<Future<byte[]>> fetches = new ArrayList<>();
+            while (indexes.size() < needed - have && next < total) {
+                int index = next++;
+                if (failed.contains(index)) {
+                    continue;
+                }
+                indexes.add(index);
+                fetches.add(transfers.submit(layout.getShardOwners().get(index), () -> fetchBlock(index, stripe)));
+            }
+            if (indexes.isEmpty()) {
+                throw new IOException("Only " + have + " of " + needed + " shards readable for stripe "
+                        + stripe + " of " + layout.getFilename());
+            }
+            for (int i = 0; i < indexes.size(); i++) {
+                int index = indexes.get(i);
+                try {
+                    shards[index] = TransferExecutor.await(fetches.get(i));
+                    present[index] = true;
+                    have++;
+                } catch (ExecutionException e) {
+                    System.err.println("Shard " + index + " of " + layout.getFilename() + " unavailable: "
+                            + e.getCause().getMessage());
+                    failed.add(index);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted reading " + layout.getFilename(), e);
+                }
+            }
+        }
+
+        boolean complete = true;
+        for (int index : wanted) {
+            complete &= present[index];
+        }
+        if (!complete) {
+            for (int i = 0; i < total; i++) {
+                if (shards[i] == null) {
+                    shards[i] = new byte[layout.getBlockSize()];
+                }
+            }
+            codec.reconstruct(shards, present, 0, layout.getBlockSize());
+        }
+        return shards;
+    }
+
+    private byte[] fetchBlock(int index, long stripe) throws Exception {
+        String shard = layout.shardName(index);
+        long offset = stripe * layout.getBlockSize();
+        byte[] block = endpoints.get(index) != null
+                ? dataPlane.read(endpoints.get(index), shard, offset, layout.getBlockSize())
+                : owners.get(index).downloadChunk(shard, offset, layout.getBlockSize());
+        if (block.length != layout.getBlockSize()) {
+            throw new IOException("Short block from " + shard + ": " + block.length + " bytes");
+        }
+        return block;
+    }
+
+    @Override
+    public void close() {
+        dataPlane.close();
+    }
+}
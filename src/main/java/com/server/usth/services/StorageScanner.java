@@ -0,0 +1,223 @@
+package com.server.usth.services;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+// Finds the files a daemon holds. The startup scan walks the storage tree with one
+// fork/join task per directory, and the files of a directory are described in
+// parallel, so large trees are listed and stat'ed on all cores.
+// Afterwards a WatchService reports changes; events are held until a file has been
+// quiet for a moment, so a file still being copied in is reported once, complete.
+// Names starting with a dot (temp files, the chunk store's own directories) and
+// erasure shards, which the directory tracks through their layout, are skipped.
+class StorageScanner {
+    private static final Pattern SHARD = Pattern.compile(".*\\.shard\\d+");
+    private static final long QUIET_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    interface Describer {
+        FileInfo describe(String filename) throws IOException;
+    }
+
+    private final Path root;
+    private final Describer describer;
+    private WatchService watcher;
+
+    // root is where file names start: the storage directory, or the manifest
+    // directory of a chunk store
+    StorageScanner(Path root, Describer describer) {
+        this.root = root;
+        this.describer = describer;
+    }
+
+    static boolean isTracked(String filename) {
+        for (String part : filename.split("/")) {
+            if (part.startsWith(".")) {
+                return false;
+            }
+        }
+        return !SHARD.matcher(filename).matches();
+    }
+
+    List<FileInfo> scan() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return List.of();
+        }
+        try {
+            return ForkJoinPool.commonPool().invoke(new ScanTask(root));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Reports created or modified files to onChanged and removed ones to onDeleted,
+    // in batches, from a background thread
+    void watch(Consumer<List<FileInfo>> onChanged, Consumer<List<String>> onDeleted) throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        Map<WatchKey, Path> keys = new LinkedHashMap<>();
+        register(root, keys);
+        Thread thread = new Thread(() -> watchLoop(keys, onChanged, onDeleted), "daemon-storage-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                System.err.println("Error closing storage watcher: " + e.getMessage());
+            }
+        }
+    }
+
+    private void watchLoop(Map<WatchKey, Path> keys, Consumer<List<FileInfo>> onChanged,
+                           Consumer<List<String>> onDeleted) {
+        // File name -> time of its latest event
+        Map<String, Long> pending = new LinkedHashMap<>();
+        try {
+            while (true) {
+                WatchKey key = watcher.poll(250, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    Path dir = keys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                            continue;
+                        }
+                        Path path = dir.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                            register(path, keys);
+                            continue;
+                        }
+                        String filename = name(path);
+                        if (isTracked(filename)) {
+                            pending.put(filename, System.nanoTime());
+                        }
+                    }
+                    if (!key.reset()) {
+                        keys.remove(key);
+                    }
+                }
+                flushQuiet(pending, onChanged, onDeleted);
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Daemon shutting down
+        } catch (IOException e) {
+            System.err.println("Storage watcher stopped: " + e.getMessage());
+        }
+    }
+
+    private void flushQuiet(Map<String, Long> pending, Consumer<List<FileInfo>> onChanged,
+                            Consumer<List<String>> onDeleted) {
+        List<FileInfo> changed = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (now - entry.getValue() < QUIET_NANOS) {
+                continue;
+            }
+            it.remove();
+            String filename = entry.getKey();
+            if (Files.isRegularFile(root.resolve(filename))) {
+                try {
+                    changed.add(describer.describe(filename));
+                } catch (IOException e) {
+                    System.err.println("Cannot describe " + filename + ": " + e.getMessage());
+                }
+            } else {
+                deleted.add(filename);
+            }
+        }
+        if (!changed.isEmpty()) {
+            onChanged.accept(changed);
+        }
+        if (!deleted.isEmpty()) {
+            onDeleted.accept(deleted);
+        }
+    }
+
+    private void register(Path dir, Map<WatchKey, Path> keys) throws IOException {
+        keys.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry) && !entry.getFileName().toString().startsWith(".")) {
+                    register(entry, keys);
+                }
+            }
+        }
+    }
+
+    private String name(Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private class ScanTask extends RecursiveTask<List<FileInfo>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        ScanTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<FileInfo> compute() {
+            List<String> names = new ArrayList<>();
+            List<ScanTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (entry.getFileName().toString().startsWith(".")) {
+                        continue;
+                    }
+                    if (Files.isDirectory(entry)) {
+                        ScanTask task = new ScanTask(entry);
+                        task.fork();
+                        subdirectories.add(task);
+                    } else if (isTracked(name(entry))) {
+                        names.add(name(entry));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            List<FileInfo> files = new ArrayList<>(names.parallelStream().map(this::describe).filter(Objects::nonNull).toList());
+            for (ScanTask task : subdirectories) {
+                files.addAll(task.join());
+            }
+            return files;
+        }
+
+        private FileInfo describe(String filename) {
+            try {
+                return describer.describe(filename);
+            } catch (NoSuchFileException e) {
+                return null; // Removed while we were scanning
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
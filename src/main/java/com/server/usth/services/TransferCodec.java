@@ -0,0 +1,138 @@
+package com.server.usth.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional compression of chunks on the wire. The receiver asks for a Deflate level
+// per request and the sender decides per chunk: a chunk is sent raw when a sample of it
+// does not shrink by at least a tenth, or when the compressed chunk turns out no smaller,
+// so already-compressed content costs only the sample. Deflaters, inflaters and scratch
+// buffers are kept per thread and reused.
+//
+// Frame format: codec(1) rawLength(4) payload, where payload is the raw bytes or a
+// raw Deflate stream (no zlib header).
+public final class TransferCodec {
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+    public static final int HEADER_SIZE = 5;
+    // Largest chunk a frame may carry, so a frame length read off the wire can be bounded
+    public static final int MAX_CHUNK_SIZE = Integer.getInteger("transfer.maxChunkSize", 16 * 1024 * 1024);
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_CHUNK_SIZE;
+
+    private static final int SAMPLE_SIZE = 8 * 1024;
+    private static final double MIN_SAVING = 0.1;
+
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[10]);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    private TransferCodec() {
+    }
+
+    // level 0 disables compression, 1-9 are the Deflate levels
+    public static byte[] encode(byte[] data, int offset, int length, int level) {
+        if (level > 0 && worthCompressing(data, offset, length)) {
+            Deflater deflater = deflater(Math.min(level, Deflater.BEST_COMPRESSION));
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            // Anything that does not fit in less than the raw size is sent raw
+            byte[] out = scratch(length);
+            int compressed = 0;
+            while (!deflater.finished() && compressed < length) {
+                compressed += deflater.deflate(out, compressed, length - compressed);
+            }
+            if (deflater.finished() && compressed < length) {
+                byte[] frame = new byte[HEADER_SIZE + compressed];
+                ByteBuffer.wrap(frame).put(DEFLATE).putInt(length);
+                System.arraycopy(out, 0, frame, HEADER_SIZE, compressed);
+                return frame;
+            }
+        }
+        byte[] frame = new byte[HEADER_SIZE + length];
+        ByteBuffer.wrap(frame).put(RAW).putInt(length);
+        System.arraycopy(data, offset, frame, HEADER_SIZE, length);
+        return frame;
+    }
+
+    public static byte[] decode(byte[] frame) throws IOException {
+        if (frame.length < HEADER_SIZE) {
+            throw new IOException("Truncated transfer frame");
+        }
+        ByteBuffer header = ByteBuffer.wrap(frame, 0, HEADER_SIZE);
+        byte codec = header.get();
+        int length = header.getInt();
+        if (length < 0 || length > MAX_CHUNK_SIZE) {
+            throw new IOException("Frame claims " + length + " bytes, at most " + MAX_CHUNK_SIZE + " allowed");
+        }
+        if (codec == RAW) {
+            if (frame.length != HEADER_SIZE + length) {
+                throw new IOException("Raw frame of " + (frame.length - HEADER_SIZE) + " bytes, expected " + length);
+            }
+            return Arrays.copyOfRange(frame, HEADER_SIZE, frame.length);
+        }
+        if (codec != DEFLATE) {
+            throw new IOException("Unknown transfer codec " + codec);
+        }
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+        byte[] data = new byte[length];
+        try {
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int n = inflater.inflate(data, inflated, length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Compressed frame inflated to " + inflated + " bytes, expected " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        return data;
+    }
+
+    // Compresses a sample at the fastest level and gives up if it barely shrinks
+    private static boolean worthCompressing(byte[] data, int offset, int length) {
+        int sample = Math.min(SAMPLE_SIZE, length);
+        if (sample == 0) {
+            return false;
+        }
+        Deflater deflater = deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data, offset, sample);
+        deflater.finish();
+        byte[] out = scratch(sample);
+        int compressed = 0;
+        while (!deflater.finished() && compressed < sample) {
+            compressed += deflater.deflate(out, compressed, sample - compressed);
+        }
+        return deflater.finished() && compressed <= sample * (1 - MIN_SAVING);
+    }
+
+    private static Deflater deflater(int level) {
+        Deflater[] deflaters = DEFLATERS.get();
+        Deflater deflater = deflaters[level];
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            deflaters[level] = deflater;
+        }
+        deflater.reset();
+        return deflater;
+    }
+
+    private static byte[] scratch(int size) {
+        byte[] buffer = SCRATCH.get();
+        if (buffer.length < size) {
+            buffer = new byte[size];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+}
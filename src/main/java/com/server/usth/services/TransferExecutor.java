@@ -0,0 +1,275 @@
+package com.server.usth.services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One pool of transfer threads for the whole process, shared by downloads, uploads,
+// recovery and shard rebuilds instead of a pool per transfer. Threads are reused across
+// transfers and retire after a minute idle.
+//
+// A request to a daemon is submitted with the daemon's id and runs only while it holds
+// one of that daemon's permits (transfer.maxPerDaemon) and one of the process-wide
+// permits (transfer.maxConcurrent), however many transfers are running. Requests wait
+// for their permits in a queue, taking their turn daemon by daemon, and get a thread
+// only once they have them, so requests piled up for a busy daemon hold no threads.
+// Only such requests take permits: work that waits on other transfers, like a file
+// being recovered or a stripe being assembled, is submitted without an id so it can
+// never hold a permit its own requests are waiting for. Threads in use are therefore
+// at most transfer.maxConcurrent plus that waiting work, which each transfer bounds.
+public final class TransferExecutor {
+    // How long a caller waits for one request before cancelling it and treating it as failed
+    public static final long REQUEST_TIMEOUT_MILLIS = Long.getLong("transfer.requestTimeoutMillis", 120_000);
+
+    private static final TransferExecutor SHARED = new TransferExecutor(
+            Integer.getInteger("transfer.maxConcurrent", 64), Integer.getInteger("transfer.maxPerDaemon", 8));
+
+    private final ThreadPoolExecutor threads;
+    private final int maxConcurrent;
+    private final int perDaemonLimit;
+    // Requests waiting for permits, by daemon, and the daemons with waiting requests in
+    // turn order; all guarded by this
+    private final Map<String, ArrayDeque<FutureTask<?>>> queued = new HashMap<>();
+    private final ArrayDeque<String> turns = new ArrayDeque<>();
+    private final Map<String, Integer> runningPerDaemon = new HashMap<>();
+    private int running;
+    private int waiting;
+
+    private TransferExecutor(int maxConcurrent, int maxPerDaemon) {
+        AtomicInteger count = new AtomicInteger();
+        this.threads = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "transfer-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.perDaemonLimit = Math.max(1, maxPerDaemon);
+        Metrics.gauge("transfer_threads", "Threads in the shared transfer pool", threads::getPoolSize);
+        Metrics.gauge("transfer_requests_in_progress", "Daemon requests holding a transfer permit",
+                this::getRunning);
+        Metrics.gauge("transfer_requests_queued", "Daemon requests waiting for a transfer permit",
+                this::getWaiting);
+    }
+
+    public static TransferExecutor shared() {
+        return SHARED;
+    }
+
+    // Work that is not a single daemon request; takes no permits
+    public <T> Future<T> submit(Callable<T> task) {
+        return threads.submit(task);
+    }
+
+    // One request to one daemon, run once permits for it are free
+    public <T> Future<T> submit(String daemonId, Callable<T> request) {
+        FutureTask<T> task = new FutureTask<>(request);
+        enqueue(daemonId, task);
+        return task;
+    }
+
+    // Tasks that belong to one transfer, at most parallelism of them running at a time
+    public Scope scope(int parallelism) {
+        return new Scope(parallelism);
+    }
+
+    // Waits up to REQUEST_TIMEOUT_MILLIS; a request that takes longer is cancelled and
+    // reported like a failed one
+    public static <T> T await(Future<T> request) throws ExecutionException, InterruptedException {
+        return await(request, REQUEST_TIMEOUT_MILLIS);
+    }
+
+    public static <T> T await(Future<T> request, long timeoutMillis) throws ExecutionException, InterruptedException {
+        try {
+            return request.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            request.cancel(true);
+            throw new ExecutionException(new IOException("No answer within " + timeoutMillis + " ms"));
+        }
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    private synchronized void enqueue(String daemonId, FutureTask<?> request) {
+        ArrayDeque<FutureTask<?>> pending = queued.get(daemonId);
+        if (pending == null) {
+            pending = new ArrayDeque<>();
+            queued.put(daemonId, pending);
+            turns.add(daemonId);
+        }
+        pending.add(request);
+        waiting++;
+        dispatch();
+    }
+
+    // Starts waiting requests while permits are free, one daemon's turn at a time so a
+    // daemon with a long queue cannot take every global permit
+    private void dispatch() {
+        int skipped = 0;
+        while (running < maxConcurrent && skipped < turns.size()) {
+            String daemonId = turns.poll();
+            int busy = runningPerDaemon.getOrDefault(daemonId, 0);
+            if (busy >= perDaemonLimit) {
+                turns.add(daemonId);
+                skipped++;
+                continue;
+            }
+            skipped = 0;
+            ArrayDeque<FutureTask<?>> pending = queued.get(daemonId);
+            FutureTask<?> request = pending.poll();
+            waiting--;
+            if (pending.isEmpty()) {
+                queued.remove(daemonId);
+            } else {
+                turns.add(daemonId);
+            }
+            if (request.isDone()) {
+                // Cancelled while it waited
+                continue;
+            }
+            runningPerDaemon.put(daemonId, busy + 1);
+            running++;
+            threads.execute(() -> {
+                try {
+                    request.run();
+                } finally {
+                    finished(daemonId);
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(String daemonId) {
+        running--;
+        int busy = runningPerDaemon.get(daemonId) - 1;
+        if (busy == 0) {
+            runningPerDaemon.remove(daemonId);
+        } else {
+            runningPerDaemon.put(daemonId, busy);
+        }
+        dispatch();
+    }
+
+    // Tasks forked in a scope do not outlive it: the first task to fail cancels the others,
+    // and close() cancels whatever is still running, e.g. after a timeout or an exception
+    // in the caller. fork blocks while parallelism tasks are already running.
+    public final class Scope implements AutoCloseable {
+        private final Semaphore slots;
+        private final List<Future<?>> tasks = new ArrayList<>();
+        private volatile Throwable failure;
+
+        private Scope(int parallelism) {
+            this.slots = new Semaphore(Math.max(1, parallelism));
+        }
+
+        public <T> Future<T> fork(Callable<T> task) throws InterruptedException {
+            return start(null, task);
+        }
+
+        public <T> Future<T> fork(String daemonId, Callable<T> request) throws InterruptedException {
+            return start(daemonId, request);
+        }
+
+        // Waits for every task; rethrows the first failure, which has cancelled the rest
+        public void join() throws IOException {
+            try {
+                for (Future<?> task : snapshot()) {
+                    try {
+                        task.get();
+                    } catch (ExecutionException | CancellationException e) {
+                        // The first failure is kept below
+                    }
+                }
+            } catch (InterruptedException e) {
+                cancelAll();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transfer interrupted");
+            }
+            Throwable failed = failure;
+            if (failed instanceof IOException) {
+                throw (IOException) failed;
+            }
+            if (failed != null) {
+                throw new IOException("Transfer task failed", failed);
+            }
+        }
+
+        @Override
+        public void close() {
+            cancelAll();
+        }
+
+        private <T> Future<T> start(String daemonId, Callable<T> task) throws InterruptedException {
+            slots.acquire();
+            // done() runs once however the task ends, including cancelled before it started
+            FutureTask<T> future = new FutureTask<>(() -> {
+                try {
+                    return task.call();
+                } catch (Exception e) {
+                    fail(e);
+                    throw e;
+                }
+            }) {
+                @Override
+                protected void done() {
+                    slots.release();
+                }
+            };
+            track(future);
+            if (daemonId == null) {
+                threads.execute(future);
+            } else {
+                enqueue(daemonId, future);
+            }
+            return future;
+        }
+
+        private synchronized void track(Future<?> task) {
+            // Long transfers fork a task per request; forget the finished ones now and then
+            if (tasks.size() >= 1024) {
+                tasks.removeIf(Future::isDone);
+            }
+            tasks.add(task);
+        }
+
+        private synchronized List<Future<?>> snapshot() {
+            return new ArrayList<>(tasks);
+        }
+
+        private void fail(Exception e) {
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            cancelAll();
+        }
+
+        private void cancelAll() {
+            for (Future<?> task : snapshot()) {
+                task.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package com.server.usth.services;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Streams an upload once through a bounded buffer and fans each chunk out to all
+// target daemons concurrently. At most two chunks are held in memory: the one
+// being read and the one in flight to the daemons, and nothing is kept on local disk.
+// Every chunk is hashed on the way through; chunk-store daemons are only sent chunks
+// they do not already hold.
+//
+// A daemon that fails mid-upload is dropped and the others carry on, but the upload
+// fails once fewer than upload.min-replicas of the placement (all of it, if smaller)
+// are left to commit it. So is one that leaves a request unanswered for
+// upload.request-timeout-millis: the request is cancelled like everything still
+// outstanding when the upload as a whole fails.
+@Service
+public class UploadPipeline {
+
+    @Value("${upload.chunk-size:1048576}")
+    private int chunkSize;
+
+    // Deflate level for chunks sent to daemons, 0 sends them raw and zero-copy where possible
+    @Value("${upload.compression-level:0}")
+    private int compressionLevel;
+
+    @Value("${upload.min-replicas:2}")
+    private int minReplicas;
+
+    // Defaults to the transfer pool's timeout, -Dtransfer.requestTimeoutMillis
+    @Value("${upload.request-timeout-millis:${transfer.requestTimeoutMillis:120000}}")
+    private long requestTimeoutMillis;
+
+    private final TransferExecutor transfers = TransferExecutor.shared();
+    private final DataPlaneClient dataPlaneClient = new DataPlaneClient();
+
+    public UploadResult stream(String filename, InputStream in, List<DaemonService> daemons) throws IOException {
+        int required = Math.max(1, Math.min(minReplicas, daemons.size()));
+        List<Target> targets = begin(filename, daemons);
+        if (targets.size() < required) {
+            abort(targets);
+            throw new IOException(targets.size() + " of " + daemons.size() + " daemons accepted upload of "
+                    + filename + ", " + required + " needed");
+        }
+
+        long offset = 0;
+        List<String> hashes = new ArrayList<>();
+        AtomicLong deduplicated = new AtomicLong();
+        List<Future<Exception>> inFlight = new ArrayList<>();
+        // Closing the scope cancels whatever is still being sent, before the catch aborts
+        try (TransferExecutor.Scope scope = transfers.scope(Integer.MAX_VALUE)) {
+            while (true) {
+                byte[] chunk = in.readNBytes(chunkSize);
+                if (chunk.length == 0) {
+                    break;
+                }
+
+                // Wait for the previous chunk before sending the next one, so reading
+                // overlaps with the transfer but memory stays bounded
+                awaitAll(targets, inFlight);
+                checkReplicas(targets, required, daemons.size(), filename);
+
+                final long chunkOffset = offset;
+                final String hash = ChunkStore.sha256Hex(chunk, 0, chunk.length);
+                hashes.add(hash);
+                // Encoded once and shared by every target
+                final byte[] frame = encode(chunk);
+                for (Target target : targets) {
+                    inFlight.add(request(scope, target.daemonId, () -> {
+                        if (target.chunkStore) {
+                            if (!storeChunk(target, hash, chunk)) {
+                                deduplicated.addAndGet(chunk.length);
+                            }
+                        } else {
+                            sendOnce(target, chunkOffset, chunk, frame);
+                        }
+                        return null;
+                    }));
+                }
+                offset += chunk.length;
+            }
+            awaitAll(targets, inFlight);
+            checkReplicas(targets, required, daemons.size(), filename);
+        } catch (IOException | RuntimeException e) {
+            abort(targets);
+            throw e;
+        }
+
+        FileManifest manifest = new FileManifest(filename, offset, chunkSize, hashes);
+        List<String> stored = commit(targets, manifest);
+        if (stored.size() < required) {
+            delete(targets, stored);
+            throw new IOException("Only " + stored.size() + " of " + daemons.size() + " daemons committed "
+                    + filename + ", " + required + " needed");
+        }
+        return new UploadResult(offset, stored, daemons.size(), manifest, deduplicated.get());
+    }
+
+    // Erasure-coded upload: the body is read one stripe at a time, parity is computed in
+    // memory and every shard block goes to its own daemon. Up to parityShards daemons
+    // may fail; their shards are rebuilt later by recovery.
+    public UploadResult streamErasure(ErasureLayout layout, InputStream in, List<DaemonService> owners)
+            throws IOException {
+        int total = layout.getTotalShards();
+        int blockSize = layout.getBlockSize();
+        ReedSolomon codec = new ReedSolomon(layout.getDataShards(), layout.getParityShards());
+
+        Target[] shards = new Target[total];
+        List<Future<Target>> begun = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            DaemonService daemon = owners.get(i);
+            String shardName = layout.shardName(i);
+            begun.add(daemon == null ? null : transfers.submit(() -> new Target(daemon, daemon.getDaemonId(),
+                    shardName, daemon.beginReceive(shardName), daemon.getDataEndpoint(), false)));
+        }
+        for (int i = 0; i < total; i++) {
+            try {
+                shards[i] = begun.get(i) == null ? null : TransferExecutor.await(begun.get(i), requestTimeoutMillis);
+            } catch (ExecutionException e) {
+                System.err.println("Daemon for shard " + i + " refused upload: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Upload interrupted", e);
+            }
+        }
+
+        long size = 0;
+        long stripe = 0;
+        List<Future<Exception>> inFlight = new ArrayList<>(Collections.nCopies(total, null));
+        try (TransferExecutor.Scope scope = transfers.scope(Integer.MAX_VALUE)) {
+            checkShards(shards, layout);
+            while (true) {
+                byte[] data = in.readNBytes((int) layout.getStripeSize());
+                if (data.length == 0) {
+                    break;
+                }
+                byte[][] blocks = new byte[total][blockSize];
+                for (int i = 0; i < layout.getDataShards(); i++) {
+                    int from = i * blockSize;
+                    if (from < data.length) {
+                        System.arraycopy(data, from, blocks[i], 0, Math.min(blockSize, data.length - from));
+                    }
+                }
+                codec.encodeParity(blocks, 0, blockSize);
+
+                awaitShards(shards, inFlight, layout);
+                final long offset = stripe * blockSize;
+                for (int i = 0; i < total; i++) {
+                    Target target = shards[i];
+                    if (target != null) {
+                        byte[] block = blocks[i];
+                        inFlight.set(i, request(scope, target.daemonId, () -> {
+                            sendOnce(target, offset, block, encode(block));
+                            return null;
+                        }));
+                    }
+                }
+                size += data.length;
+                stripe++;
+            }
+            awaitShards(shards, inFlight, layout);
+        } catch (IOException | RuntimeException e) {
+            List<Target> live = new ArrayList<>();
+            for (Target target : shards) {
+                if (target != null) {
+                    live.add(target);
+                }
+            }
+            abort(live);
+            throw e;
+        }
+
+        List<Target> live = new ArrayList<>();
+        for (Target target : shards) {
+            if (target != null) {
+                live.add(target);
+            }
+        }
+        List<String> stored = commit(live, null);
+        if (stored.size() < layout.getDataShards()) {
+            delete(live, stored);
+            throw new IOException("Only " + stored.size() + " shards of " + layout.getFilename()
+                    + " committed, " + layout.getDataShards() + " needed");
+        }
+        return new UploadResult(size, stored, total, null, 0);
+    }
+
+    private void awaitShards(Target[] shards, List<Future<Exception>> inFlight, ErasureLayout layout)
+            throws IOException {
+        for (int i = 0; i < shards.length; i++) {
+            if (inFlight.get(i) == null) {
+                continue;
+            }
+            Exception failure = outcome(inFlight.get(i));
+            if (failure != null) {
+                System.err.println("Upload of shard " + i + " to daemon " + shards[i].daemonId + " failed: " + failure);
+                abort(List.of(shards[i]));
+                shards[i] = null;
+            }
+            inFlight.set(i, null);
+        }
+        checkShards(shards, layout);
+    }
+
+    private static void checkShards(Target[] shards, ErasureLayout layout) throws IOException {
+        int lost = 0;
+        for (Target target : shards) {
+            if (target == null) {
+                lost++;
+            }
+        }
+        if (lost > layout.getParityShards()) {
+            throw new IOException(lost + " shards of " + layout.getFilename() + " failed, only "
+                    + layout.getParityShards() + " can be tolerated");
+        }
+    }
+
+    private static void checkReplicas(List<Target> targets, int required, int placed, String filename)
+            throws IOException {
+        if (targets.size() < required) {
+            throw new IOException("Only " + targets.size() + " of " + placed + " daemons left uploading "
+                    + filename + ", " + required + " needed");
+        }
+    }
+
+    // Returns false when the daemon already held the chunk and no bytes were sent
+    private boolean storeChunk(Target target, String hash, byte[] chunk) throws Exception {
+        if (target.daemon.missingChunks(List.of(hash)).isEmpty()) {
+            return false;
+        }
+        target.daemon.storeChunk(hash, chunk);
+        return true;
+    }
+
+    // Null when compression is off
+    private byte[] encode(byte[] chunk) {
+        return compressionLevel > 0 ? TransferCodec.encode(chunk, 0, chunk.length, compressionLevel) : null;
+    }
+
+    // Sends one request to a daemon within the upload's scope and resolves to what it
+    // failed with, or null. A failure only drops that daemon, so it is returned rather
+    // than thrown, which would cancel the whole scope.
+    //
+    // A daemon that answers busy gets the request again after its retry-after hint; one
+    // that stays busy is dropped from the upload like a failed one. Each attempt holds a
+    // permit for the daemon only while it runs, so the wait in between blocks no other
+    // request to it.
+    private Future<Exception> request(TransferExecutor.Scope scope, String daemonId, Callable<?> request)
+            throws IOException {
+        try {
+            return scope.fork(() -> {
+                for (int attempt = 1; ; attempt++) {
+                    Future<?> sent = transfers.submit(daemonId, request);
+                    try {
+                        sent.get();
+                        return null;
+                    } catch (InterruptedException e) {
+                        // Cancelled: past its deadline, or the upload failed
+                        sent.cancel(true);
+                        return e;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        try {
+                            if (attempt > DaemonBusyException.MAX_RETRIES || !DaemonBusyException.backOff(cause)) {
+                                return cause instanceof Exception ? (Exception) cause : e;
+                            }
+                        } catch (InterruptedIOException interrupted) {
+                            return interrupted;
+                        }
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        }
+    }
+
+    // What a request failed with, null if it succeeded. One that takes longer than the
+    // request timeout, retries included, is cancelled and fails.
+    private Exception outcome(Future<Exception> request) throws IOException {
+        try {
+            return TransferExecutor.await(request, requestTimeoutMillis);
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        }
+    }
+
+    private void sendOnce(Target target, long offset, byte[] chunk, byte[] frame) throws Exception {
+        if (target.endpoint != null) {
+            try {
+                if (frame != null) {
+                    dataPlaneClient.writeEncoded(target.endpoint, target.uploadId, offset, frame);
+                } else {
+                    dataPlaneClient.write(target.endpoint, target.uploadId, offset, ByteBuffer.wrap(chunk));
+                }
+                return;
+            } catch (DaemonBusyException e) {
+                throw e; // RMI writes share the same admission
+            } catch (IOException e) {
+                // Writes are positional, so resending the chunk over RMI is safe
+                System.err.println("Data plane write to " + target.daemonId + " failed, using RMI: " + e.getMessage());
+            }
+        }
+        if (frame != null) {
+            target.daemon.receiveChunkEncoded(target.uploadId, offset, frame);
+        } else {
+            target.daemon.receiveChunk(target.uploadId, offset, chunk);
+        }
+    }
+
+    private List<Target> begin(String filename, List<DaemonService> daemons) {
+        List<Future<Target>> futures = new ArrayList<>();
+        for (DaemonService daemon : daemons) {
+            futures.add(transfers.submit(() -> {
+                if (daemon.isChunkStore()) {
+                    // No upload session: chunks go straight into the store, the manifest commits
+                    return new Target(daemon, daemon.getDaemonId(), filename, null, null, true);
+                }
+                return new Target(daemon, daemon.getDaemonId(), filename,
+                        daemon.beginReceive(filename), daemon.getDataEndpoint(), false);
+            }));
+        }
+        List<Target> targets = new ArrayList<>();
+        for (Future<Target> future : futures) {
+            try {
+                targets.add(TransferExecutor.await(future, requestTimeoutMillis));
+            } catch (ExecutionException e) {
+                System.err.println("Daemon refused upload of " + filename + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return targets;
+    }
+
+    // Futures are submitted in target order, one per target per chunk
+    private void awaitAll(List<Target> targets, List<Future<Exception>> inFlight) throws IOException {
+        List<Target> failed = new ArrayList<>();
+        for (int i = 0; i < inFlight.size(); i++) {
+            Target target = targets.get(i);
+            Exception failure = outcome(inFlight.get(i));
+            if (failure != null) {
+                System.err.println("Upload to daemon " + target.daemonId + " failed: " + failure);
+                failed.add(target);
+            }
+        }
+        inFlight.clear();
+        targets.removeAll(failed);
+        abort(failed);
+    }
+
+    private List<String> commit(List<Target> targets, FileManifest manifest) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Target target : targets) {
+            futures.add(transfers.submit(target.daemonId, () -> {
+                if (target.chunkStore) {
+                    target.daemon.commitManifest(manifest);
+                } else {
+                    target.daemon.commitReceive(target.uploadId);
+                }
+                return null;
+            }));
+        }
+        List<String> stored = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                TransferExecutor.await(futures.get(i), requestTimeoutMillis);
+                stored.add(targets.get(i).daemonId);
+            } catch (ExecutionException e) {
+                System.err.println("Commit on daemon " + targets.get(i).daemonId + " failed: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Upload interrupted", e);
+            }
+        }
+        if (stored.isEmpty()) {
+            throw new IOException("No daemon committed the upload");
+        }
+        return stored;
+    }
+
+    private void abort(List<Target> targets) {
+        for (Target target : targets) {
+            if (target.chunkStore) {
+                continue; // Nothing to undo; orphaned chunks are harmless
+            }
+            transfers.submit(target.daemonId, () -> {
+                try {
+                    target.daemon.abortReceive(target.uploadId);
+                } catch (Exception e) {
+                    System.err.println("Failed to abort upload on daemon " + target.daemonId + ": " + e.getMessage());
+                }
+                return null;
+            });
+        }
+    }
+
+    // Removes what the daemons in stored committed, when too few did for the upload to count
+    private void delete(List<Target> targets, List<String> stored) {
+        for (Target target : targets) {
+            if (!stored.contains(target.daemonId)) {
+                continue;
+            }
+            transfers.submit(target.daemonId, () -> {
+                try {
+                    target.daemon.deleteFile(target.name);
+                } catch (Exception e) {
+                    System.err.println("Failed to delete " + target.name + " from daemon " + target.daemonId
+                            + ": " + e.getMessage());
+                }
+                return null;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dataPlaneClient.close();
+    }
+
+    private static class Target {
+        final DaemonService daemon;
+        final String daemonId;
+        // The file or shard being uploaded
+        final String name;
+        final String uploadId;
+        final InetSocketAddress endpoint;
+        final boolean chunkStore;
+
+        Target(DaemonService daemon, String daemonId, String name, String uploadId, InetSocketAddress endpoint,
+               boolean chunkStore) {
+            this.daemon = daemon;
+            this.daemonId = daemonId;
+            this.name = name;
+            this.uploadId = uploadId;
+            this.endpoint = endpoint;
+            this.chunkStore = chunkStore;
+        }
+    }
+
+    public static class UploadResult {
+        private final long bytes;
+        private final List<String> daemonIds;
+        private final int placedDaemons;
+        private final FileManifest manifest;
+        private final long deduplicatedBytes;
+
+        UploadResult(long bytes, List<String> daemonIds, int placedDaemons, FileManifest manifest,
+                     long deduplicatedBytes) {
+            this.bytes = bytes;
+            this.daemonIds = daemonIds;
+            this.placedDaemons = placedDaemons;
+            this.manifest = manifest;
+            this.deduplicatedBytes = deduplicatedBytes;
+        }
+
+        public FileManifest getManifest() {
+            return manifest;
+        }
+
+        // Bytes not sent because a chunk-store daemon already held the chunk
+        public long getDeduplicatedBytes() {
+            return deduplicatedBytes;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public List<String> getDaemonIds() {
+            return daemonIds;
+        }
+
+        // Daemons the placement asked for; more than getDaemonIds() when some failed
+        public int getPlacedDaemons() {
+            return placedDaemons;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.server.usth.client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloadCheckpointTest {
+    private static final long SIZE = 10 * 1024 + 1;
+    private static final int CHUNK = 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void resumesFromTheFlushedBitmap() throws IOException {
+        Path output = dir.resolve("file.bin");
+        try (FileChannel data = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             DownloadCheckpoint checkpoint = DownloadCheckpoint.open(output, SIZE, CHUNK, "digest-1")) {
+            assertEquals(11, checkpoint.getChunkCount());
+            checkpoint.markComplete(0);
+            checkpoint.markComplete(8);
+            checkpoint.markComplete(10);
+            checkpoint.flush(data);
+            // Marked but never flushed, as if the process died before the next flush
+            checkpoint.markComplete(5);
+        }
+
+        try (DownloadCheckpoint resumed = DownloadCheckpoint.open(output, SIZE, CHUNK, "digest-1")) {
+            assertEquals(3, resumed.getCompletedCount());
+            assertTrue(resumed.isComplete(0));
+            assertTrue(resumed.isComplete(8));
+            assertTrue(resumed.isComplete(10));
+            assertFalse(resumed.isComplete(5));
+        }
+    }
+
+    @Test
+    void startsOverWhenTheDigestChanges() throws IOException {
+        Path output = dir.resolve("file.bin");
+        try (FileChannel data = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             DownloadCheckpoint checkpoint = DownloadCheckpoint.open(output, SIZE, CHUNK, "digest-1")) {
+            checkpoint.markComplete(2);
+            checkpoint.flush(data);
+        }
+
+        try (DownloadCheckpoint changed = DownloadCheckpoint.open(output, SIZE, CHUNK, "digest-2")) {
+            assertEquals(0, changed.getCompletedCount());
+        }
+        // The sidecar was rewritten for the new digest; the old one no longer matches it
+        try (DownloadCheckpoint old = DownloadCheckpoint.open(output, SIZE, CHUNK, "digest-1")) {
+            assertEquals(0, old.getCompletedCount());
+        }
+    }
+
+    @Test
+    void startsOverWhenTheOutputIsGone() throws IOException {
+        Path output = dir.resolve("file.bin");
+        try (FileChannel data = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             DownloadCheckpoint checkpoint = DownloadCheckpoint.open(output, SIZE, CHUNK, "digest-1")) {
+            checkpoint.markComplete(1);
+            checkpoint.flush(data);
+        }
+        Files.delete(output);
+
+        try (DownloadCheckpoint fresh = DownloadCheckpoint.open(output, SIZE, CHUNK, "digest-1")) {
+            assertEquals(0, fresh.getCompletedCount());
+        }
+    }
+
+    @Test
+    void deleteRemovesTheSidecar() throws IOException {
+        Path output = dir.resolve("file.bin");
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(output, SIZE, CHUNK, "digest-1");
+        assertTrue(Files.exists(DownloadCheckpoint.sidecarFor(output)));
+        checkpoint.delete();
+        assertFalse(Files.exists(DownloadCheckpoint.sidecarFor(output)));
+    }
+}
@@ -0,0 +1,82 @@
+package com.server.usth.client;
+
+import com.server.usth.services.DaemonService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+
+class DownloadEngineTest {
+    private static final int CHUNK = 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void movesChunksOffADaemonThatNeverAnswers() throws Exception {
+        byte[] content = new byte[8 * CHUNK + 100];
+        new Random(1).nextBytes(content);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        DaemonService hung = daemon("hung");
+        Mockito.when(hung.downloadChunks(anyString(), any(), any())).thenAnswer(call -> {
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                cancelled.countDown();
+            }
+            throw new RemoteException("Interrupted");
+        });
+        Mockito.when(hung.downloadChunk(anyString(), anyLong(), anyInt())).thenAnswer(call -> {
+            throw new AssertionError("a batch is asked for");
+        });
+        DaemonService healthy = daemon("healthy");
+        Mockito.when(healthy.downloadChunks(anyString(), any(), any())).thenAnswer(call -> {
+            long[] offsets = call.getArgument(1);
+            int[] sizes = call.getArgument(2);
+            byte[][] chunks = new byte[offsets.length][];
+            for (int i = 0; i < offsets.length; i++) {
+                chunks[i] = Arrays.copyOfRange(content, (int) offsets[i], (int) offsets[i] + sizes[i]);
+            }
+            return chunks;
+        });
+        Mockito.when(healthy.downloadChunk(anyString(), anyLong(), anyInt())).thenAnswer(call -> {
+            long offset = call.getArgument(1);
+            int size = call.getArgument(2);
+            return Arrays.copyOfRange(content, (int) offset, (int) offset + size);
+        });
+
+        // The hung daemon is listed first, so it is handed every chunk before the other
+        DownloadEngine engine = new DownloadEngine(List.of(hung, healthy), CHUNK, 64 * CHUNK);
+        engine.setRequestTimeout(200);
+        Path output = dir.resolve("file.bin");
+        assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> engine.download("file.bin", output, content.length, false), "waited on the hung daemon");
+
+        assertArrayEquals(content, Files.readAllBytes(output));
+        assertTrue(cancelled.await(10, TimeUnit.SECONDS), "the overdue request is cancelled");
+    }
+
+    private static DaemonService daemon(String id) throws IOException {
+        DaemonService daemon = Mockito.mock(DaemonService.class);
+        Mockito.when(daemon.getDaemonId()).thenReturn(id);
+        return daemon;
+    }
+}
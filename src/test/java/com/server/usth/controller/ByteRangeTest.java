@@ -0,0 +1,50 @@
+package com.server.usth.controller;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ByteRangeTest {
+    private static final long SIZE = 1000;
+
+    @Test
+    void resolvesEachFormOfASingleRange() {
+        assertRange(0, 499, "bytes=0-499");
+        assertRange(500, 999, "bytes=500-");
+        assertRange(900, 999, "bytes=-100");
+        assertRange(990, 999, "bytes=990-5000");
+        assertRange(0, 999, "bytes=-5000");
+        assertRange(7, 7, "bytes= 7 - 7 ");
+    }
+
+    @Test
+    void ignoresHeadersItDoesNotUnderstand() {
+        for (String header : List.of("bytes=abc", "bytes=1-x", "bytes=500", "bytes=-", "bytes=--5", "bytes=+1-2",
+                "bytes=5-3", "bytes=0-1,5-6", "items=0-1", "0-1", "")) {
+            assertNull(ByteRange.parse(header, SIZE), header);
+        }
+        assertNull(ByteRange.parse(null, SIZE));
+    }
+
+    @Test
+    void rangesPastTheEndAreUnsatisfiable() {
+        for (String header : List.of("bytes=1000-", "bytes=1000-2000", "bytes=-0", "bytes=99999999999999999999-")) {
+            ByteRange range = ByteRange.parse(header, SIZE);
+            assertFalse(range.isSatisfiable(SIZE), header);
+        }
+        assertFalse(ByteRange.parse("bytes=0-", 0).isSatisfiable(0), "nothing to serve of an empty file");
+        assertFalse(ByteRange.parse("bytes=-5", 0).isSatisfiable(0));
+    }
+
+    private static void assertRange(long first, long last, String header) {
+        ByteRange range = ByteRange.parse(header, SIZE);
+        assertTrue(range.isSatisfiable(SIZE), header);
+        assertEquals(first, range.first, header);
+        assertEquals(last, range.last, header);
+    }
+}
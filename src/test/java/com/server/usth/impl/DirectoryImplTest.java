@@ -0,0 +1,97 @@
+package com.server.usth.impl;
+
+import com.server.usth.services.DaemonService;
+import com.server.usth.services.FileInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DirectoryImplTest {
+    private static final long GRACE_MILLIS = 1000;
+
+    @TempDir
+    Path stateDir;
+
+    @Test
+    void reannouncingUnchangedFilesKeepsTheirVersion() throws Exception {
+        DirectoryImpl directory = directory();
+        List<String> changed = new ArrayList<>();
+        directory.addFileListener(changed::add);
+        try {
+            directory.registerFiles("d1", List.of(file("a.txt", 10, 1000), file("b.txt", 20, 1000)));
+            assertEquals(List.of("a.txt", "b.txt"), changed);
+            long version = directory.getFileVersion("a.txt");
+
+            // A daemon restart or a lost lease reports the same storage again
+            directory.registerFiles("d1", List.of(file("a.txt", 10, 1000), file("b.txt", 20, 1000)));
+            assertEquals(version, directory.getFileVersion("a.txt"));
+            assertEquals(2, changed.size());
+
+            directory.registerFiles("d1", List.of(file("a.txt", 10, 2000), file("b.txt", 21, 1000)));
+            directory.registerFiles("d2", List.of(file("a.txt", 10, 1000)));
+            assertEquals(List.of("a.txt", "b.txt", "a.txt", "b.txt", "a.txt"), changed);
+            assertEquals(version + 2, directory.getFileVersion("a.txt"));
+        } finally {
+            directory.shutdown();
+        }
+    }
+
+    @Test
+    void restoredHoldersThatNeverComeBackAreDropped() throws Exception {
+        DaemonService d2 = Mockito.mock(DaemonService.class);
+        DirectoryImpl before = directory();
+        before.registerFile("a.txt", "d1");
+        before.registerFile("a.txt", "d2");
+        before.registerFile("b.txt", "d1");
+        before.shutdown();
+
+        DirectoryImpl after = directory();
+        try {
+            assertEquals(Set.of("a.txt", "b.txt"), after.getFilesHeldBy("d1"));
+            after.registerDaemon("d2", d2);
+
+            // Within the grace period nobody is dropped
+            after.expireLeases();
+            assertEquals(Set.of("a.txt", "b.txt"), after.getFilesHeldBy("d1"));
+
+            Thread.sleep(GRACE_MILLIS);
+            after.expireLeases();
+            assertEquals(Set.of(), after.getFilesHeldBy("d1"));
+            assertEquals(Set.of("a.txt"), after.getFilesHeldBy("d2"));
+        } finally {
+            after.shutdown();
+        }
+    }
+
+    private static FileInfo file(String filename, long size, long modified) {
+        return new FileInfo(filename, size, modified, null);
+    }
+
+    private DirectoryImpl directory() throws RemoteException {
+        DirectoryImpl directory = new DirectoryImpl();
+        ReflectionTestUtils.setField(directory, "stateDir", stateDir.toString());
+        ReflectionTestUtils.setField(directory, "snapshotIntervalMillis", 3_600_000L);
+        ReflectionTestUtils.setField(directory, "leaseMillis", 60_000L);
+        ReflectionTestUtils.setField(directory, "recoveryGraceMillis", GRACE_MILLIS);
+        ReflectionTestUtils.setField(directory, "replicationFactor", 3);
+        ReflectionTestUtils.setField(directory, "virtualNodes", 16);
+        ReflectionTestUtils.setField(directory, "rebalanceIntervalMillis", 3_600_000L);
+        ReflectionTestUtils.setField(directory, "rebalanceMaxMoves", 1);
+        ReflectionTestUtils.setField(directory, "placement", "replicate");
+        ReflectionTestUtils.setField(directory, "replicaRanking", "placement");
+        ReflectionTestUtils.setField(directory, "shards", "");
+        ReflectionTestUtils.setField(directory, "rmiRegistry", Mockito.mock(Registry.class));
+        directory.init();
+        return directory;
+    }
+}
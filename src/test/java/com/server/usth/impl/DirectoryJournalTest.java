@@ -0,0 +1,120 @@
+package com.server.usth.impl;
+
+import com.server.usth.services.ErasureLayout;
+import com.server.usth.services.FileManifest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectoryJournalTest {
+    private static final String HASH_A = "a".repeat(64);
+    private static final String HASH_B = "b".repeat(64);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replayStopsAtARecordTornByACrash() throws IOException {
+        State state = new State();
+        try (DirectoryJournal journal = state.recover(dir)) {
+            journal.addHolder("a.txt", "d1");
+            journal.addHolder("a.txt", "d2");
+            journal.putManifest(new FileManifest("a.txt", 2048, 1024, List.of(HASH_A, HASH_B)));
+            journal.removeHolder("a.txt", "d1");
+            // The crash hits while this one is being written
+            journal.addHolder("b.txt", "d3");
+        }
+        Path log = dir.resolve("journal-0.log");
+        long tornAt = Files.size(log) - 3;
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(tornAt);
+        }
+
+        State recovered = new State();
+        try (DirectoryJournal journal = recovered.recover(dir)) {
+            assertEquals(Map.of("a.txt", Set.of("d2")), recovered.fileRegistry);
+            assertEquals(List.of(HASH_A, HASH_B), recovered.manifests.get("a.txt").getChunkHashes());
+            assertTrue(Files.size(log) < tornAt, "the torn record is cut off");
+            // Appends after recovery follow the last whole record
+            journal.addHolder("c.txt", "d1");
+        }
+
+        State again = new State();
+        again.recover(dir).close();
+        assertEquals(Map.of("a.txt", Set.of("d2"), "c.txt", Set.of("d1")), again.fileRegistry);
+    }
+
+    @Test
+    void replayStopsAtARecordWithABadChecksum() throws IOException {
+        State state = new State();
+        try (DirectoryJournal journal = state.recover(dir)) {
+            journal.addHolder("a.txt", "d1");
+            journal.addHolder("b.txt", "d1");
+        }
+        Path log = dir.resolve("journal-0.log");
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[bytes.length - 5] ^= 0x01;
+        Files.write(log, bytes);
+
+        State recovered = new State();
+        recovered.recover(dir).close();
+        assertEquals(Map.of("a.txt", Set.of("d1")), recovered.fileRegistry);
+    }
+
+    @Test
+    void recoversFromTheSnapshotAndTheJournalAfterIt() throws IOException {
+        State state = new State();
+        try (DirectoryJournal journal = state.recover(dir)) {
+            state.addHolder(journal, "a.txt", "d1");
+            state.addHolder(journal, "a.txt", "d2");
+            ErasureLayout layout = new ErasureLayout("e.bin", 4096, 2, 1, 1024, List.of("d1", "d2", "d3"));
+            state.erasureFiles.put("e.bin", layout);
+            journal.putLayout(layout);
+
+            long generation = journal.rotate();
+            journal.snapshot(generation, state.fileRegistry, state.manifests, state.erasureFiles);
+            assertFalse(Files.exists(dir.resolve("journal-0.log")), "folded into the snapshot");
+
+            journal.addHolder("b.txt", "d3");
+            journal.removeDaemon("d1");
+            journal.putManifest(new FileManifest("b.txt", 1024, 1024, List.of(HASH_A)));
+        }
+
+        State recovered = new State();
+        recovered.recover(dir).close();
+        assertEquals(Map.of("a.txt", Set.of("d2"), "b.txt", Set.of("d3")), recovered.fileRegistry);
+        assertEquals(List.of("d1", "d2", "d3"), recovered.erasureFiles.get("e.bin").getShardOwners());
+        assertEquals(1024, recovered.manifests.get("b.txt").getSize());
+    }
+
+    // The maps the directory recovers into
+    private static final class State {
+        final Map<String, Set<String>> fileRegistry = new ConcurrentHashMap<>();
+        final Map<String, FileManifest> manifests = new ConcurrentHashMap<>();
+        final Map<String, ErasureLayout> erasureFiles = new ConcurrentHashMap<>();
+
+        DirectoryJournal recover(Path dir) throws IOException {
+            DirectoryJournal journal = new DirectoryJournal(dir);
+            journal.recover(fileRegistry, manifests, erasureFiles);
+            return journal;
+        }
+
+        void addHolder(DirectoryJournal journal, String filename, String daemonId) {
+            fileRegistry.computeIfAbsent(filename, k -> ConcurrentHashMap.newKeySet()).add(daemonId);
+            journal.addHolder(filename, daemonId);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.server.usth.impl;
+
+import com.server.usth.services.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+
+class DirectoryRouterTest {
+    private static final int SHARDS = 3;
+
+    private final List<Registry> registries = new ArrayList<>();
+    private final List<Directory> exported = new ArrayList<>();
+    private final List<String> endpoints = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        for (int i = 0; i < SHARDS; i++) {
+            int port = freePort();
+            registries.add(LocateRegistry.createRegistry(port));
+            endpoints.add("localhost:" + port);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (Directory shard : exported) {
+            unexport(shard);
+        }
+        registries.forEach(DirectoryRouterTest::unexport);
+    }
+
+    @Test
+    void perFileCallsGoToTheOwningShardAndListingsAreMerged() throws Exception {
+        List<Directory> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            Directory shard = bind(i);
+            Mockito.when(shard.getFileVersion(anyString())).thenReturn(i + 1L);
+            Mockito.when(shard.heartbeat(eq("d1"), any())).thenReturn(i != 1);
+            shards.add(shard);
+        }
+        Mockito.when(shards.get(0).getAvailableFiles()).thenReturn(Set.of("a"));
+        Mockito.when(shards.get(1).getAvailableFiles()).thenReturn(Set.of("b"));
+        Mockito.when(shards.get(2).getAvailableFiles()).thenReturn(Set.of("a", "c"));
+        Directory router = DirectoryRouter.connect("localhost", port(0));
+        assertInstanceOf(DirectoryRouter.class, router);
+
+        List<FileInfo> files = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            files.add(new FileInfo("file-" + i, i, 1000, null));
+        }
+        router.registerFiles("d1", files);
+        for (int i = 0; i < SHARDS; i++) {
+            Set<String> owned = new HashSet<>();
+            for (FileInfo file : files) {
+                if (DirectoryRouter.shardOf(file.getFilename(), SHARDS) == i) {
+                    owned.add(file.getFilename());
+                    assertEquals(i + 1L, router.getFileVersion(file.getFilename()));
+                }
+            }
+            assertEquals(owned, registeredOn(shards.get(i)), "shard " + i + " gets only its own files");
+        }
+
+        assertEquals(Set.of("a", "b", "c"), router.getAvailableFiles());
+        // One shard lost the lease, so the daemon must register again everywhere
+        assertFalse(router.heartbeat("d1", null));
+        for (Directory shard : shards) {
+            Mockito.verify(shard).heartbeat(eq("d1"), any());
+        }
+    }
+
+    @Test
+    void aRestartedShardIsLookedUpAgainAndTheCallRetried() throws Exception {
+        List<Directory> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add(bind(i));
+            Mockito.when(shards.get(i).getFileVersion(anyString())).thenReturn(1L);
+        }
+        Directory router = DirectoryRouter.connect("localhost", port(0));
+        String filename = fileOn(1);
+        assertEquals(1L, router.getFileVersion(filename));
+
+        // The old stub now points at nothing, and the restarted shard is bound in its place
+        unexport(shards.get(1));
+        Mockito.when(bind(1).getFileVersion(filename)).thenReturn(2L);
+
+        assertEquals(2L, router.getFileVersion(filename));
+    }
+
+    @Test
+    void aFailedCallIsReportedAndTheShardLookedUpOnTheNextOne() throws Exception {
+        bind(0);
+        bind(1);
+        Directory failing = bind(2);
+        Mockito.when(failing.getFileVersion(anyString())).thenThrow(new RemoteException("Journal write failed"));
+        Directory router = DirectoryRouter.connect("localhost", port(0));
+        String filename = fileOn(2);
+
+        // The call may have reached the shard, so it is not repeated
+        assertThrows(RemoteException.class, () -> router.getFileVersion(filename));
+        Mockito.verify(failing).getFileVersion(filename);
+
+        Mockito.when(bind(2).getFileVersion(filename)).thenReturn(3L);
+        assertEquals(3L, router.getFileVersion(filename));
+        Mockito.verify(failing).getFileVersion(filename);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> registeredOn(Directory shard) throws RemoteException {
+        ArgumentCaptor<Collection<FileInfo>> captor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(shard, Mockito.atMost(1)).registerFiles(eq("d1"), captor.capture());
+        Set<String> names = new HashSet<>();
+        for (Collection<FileInfo> batch : captor.getAllValues()) {
+            batch.forEach(file -> names.add(file.getFilename()));
+        }
+        return names;
+    }
+
+    // A mocked shard reachable over RMI at endpoint index, replacing whatever was bound there
+    private Directory bind(int index) throws RemoteException {
+        Directory shard = Mockito.mock(Directory.class);
+        Mockito.when(shard.getShards()).thenReturn(List.copyOf(endpoints));
+        exported.add(shard);
+        registries.get(index).rebind("Directory", UnicastRemoteObject.exportObject(shard, 0));
+        return shard;
+    }
+
+    private int port(int index) {
+        return Integer.parseInt(endpoints.get(index).split(":")[1]);
+    }
+
+    private static String fileOn(int shard) {
+        for (int i = 0; ; i++) {
+            if (DirectoryRouter.shardOf("file-" + i, SHARDS) == shard) {
+                return "file-" + i;
+            }
+        }
+    }
+
+    private static void unexport(Remote object) {
+        try {
+            UnicastRemoteObject.unexportObject(object, true);
+        } catch (NoSuchObjectException e) {
+            // Already gone
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
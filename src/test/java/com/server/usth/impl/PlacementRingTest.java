@@ -0,0 +1,114 @@
+package com.server.usth.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlacementRingTest {
+    private static final int DAEMONS = 10;
+    private static final int FILES = 20_000;
+    private static final int REPLICAS = 3;
+
+    @Test
+    void picksDistinctDaemonsUpToTheRingSize() {
+        PlacementRing ring = new PlacementRing(16);
+        assertEquals(List.of(), ring.replicas("file", REPLICAS));
+        ring.add("d1");
+        ring.add("d2");
+        assertEquals(Set.of("d1", "d2"), new HashSet<>(ring.replicas("file", REPLICAS)));
+        ring.add("d3");
+        ring.add("d4");
+        List<String> replicas = ring.replicas("file", REPLICAS);
+        assertEquals(REPLICAS, replicas.size());
+        assertEquals(REPLICAS, new HashSet<>(replicas).size());
+        assertEquals(replicas, ring.replicas("file", REPLICAS), "placement must be deterministic");
+        assertFalse(ring.add("d1"));
+        assertTrue(ring.remove("d1"));
+        assertFalse(ring.remove("d1"));
+    }
+
+    @Test
+    void virtualNodesSpreadFilesEvenly() {
+        PlacementRing ring = ring(DAEMONS, 64);
+        Map<String, Integer> primaries = new HashMap<>();
+        for (int f = 0; f < FILES; f++) {
+            primaries.merge(ring.replicas("file-" + f, 1).get(0), 1, Integer::sum);
+        }
+        assertEquals(DAEMONS, primaries.size());
+        double mean = (double) FILES / DAEMONS;
+        for (Map.Entry<String, Integer> share : primaries.entrySet()) {
+            assertTrue(share.getValue() > mean * 0.6 && share.getValue() < mean * 1.4,
+                    share.getKey() + " is primary for " + share.getValue() + " files, mean " + mean);
+        }
+    }
+
+    @Test
+    void joinMovesOnlyTheNewDaemonsShare() {
+        PlacementRing ring = ring(DAEMONS, 64);
+        List<List<String>> before = placements(ring);
+        ring.add("d" + DAEMONS);
+        List<List<String>> after = placements(ring);
+
+        int changed = 0;
+        for (int f = 0; f < FILES; f++) {
+            if (before.get(f).equals(after.get(f))) {
+                continue;
+            }
+            changed++;
+            // The newcomer took one slot; the other replicas stayed where they were
+            assertTrue(after.get(f).contains("d" + DAEMONS), "file-" + f + " moved between old daemons");
+            Set<String> kept = new HashSet<>(after.get(f));
+            kept.remove("d" + DAEMONS);
+            assertTrue(before.get(f).containsAll(kept), "file-" + f + " gained an old daemon");
+        }
+        // The newcomer holds about REPLICAS / (DAEMONS + 1) of the files
+        double expected = (double) FILES * REPLICAS / (DAEMONS + 1);
+        assertTrue(changed > expected * 0.6 && changed < expected * 1.4,
+                changed + " files moved, about " + expected + " expected");
+    }
+
+    @Test
+    void leaveMovesOnlyTheLeavingDaemonsFiles() {
+        PlacementRing ring = ring(DAEMONS, 64);
+        List<List<String>> before = placements(ring);
+        ring.remove("d3");
+        List<List<String>> after = placements(ring);
+
+        for (int f = 0; f < FILES; f++) {
+            if (!before.get(f).contains("d3")) {
+                assertEquals(before.get(f), after.get(f), "file-" + f + " moved without d3 holding it");
+            } else {
+                assertFalse(after.get(f).contains("d3"));
+                assertEquals(REPLICAS, after.get(f).size());
+                Set<String> kept = new HashSet<>(before.get(f));
+                kept.remove("d3");
+                assertTrue(after.get(f).containsAll(kept), "file-" + f + " lost a replica d3 did not hold");
+            }
+        }
+    }
+
+    private static PlacementRing ring(int daemons, int virtualNodes) {
+        PlacementRing ring = new PlacementRing(virtualNodes);
+        for (int d = 0; d < daemons; d++) {
+            ring.add("d" + d);
+        }
+        return ring;
+    }
+
+    private static List<List<String>> placements(PlacementRing ring) {
+        List<List<String>> placements = new ArrayList<>(FILES);
+        for (int f = 0; f < FILES; f++) {
+            placements.add(ring.replicas("file-" + f, REPLICAS));
+        }
+        return placements;
+    }
+}
@@ -0,0 +1,100 @@
+package com.server.usth.impl;
+
+import com.server.usth.services.DaemonLoad;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicaRankerTest {
+    private static final List<String> HOLDERS = List.of("d1", "d2", "d3");
+    private static final double MILLIS = 1_000_000;
+
+    @Test
+    void placementKeepsTheOrderGiven() {
+        ReplicaRanker ranker = new ReplicaRanker(ReplicaRanker.Policy.parse("placement"));
+        ranker.reported("d1", load(50, 0));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(HOLDERS, ranker.rank(HOLDERS));
+        }
+        assertEquals(51 * ReplicaRanker.DEFAULT_LATENCY_NANOS, ranker.score("d1"), 0.001);
+    }
+
+    @Test
+    void leastLoadedSortsByScoreAndCountsLookupsUntilTheNextReport() {
+        ReplicaRanker ranker = new ReplicaRanker(ReplicaRanker.Policy.parse("least-loaded"));
+        ranker.reported("d1", load(5, 0));
+
+        // Ties keep placement order
+        assertEquals(List.of("d2", "d3", "d1"), ranker.rank(HOLDERS));
+        // d2 was just handed out, so the next reader starts elsewhere
+        assertEquals(List.of("d3", "d2", "d1"), ranker.rank(HOLDERS));
+        assertEquals(List.of("d2", "d3", "d1"), ranker.rank(HOLDERS));
+        assertEquals(3 * ReplicaRanker.DEFAULT_LATENCY_NANOS, ranker.score("d2"), 0.001);
+
+        // A heartbeat covers the lookups handed out before it
+        ranker.reported("d2", load(0, 0));
+        assertEquals(ReplicaRanker.DEFAULT_LATENCY_NANOS, ranker.score("d2"), 0.001);
+        assertEquals(List.of("d2", "d3", "d1"), ranker.rank(HOLDERS));
+    }
+
+    @Test
+    void latencyBlendsWhatTheDaemonAndItsClientsReport() {
+        ReplicaRanker ranker = new ReplicaRanker(ReplicaRanker.Policy.parse("least-loaded"));
+        ranker.observed("d1", 4 * (long) MILLIS);
+        assertEquals(4 * MILLIS, ranker.score("d1"), 0.001);
+
+        ranker.reported("d1", load(0, 2 * (long) MILLIS));
+        assertEquals(3 * MILLIS, ranker.score("d1"), 0.001);
+        // The client average moves by CLIENT_LATENCY_WEIGHT towards each new report
+        ranker.observed("d1", 14 * (long) MILLIS);
+        assertEquals((7 + 2) / 2.0 * MILLIS, ranker.score("d1"), 0.001);
+        // A report without reads keeps the last read latency
+        ranker.reported("d1", load(1, 0));
+        assertEquals(2 * (7 + 2) / 2.0 * MILLIS, ranker.score("d1"), 0.001);
+
+        // Slower but idle still beats busy
+        ranker.reported("d2", load(20, (long) MILLIS));
+        assertEquals(List.of("d1", "d2"), ranker.rank(List.of("d2", "d1")));
+
+        ranker.forget("d1");
+        assertEquals(ReplicaRanker.DEFAULT_LATENCY_NANOS, ranker.score("d1"), 0.001);
+    }
+
+    @Test
+    void powerOfTwoChoicesKeepsTheHotDaemonBackAndSpreadsTheRest() {
+        ReplicaRanker ranker = new ReplicaRanker(ReplicaRanker.Policy.parse("p2c"));
+        ranker.reported("d1", load(1000, 0));
+        Map<String, Integer> first = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            List<String> ranked = ranker.rank(HOLDERS);
+            assertEquals(3, ranked.size());
+            assertTrue(ranked.containsAll(HOLDERS));
+            // Whichever pair is drawn, the hot daemon loses against the other one
+            assertEquals("d1", ranked.get(2));
+            first.merge(ranked.get(0), 1, Integer::sum);
+        }
+        assertTrue(first.get("d2") >= 100, "lookups spread: " + first);
+        assertTrue(first.get("d3") >= 100, "lookups spread: " + first);
+    }
+
+    @Test
+    void aSingleHolderIsNotCountedAndUnknownPoliciesAreRejected() {
+        ReplicaRanker ranker = new ReplicaRanker(ReplicaRanker.Policy.P2C);
+        assertEquals(List.of("d1"), ranker.rank(List.of("d1")));
+        assertEquals(ReplicaRanker.DEFAULT_LATENCY_NANOS, ranker.score("d1"), 0.001);
+
+        IllegalArgumentException failure = assertThrows(IllegalArgumentException.class,
+                () -> ReplicaRanker.Policy.parse("round-robin"));
+        assertTrue(failure.getMessage().contains("round-robin"));
+    }
+
+    private static DaemonLoad load(int inFlight, long readLatencyNanos) {
+        return new DaemonLoad(inFlight, 0, 0, 0, 0, 0, readLatencyNanos);
+    }
+}
@@ -0,0 +1,120 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Runs with the default budgets: 16 reads of which 4 background, 16 writes, 2 s of waiting
+class AdmissionControlTest {
+    private static final int MAX_READS = 16;
+    private static final int MAX_BACKGROUND = 4;
+    private static final int MAX_WRITES = 16;
+
+    private final AdmissionControl admission = new AdmissionControl("admission-test");
+    private final ExecutorService requests = Executors.newCachedThreadPool();
+    // In the order the queued requests were let in
+    private final List<String> admitted = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    void tearDown() {
+        requests.shutdownNow();
+    }
+
+    @Test
+    void queuedClientsTakeTurns() {
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            List<AdmissionControl.Permit> busy = hold(AdmissionControl.Kind.READ, MAX_READS);
+            List<Future<?>> waiting = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                waiting.add(queue(AdmissionControl.Kind.READ, "greedy"));
+            }
+            waiting.add(queue(AdmissionControl.Kind.READ, "other"));
+            waiting.add(queue(AdmissionControl.Kind.READ, "other"));
+
+            // Each request lets the next one in as it finishes, so one free slot serves the line
+            busy.remove(0).close();
+            for (Future<?> request : waiting) {
+                request.get();
+            }
+            assertEquals(List.of("greedy", "other", "greedy", "other", "greedy", "greedy"), admitted);
+            assertEquals(0, admission.getQueued());
+            busy.forEach(AdmissionControl.Permit::close);
+        });
+    }
+
+    @Test
+    void backgroundReadsGiveWayToClientReads() {
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            // Background work alone stops at its share of the read budget
+            List<AdmissionControl.Permit> background = hold(AdmissionControl.Kind.BACKGROUND, MAX_BACKGROUND);
+            Future<?> recovery = queue(AdmissionControl.Kind.BACKGROUND, "peer");
+            List<AdmissionControl.Permit> reads = hold(AdmissionControl.Kind.READ, MAX_READS - MAX_BACKGROUND);
+            Future<?> download = queue(AdmissionControl.Kind.READ, "client");
+
+            // Freed by background work, but the waiting client read goes first
+            background.remove(0).close();
+            download.get();
+            recovery.get();
+            assertEquals(List.of("client", "peer"), admitted);
+
+            // Writes have a budget of their own
+            hold(AdmissionControl.Kind.WRITE, MAX_WRITES).forEach(AdmissionControl.Permit::close);
+            background.forEach(AdmissionControl.Permit::close);
+            reads.forEach(AdmissionControl.Permit::close);
+        });
+    }
+
+    @Test
+    void aRequestWaitingTooLongIsTurnedAwayWithAHint() {
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            List<AdmissionControl.Permit> busy = hold(AdmissionControl.Kind.WRITE, MAX_WRITES);
+            DaemonBusyException failure = assertThrows(DaemonBusyException.class,
+                    () -> admission.admit(AdmissionControl.Kind.WRITE, "client"));
+            assertTrue(failure.getMessage().contains("waited too long"));
+            assertTrue(failure.getRetryAfterMillis() >= 10);
+            assertEquals(0, admission.getQueued());
+
+            busy.remove(0).close();
+            admission.admit(AdmissionControl.Kind.WRITE, "client").close();
+            busy.forEach(AdmissionControl.Permit::close);
+        });
+    }
+
+    private List<AdmissionControl.Permit> hold(AdmissionControl.Kind kind, int count) throws Exception {
+        int queued = admission.getQueued();
+        List<AdmissionControl.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            permits.add(admission.admit(kind, "holder"));
+        }
+        assertEquals(queued, admission.getQueued(), "admitted without waiting");
+        return permits;
+    }
+
+    // Returns once the request is in line; it records its client when let in and finishes
+    private Future<?> queue(AdmissionControl.Kind kind, String client) throws InterruptedException {
+        int before = admission.getQueued();
+        Future<?> request = requests.submit(() -> {
+            AdmissionControl.Permit permit = admission.admit(kind, client);
+            admitted.add(client);
+            permit.close();
+            return null;
+        });
+        while (admission.getQueued() == before) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        return request;
+    }
+}
@@ -0,0 +1,120 @@
+package com.server.usth.services;
+
+import com.server.usth.impl.DirectoryImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkCacheTest {
+    private static final byte[] CHUNK = "chunk bytes".getBytes(StandardCharsets.UTF_8);
+
+    private ChunkCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new ChunkCache();
+        ReflectionTestUtils.setField(cache, "budgetBytes", 16 * 1024L);
+        ReflectionTestUtils.setField(cache, "slotSize", 1024);
+        ReflectionTestUtils.setField(cache, "directory", Mockito.mock(DirectoryImpl.class));
+        cache.init();
+    }
+
+    @Test
+    void cancellingTheFetcherLeavesTheOtherWaitersTheirBytes() throws Exception {
+        CountDownLatch fetching = new CountDownLatch(1);
+        FutureTask<byte[]> first = new FutureTask<>(() -> cache.get("file", 1, 0, () -> {
+            fetching.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Fetch interrupted");
+            }
+            throw new AssertionError("unreachable");
+        }));
+        start(first);
+        assertTrue(fetching.await(10, TimeUnit.SECONDS));
+
+        AtomicInteger refetches = new AtomicInteger();
+        FutureTask<byte[]> second = new FutureTask<>(() -> cache.get("file", 1, 0, () -> {
+            refetches.incrementAndGet();
+            return CHUNK.clone();
+        }));
+        FutureTask<byte[]> third = new FutureTask<>(() -> cache.get("file", 1, 0, () -> {
+            refetches.incrementAndGet();
+            return CHUNK.clone();
+        }));
+        awaitWaiting(start(second));
+        awaitWaiting(start(third));
+
+        // The first client goes away while the others wait on its fetch
+        first.cancel(true);
+        assertThrows(CancellationException.class, first::get);
+        assertArrayEquals(CHUNK, second.get(10, TimeUnit.SECONDS));
+        assertArrayEquals(CHUNK, third.get(10, TimeUnit.SECONDS));
+        // One of them took over the fetch; the chunk is cached for everyone after that
+        assertTrue(refetches.get() >= 1);
+        assertArrayEquals(CHUNK, cache.get("file", 1, 0, () -> {
+            throw new AssertionError("the chunk should be cached");
+        }));
+    }
+
+    @Test
+    void aFailedFetchFailsEveryWaiter() throws Exception {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch fail = new CountDownLatch(1);
+        FutureTask<byte[]> first = new FutureTask<>(() -> cache.get("file", 1, 0, () -> {
+            fetching.countDown();
+            try {
+                fail.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Fetch interrupted");
+            }
+            throw new IOException("No replica answered");
+        }));
+        start(first);
+        assertTrue(fetching.await(10, TimeUnit.SECONDS));
+        FutureTask<byte[]> second = new FutureTask<>(() -> cache.get("file", 1, 0, () -> {
+            throw new AssertionError("the failed fetch must be shared");
+        }));
+        awaitWaiting(start(second));
+
+        fail.countDown();
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> second.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, failure.getCause());
+        assertEquals("No replica answered", failure.getCause().getMessage());
+        assertThrows(ExecutionException.class, first::get);
+    }
+
+    private static Thread start(FutureTask<byte[]> task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Blocked on the shared fetch
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(System.nanoTime() < deadline, "thread never waited on the fetch");
+            Thread.sleep(1);
+        }
+    }
+}
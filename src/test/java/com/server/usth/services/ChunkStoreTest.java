@@ -0,0 +1,91 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkStoreTest {
+    private static final long HOUR = 3_600_000;
+
+    @TempDir
+    Path storage;
+
+    @Test
+    void collectsChunksNoManifestReferences() throws IOException {
+        ChunkStore store = new ChunkStore(storage);
+        String shared = put(store, "shared");
+        String onlyOld = put(store, "only in the old version");
+        String onlyNew = put(store, "only in the new version");
+        store.commit(manifest("file", shared, onlyOld));
+        // Overwriting the file leaves onlyOld behind
+        store.commit(manifest("file", shared, onlyNew));
+        age(store, shared, onlyOld, onlyNew);
+
+        assertEquals(List.of(store.chunkPath(onlyOld)), store.collectGarbage(HOUR));
+        assertTrue(store.has(shared));
+        assertTrue(store.has(onlyNew));
+
+        store.remove("file");
+        assertEquals(2, store.collectGarbage(HOUR).size());
+        assertFalse(store.has(shared));
+        assertFalse(store.has(onlyNew));
+    }
+
+    @Test
+    void keepsRecentChunksForManifestsAboutToBeCommitted() throws IOException {
+        ChunkStore store = new ChunkStore(storage);
+        String fresh = put(store, "stored by an upload still in progress");
+        String found = put(store, "already here, found present by an upload");
+        age(store, found);
+        // An uploader checks which chunks it must send; present ones are kept for it
+        assertEquals(Set.of(), store.missing(List.of(found)));
+
+        assertEquals(List.of(), store.collectGarbage(HOUR));
+        store.commit(manifest("file", fresh, found));
+        age(store, fresh, found);
+        assertEquals(List.of(), store.collectGarbage(HOUR));
+    }
+
+    @Test
+    void rejectsHashesThatAreNotSha256Hex() throws IOException {
+        ChunkStore store = new ChunkStore(storage);
+        String valid = put(store, "valid");
+        for (String hash : List.of("", "a", "../../../../etc/passwd", "../" + valid.substring(3),
+                valid.toUpperCase(), valid + "0", valid.substring(1) + "g")) {
+            assertThrows(IOException.class, () -> store.missing(List.of(valid, hash)), hash);
+            assertThrows(IOException.class, () -> store.commit(manifest("file", hash)), hash);
+            assertThrows(IllegalArgumentException.class, () -> store.chunkPath(hash), hash);
+        }
+        assertThrows(IOException.class, () -> store.put("../" + valid.substring(3), "valid".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(Files.exists(store.manifestPath("file")));
+    }
+
+    private static String put(ChunkStore store, String content) throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        String hash = ChunkStore.sha256Hex(data, 0, data.length);
+        store.put(hash, data);
+        return hash;
+    }
+
+    private static FileManifest manifest(String filename, String... hashes) {
+        return new FileManifest(filename, 0, 1024, List.of(hashes));
+    }
+
+    private static void age(ChunkStore store, String... hashes) throws IOException {
+        for (String hash : hashes) {
+            Files.setLastModifiedTime(store.chunkPath(hash), FileTime.fromMillis(System.currentTimeMillis() - 2 * HOUR));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DaemonImplTest {
+    @TempDir
+    Path root;
+
+    private Path storage;
+    private Path secret;
+    private DaemonImpl daemon;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        storage = Files.createDirectories(root.resolve("storage"));
+        secret = Files.writeString(root.resolve("secret.txt"), "secret", StandardCharsets.UTF_8);
+        daemon = new DaemonImpl("daemon-test", storage.toString(), -1);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        UnicastRemoteObject.unexportObject(daemon, true);
+        daemon.getHandleCache().clear();
+    }
+
+    @Test
+    void refusesToTouchFilesOutsideStorage() throws IOException {
+        byte[] data = "overwritten".getBytes(StandardCharsets.UTF_8);
+        assertThrows(RemoteException.class, () -> daemon.deleteFile("../secret.txt"));
+        assertThrows(RemoteException.class, () -> daemon.receiveFile("../secret.txt", data));
+        assertThrows(RemoteException.class, () -> daemon.beginReceive("../secret.txt"));
+        assertThrows(RemoteException.class, () -> daemon.beginReceive("sub/../../secret.txt"));
+        assertThrows(NoSuchFileException.class, () -> daemon.writeRange("../secret.txt", 0, data));
+        assertThrows(NoSuchFileException.class, () -> daemon.resize("../secret.txt", 0));
+        assertThrows(RemoteException.class, () -> daemon.getFileDigest("../secret.txt"));
+
+        assertTrue(Files.exists(secret));
+        assertEquals("secret", Files.readString(secret));
+    }
+
+    @Test
+    void storesAndDeletesFilesInsideStorage() throws IOException {
+        daemon.receiveFile("kept.txt", "kept".getBytes(StandardCharsets.UTF_8));
+        assertEquals("kept", Files.readString(storage.resolve("kept.txt")));
+        daemon.deleteFile("kept.txt");
+        assertFalse(Files.exists(storage.resolve("kept.txt")));
+    }
+
+    @Test
+    void recoversFilesInSubdirectories() throws IOException {
+        Path sourceStorage = Files.createDirectories(root.resolve("source"));
+        Files.createDirectories(sourceStorage.resolve("sub"));
+        Files.writeString(sourceStorage.resolve("sub/file.txt"), "nested", StandardCharsets.UTF_8);
+        DaemonImpl source = new DaemonImpl("daemon-source", sourceStorage.toString(), -1);
+        try {
+            daemon.replicate("sub/file.txt", List.of(source));
+        } finally {
+            UnicastRemoteObject.unexportObject(source, true);
+            source.getHandleCache().clear();
+        }
+
+        assertEquals("nested", Files.readString(storage.resolve("sub/file.txt")));
+        try (var left = Files.list(storage.resolve("sub"))) {
+            assertEquals(List.of(storage.resolve("sub/file.txt")), left.toList(), "no temp file is left behind");
+        }
+    }
+
+    @Test
+    void expiresIdleUploads() throws IOException {
+        String idle = daemon.beginReceive("idle.txt");
+        daemon.receiveChunk(idle, 0, "partial".getBytes(StandardCharsets.UTF_8));
+        daemon.expireIdleUploads(60_000);
+        assertNotNull(daemon.getUploadChannel(idle), "a recent upload is kept");
+
+        daemon.expireIdleUploads(0);
+        assertNull(daemon.getUploadChannel(idle));
+        assertThrows(RemoteException.class, () -> daemon.commitReceive(idle));
+        try (var left = Files.list(storage)) {
+            assertEquals(List.of(), left.toList(), "the part file is deleted");
+        }
+    }
+}
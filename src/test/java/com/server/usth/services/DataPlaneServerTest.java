@@ -0,0 +1,65 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.server.UnicastRemoteObject;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DataPlaneServerTest {
+    private Path root;
+    private DaemonImpl daemon;
+    private DataPlaneServer server;
+    private DataPlaneClient client;
+    private InetSocketAddress endpoint;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Files.createTempDirectory("data-plane");
+        Path storage = Files.createDirectories(root.resolve("storage"));
+        Files.writeString(storage.resolve("stored.txt"), "stored", StandardCharsets.UTF_8);
+        Files.writeString(root.resolve("secret.txt"), "secret", StandardCharsets.UTF_8);
+        daemon = new DaemonImpl("data-plane-test", storage.toString(), -1);
+        server = new DataPlaneServer(daemon, new InetSocketAddress("localhost", 0));
+        server.start();
+        endpoint = new InetSocketAddress("localhost", server.getPort());
+        client = new DataPlaneClient();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        client.close();
+        server.stop();
+        UnicastRemoteObject.unexportObject(daemon, true);
+        try (var paths = Files.walk(root)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void servesFilesInsideStorage() throws IOException {
+        assertArrayEquals("stored".getBytes(StandardCharsets.UTF_8), client.read(endpoint, "stored.txt", 0, 64));
+    }
+
+    @Test
+    void refusesNamesOutsideStorage() {
+        IOException e = assertThrows(IOException.class, () -> client.read(endpoint, "../secret.txt", 0, 64));
+        assertTrue(e.getMessage().contains("outside the storage directory"), e.getMessage());
+    }
+
+    @Test
+    void answersNamesLongerThanASignedShort() {
+        // Used to be read as a negative length and kill the connection mid-request
+        IOException e = assertThrows(IOException.class, () -> client.read(endpoint, "x".repeat(40_000), 0, 64));
+        assertTrue(e.getMessage().startsWith("Cannot read"), e.getMessage());
+    }
+}
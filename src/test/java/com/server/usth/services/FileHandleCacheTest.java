@@ -0,0 +1,137 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileHandleCacheTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void aHitReusesTheOpenChannel() throws IOException {
+        Path file = write("a.txt", "0123456789");
+        FileHandleCache cache = new FileHandleCache(4);
+
+        assertEquals("2345", read(cache, file, 2, 4));
+        assertEquals("789", read(cache, file, 7, 10), "a read past the end is cut short");
+        assertEquals(10, cache.size(file));
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getOpenHandles());
+        cache.clear();
+        assertEquals(0, cache.getOpenHandles());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedBeyondCapacity() throws IOException {
+        Path a = write("a.txt", "a");
+        Path b = write("b.txt", "b");
+        Path c = write("c.txt", "c");
+        FileHandleCache cache = new FileHandleCache(2);
+        read(cache, a, 0, 1);
+        read(cache, b, 0, 1);
+        read(cache, a, 0, 1);
+        read(cache, c, 0, 1);
+
+        assertEquals(2, cache.getOpenHandles());
+        assertEquals(1, cache.getEvictions());
+        long misses = cache.getMisses();
+        read(cache, a, 0, 1);
+        read(cache, c, 0, 1);
+        assertEquals(misses, cache.getMisses(), "a and c stay open");
+        read(cache, b, 0, 1);
+        assertEquals(misses + 1, cache.getMisses(), "b was evicted");
+        cache.clear();
+    }
+
+    @Test
+    void invalidateDropsTheChannelOfAReplacedFile() throws IOException {
+        Path file = write("a.txt", "old");
+        FileHandleCache cache = new FileHandleCache(4);
+        assertEquals("old", read(cache, file, 0, 3));
+
+        Path replacement = write(".a.txt.part", "new");
+        Files.move(replacement, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The cached channel still reads the file it opened
+        assertEquals("old", read(cache, file, 0, 3));
+        cache.invalidate(file);
+        assertEquals("new", read(cache, file, 0, 3));
+        cache.clear();
+    }
+
+    @Test
+    void readsRegionsSpreadOverSeveralFiles() throws IOException {
+        Path first = write("first", "abcdef");
+        Path second = write("second", "ghijkl");
+        FileHandleCache cache = new FileHandleCache(4);
+        byte[] data = cache.read(List.of(new FileHandleCache.Region(first, 3, 3),
+                new FileHandleCache.Region(second, 0, 2)));
+        assertEquals("defgh", new String(data, StandardCharsets.UTF_8));
+        cache.clear();
+    }
+
+    @Test
+    void concurrentReadersNeverSeeAChannelClosedUnderThem() throws Exception {
+        int files = 16;
+        List<Path> paths = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            byte[] content = new byte[4096];
+            ThreadLocalRandom.current().nextBytes(content);
+            paths.add(Files.write(dir.resolve("file-" + i), content));
+            contents.add(content);
+        }
+        // Far fewer handles than files, so readers race evictions all the time
+        FileHandleCache cache = new FileHandleCache(3);
+        ExecutorService readers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                done.add(readers.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int n = 0; n < 2000; n++) {
+                        int i = random.nextInt(files);
+                        int offset = random.nextInt(4096);
+                        byte[] expected = Arrays.copyOfRange(contents.get(i), offset, 4096);
+                        assertArrayEquals(expected, cache.read(paths.get(i), offset, 4096));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> reader : done) {
+                reader.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getOpenHandles() <= 3, "trimmed back to capacity once readers stop");
+        cache.clear();
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.writeString(dir.resolve(name), content, StandardCharsets.UTF_8);
+    }
+
+    private static String read(FileHandleCache cache, Path file, long offset, int size) throws IOException {
+        return new String(cache.read(file, offset, size), StandardCharsets.UTF_8);
+    }
+}
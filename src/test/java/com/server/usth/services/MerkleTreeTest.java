@@ -0,0 +1,107 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MerkleTreeTest {
+    private static final int CHUNK = 1024;
+
+    @Test
+    void treesOfTheSameSizeHaveTheSameShape() {
+        assertEquals(0, MerkleTree.heightFor(0, CHUNK));
+        assertEquals(0, MerkleTree.heightFor(CHUNK, CHUNK));
+        assertEquals(1, MerkleTree.heightFor(CHUNK + 1, CHUNK));
+        assertEquals(3, MerkleTree.heightFor(5L * CHUNK, CHUNK));
+        assertEquals(3, MerkleTree.heightFor(8L * CHUNK, CHUNK));
+        assertEquals(4, MerkleTree.heightFor(8L * CHUNK + 1, CHUNK));
+
+        long size = 5L * CHUNK + 10;
+        MerkleTree a = MerkleTree.build(size, CHUNK, leaves(6, -1));
+        MerkleTree b = MerkleTree.build(size, CHUNK, leaves(6, -1));
+        assertEquals(3, a.getHeight());
+        assertArrayEquals(a.root(), b.root());
+        // Leaves past the last chunk are padding
+        assertArrayEquals(new byte[32], a.leaf(7));
+    }
+
+    @Test
+    void anyChangedLeafChangesTheRoot() {
+        long size = 6L * CHUNK;
+        byte[] root = MerkleTree.build(size, CHUNK, leaves(6, -1)).root();
+        for (int changed = 0; changed < 6; changed++) {
+            MerkleTree other = MerkleTree.build(size, CHUNK, leaves(6, changed));
+            assertFalse(Arrays.equals(root, other.root()), "leaf " + changed);
+        }
+    }
+
+    @Test
+    void diffFindsExactlyTheDifferingLeaves() throws IOException {
+        long size = 100L * CHUNK;
+        MerkleTree ours = MerkleTree.build(size, CHUNK, leaves(100, -1));
+        List<byte[]> changed = leaves(100, -1);
+        changed.set(3, hash("changed 3"));
+        changed.set(64, hash("changed 64"));
+        changed.set(99, hash("changed 99"));
+        MerkleTree theirs = MerkleTree.build(size, CHUNK, changed);
+
+        AtomicInteger requested = new AtomicInteger();
+        Map<Integer, byte[]> differing = MerkleTree.diff(ours, (depth, indexes) -> {
+            requested.addAndGet(indexes.length);
+            return theirs.nodes(depth, indexes);
+        });
+        assertEquals(List.of(3, 64, 99), new ArrayList<>(differing.keySet()));
+        assertArrayEquals(hash("changed 64"), differing.get(64));
+        // Only the paths to the three leaves are compared, not all 255 nodes
+        assertTrue(requested.get() <= 1 + 2 * 3 * ours.getHeight(), requested.get() + " nodes requested");
+    }
+
+    @Test
+    void identicalTreesDiffToNothing() throws IOException {
+        MerkleTree ours = MerkleTree.build(10L * CHUNK, CHUNK, leaves(10, -1));
+        MerkleTree theirs = MerkleTree.build(10L * CHUNK, CHUNK, leaves(10, -1));
+        assertTrue(MerkleTree.diff(ours, theirs::nodes).isEmpty());
+    }
+
+    @Test
+    void manifestTreeMatchesTheBuiltOne() {
+        List<byte[]> leaves = leaves(5, -1);
+        List<String> hex = new ArrayList<>();
+        for (byte[] leaf : leaves) {
+            hex.add(HexFormat.of().formatHex(leaf));
+        }
+        FileManifest manifest = new FileManifest("file", 5L * CHUNK, CHUNK, hex);
+        assertArrayEquals(MerkleTree.build(5L * CHUNK, CHUNK, leaves).root(), MerkleTree.fromManifest(manifest).root());
+    }
+
+    // count leaf hashes, with leaf changed (if not -1) different from the default
+    private static List<byte[]> leaves(int count, int changed) {
+        List<byte[]> leaves = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            leaves.add(hash(i == changed ? "other " + i : "chunk " + i));
+        }
+        return leaves;
+    }
+
+    private static byte[] hash(String content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
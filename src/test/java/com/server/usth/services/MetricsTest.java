@@ -0,0 +1,39 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsTest {
+
+    @Test
+    void daemonSnapshotsKeepTheirProcessWideSeriesApart() {
+        Metrics.Counter requests = Metrics.counter("test_merge_requests_total", "Requests");
+        Metrics.Counter bySource = Metrics.counter("test_merge_received_total", "Received", "source", "d9");
+        Metrics.Counter own = Metrics.counter("test_merge_own_total", "Own", "daemon", "d1");
+        Metrics.Histogram latency = Metrics.timer("test_merge_seconds", "Latency");
+        requests.add(3);
+        bySource.add(7);
+        own.add(1);
+        latency.record(1_000_000);
+        Metrics.Snapshot first = Metrics.snapshot().labelled("daemon", "d1");
+        requests.add(2);
+        Metrics.Snapshot second = Metrics.snapshot().labelled("daemon", "d2");
+
+        Metrics.Snapshot merged = Metrics.snapshot();
+        merged.merge(first);
+        merged.merge(second);
+        List<String> lines = List.of(merged.toPrometheus().split("\n"));
+
+        assertTrue(lines.contains("test_merge_requests_total 5"), "the scraping process keeps its own");
+        assertTrue(lines.contains("test_merge_requests_total{daemon=\"d1\"} 3"));
+        assertTrue(lines.contains("test_merge_requests_total{daemon=\"d2\"} 5"));
+        assertTrue(lines.contains("test_merge_received_total{daemon=\"d1\",source=\"d9\"} 7"));
+        // Already labelled with a daemon: left as it is
+        assertTrue(lines.contains("test_merge_own_total{daemon=\"d1\"} 1"));
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("test_merge_seconds{daemon=\"d2\",quantile=\"0.5\"}")));
+        assertTrue(lines.contains("test_merge_seconds_count{daemon=\"d2\"} 1"));
+    }
+}
@@ -0,0 +1,107 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ReedSolomonTest {
+    private static final int BLOCK = 257;
+
+    @Test
+    void rebuildsEveryCombinationOfUpToParityLostShards() {
+        int[][] layouts = {{4, 2}, {3, 3}, {6, 3}, {1, 1}, {2, 1}, {10, 4}};
+        for (int[] layout : layouts) {
+            int data = layout[0];
+            int parity = layout[1];
+            ReedSolomon codec = new ReedSolomon(data, parity);
+            byte[][] encoded = encoded(codec, new Random(data * 31L + parity));
+            int total = data + parity;
+            int combinations = 0;
+            for (int lost = 0; lost < 1 << total; lost++) {
+                if (Integer.bitCount(lost) > parity) {
+                    continue;
+                }
+                byte[][] shards = new byte[total][];
+                boolean[] present = new boolean[total];
+                for (int i = 0; i < total; i++) {
+                    present[i] = (lost & (1 << i)) == 0;
+                    // Lost shards hold garbage, which reconstruct must overwrite
+                    shards[i] = present[i] ? encoded[i].clone() : filled(BLOCK, (byte) 0x5a);
+                }
+                codec.reconstruct(shards, present, 0, BLOCK);
+                for (int i = 0; i < total; i++) {
+                    assertArrayEquals(encoded[i], shards[i],
+                            data + "+" + parity + ", lost mask " + Integer.toBinaryString(lost) + ", shard " + i);
+                }
+                combinations++;
+            }
+            assertEquals(expectedCombinations(total, parity), combinations);
+        }
+    }
+
+    @Test
+    void codesOnlyTheRequestedRange() {
+        ReedSolomon codec = new ReedSolomon(4, 2);
+        byte[][] shards = encoded(codec, new Random(7));
+        byte[][] damaged = new byte[6][];
+        boolean[] present = {true, false, true, true, false, true};
+        for (int i = 0; i < 6; i++) {
+            damaged[i] = present[i] ? shards[i].clone() : new byte[BLOCK];
+        }
+        codec.reconstruct(damaged, present, 100, 50);
+        for (int i = 0; i < 6; i++) {
+            for (int b = 0; b < BLOCK; b++) {
+                byte expected = present[i] || (b >= 100 && b < 150) ? shards[i][b] : 0;
+                assertEquals(expected, damaged[i][b], "shard " + i + " byte " + b);
+            }
+        }
+    }
+
+    @Test
+    void refusesToRebuildFromTooFewShards() {
+        ReedSolomon codec = new ReedSolomon(4, 2);
+        byte[][] shards = encoded(codec, new Random(3));
+        boolean[] present = {true, false, true, false, false, true};
+        assertThrows(IllegalArgumentException.class, () -> codec.reconstruct(shards, present, 0, BLOCK));
+    }
+
+    @Test
+    void rejectsInvalidShardCounts() {
+        assertThrows(IllegalArgumentException.class, () -> new ReedSolomon(0, 2));
+        assertThrows(IllegalArgumentException.class, () -> new ReedSolomon(4, -1));
+        assertThrows(IllegalArgumentException.class, () -> new ReedSolomon(200, 57));
+    }
+
+    private static byte[][] encoded(ReedSolomon codec, Random random) {
+        int total = codec.getDataShards() + codec.getParityShards();
+        byte[][] shards = new byte[total][BLOCK];
+        for (int i = 0; i < codec.getDataShards(); i++) {
+            random.nextBytes(shards[i]);
+        }
+        codec.encodeParity(shards, 0, BLOCK);
+        return shards;
+    }
+
+    private static byte[] filled(int length, byte value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+
+    private static int expectedCombinations(int total, int upTo) {
+        int sum = 0;
+        for (int k = 0; k <= upTo; k++) {
+            long c = 1;
+            for (int i = 0; i < k; i++) {
+                c = c * (total - i) / (i + 1);
+            }
+            sum += (int) c;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,107 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransferCodecTest {
+    private static final int SIZE = 256 * 1024;
+
+    @Test
+    void roundTripsAtEveryLevel() throws IOException {
+        byte[] data = text(SIZE);
+        for (int level = 0; level <= 9; level++) {
+            byte[] frame = TransferCodec.encode(data, 0, data.length, level);
+            assertEquals(level == 0 ? TransferCodec.RAW : TransferCodec.DEFLATE, frame[0], "level " + level);
+            if (level > 0) {
+                assertTrue(frame.length < data.length / 2, "level " + level + " sent " + frame.length + " bytes");
+            }
+            assertArrayEquals(data, TransferCodec.decode(frame), "level " + level);
+        }
+        // Levels past 9 are clamped
+        assertArrayEquals(data, TransferCodec.decode(TransferCodec.encode(data, 0, data.length, 12)));
+    }
+
+    @Test
+    void encodesOnlyTheGivenRange() throws IOException {
+        byte[] data = text(SIZE);
+        byte[] range = Arrays.copyOfRange(data, 1000, 1000 + 50_000);
+        assertArrayEquals(range, TransferCodec.decode(TransferCodec.encode(data, 1000, 50_000, 6)));
+        assertArrayEquals(range, TransferCodec.decode(TransferCodec.encode(data, 1000, 50_000, 0)));
+        assertArrayEquals(new byte[0], TransferCodec.decode(TransferCodec.encode(data, 10, 0, 6)));
+    }
+
+    @Test
+    void sendsIncompressibleChunksRaw() throws IOException {
+        byte[] data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+        byte[] frame = TransferCodec.encode(data, 0, data.length, 9);
+        assertEquals(TransferCodec.RAW, frame[0]);
+        assertEquals(TransferCodec.HEADER_SIZE + data.length, frame.length);
+        assertArrayEquals(data, TransferCodec.decode(frame));
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        byte[] data = text(SIZE);
+        byte[] compressed = TransferCodec.encode(data, 0, data.length, 6);
+        byte[] raw = TransferCodec.encode(data, 0, 1000, 0);
+
+        assertRejected(new byte[]{TransferCodec.RAW, 0, 0});
+        assertRejected(Arrays.copyOf(raw, raw.length - 1));
+        assertRejected(Arrays.copyOf(compressed, compressed.length / 2));
+
+        byte[] unknown = raw.clone();
+        unknown[0] = 7;
+        assertRejected(unknown);
+
+        byte[] corrupt = compressed.clone();
+        for (int i = TransferCodec.HEADER_SIZE + 10; i < corrupt.length; i += 7) {
+            corrupt[i] ^= 0x5a;
+        }
+        assertRejected(corrupt);
+
+        // The claimed length must match what the payload inflates to, either way
+        assertRejected(withLength(compressed, data.length + 1));
+        assertRejected(withLength(compressed, data.length - 1));
+    }
+
+    @Test
+    void rejectsLengthClaimsBeforeAllocating() {
+        // A hostile header must not make the receiver allocate whatever it claims
+        byte[] huge = withLength(new byte[TransferCodec.HEADER_SIZE + 16], TransferCodec.MAX_CHUNK_SIZE + 1);
+        huge[0] = TransferCodec.DEFLATE;
+        IOException e = assertRejected(huge);
+        assertTrue(e.getMessage().contains("at most"), e.getMessage());
+        assertRejected(withLength(new byte[TransferCodec.HEADER_SIZE], -1));
+    }
+
+    private static IOException assertRejected(byte[] frame) {
+        return assertThrows(IOException.class, () -> TransferCodec.decode(frame));
+    }
+
+    private static byte[] withLength(byte[] frame, int length) {
+        byte[] copy = frame.clone();
+        ByteBuffer.wrap(copy).putInt(1, length);
+        return copy;
+    }
+
+    // Log-like lines, which Deflate shrinks well
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; text.length() < size; line++) {
+            text.append("2026-10-17T12:00:").append(line % 60).append(" INFO chunk ").append(line)
+                    .append(" stored on daemon-").append(line % 5).append('\n');
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+}
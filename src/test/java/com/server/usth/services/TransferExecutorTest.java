@@ -0,0 +1,133 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransferExecutorTest {
+    private static final int PER_DAEMON = Integer.getInteger("transfer.maxPerDaemon", 8);
+
+    private final TransferExecutor transfers = TransferExecutor.shared();
+    // Released at the end of every test, so nothing stays blocked in the shared pool
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    void aBlockedDaemonHoldsOnlyItsOwnPermits() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        CountDownLatch saturated = new CountDownLatch(PER_DAEMON);
+        List<Future<Void>> blocked = new ArrayList<>();
+        for (int i = 0; i < PER_DAEMON + 2; i++) {
+            blocked.add(transfers.submit("blocked-permits", () -> {
+                started.incrementAndGet();
+                saturated.countDown();
+                release.await();
+                return null;
+            }));
+        }
+        assertTrue(saturated.await(10, TimeUnit.SECONDS));
+
+        // Another daemon's request runs at once, and none of the queued ones sneaks in
+        assertEquals("ran", transfers.submit("other-permits", () -> "ran").get(10, TimeUnit.SECONDS));
+        assertEquals(PER_DAEMON, started.get());
+
+        release.countDown();
+        for (Future<Void> request : blocked) {
+            request.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(PER_DAEMON + 2, started.get());
+    }
+
+    @Test
+    void closingAScopeCancelsRunningAndQueuedForks() throws Exception {
+        CountDownLatch saturated = new CountDownLatch(PER_DAEMON);
+        CountDownLatch interrupted = new CountDownLatch(PER_DAEMON);
+        AtomicInteger started = new AtomicInteger();
+        List<Future<Void>> forks = new ArrayList<>();
+        try (TransferExecutor.Scope scope = transfers.scope(Integer.MAX_VALUE)) {
+            for (int i = 0; i < PER_DAEMON + 1; i++) {
+                forks.add(scope.fork("blocked-scope", () -> {
+                    started.incrementAndGet();
+                    saturated.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                    return null;
+                }));
+            }
+            assertTrue(saturated.await(10, TimeUnit.SECONDS));
+        }
+
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS), "running forks are interrupted");
+        for (Future<Void> fork : forks) {
+            assertTrue(fork.isCancelled());
+        }
+        // The queued fork never started, and the daemon's permits are free again
+        assertEquals("ran", transfers.submit("blocked-scope", () -> "ran").get(10, TimeUnit.SECONDS));
+        assertEquals(PER_DAEMON, started.get());
+    }
+
+    @Test
+    void aFailedForkCancelsTheOthersAndJoinReportsIt() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        try (TransferExecutor.Scope scope = transfers.scope(4)) {
+            Future<Void> blocked = scope.fork("blocked-join", () -> {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            });
+            assertTrue(running.await(10, TimeUnit.SECONDS));
+            scope.fork(() -> {
+                throw new IOException("Daemon gone");
+            });
+
+            IOException failure = assertThrows(IOException.class, scope::join);
+            assertEquals("Daemon gone", failure.getMessage());
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+            assertTrue(blocked.isCancelled());
+        }
+    }
+
+    @Test
+    void awaitCancelsARequestPastItsDeadline() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Future<Void> request = transfers.submit("blocked-await", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return null;
+        });
+
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> TransferExecutor.await(request, 100));
+        assertInstanceOf(IOException.class, failure.getCause());
+        assertTrue(request.isCancelled());
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    }
+}
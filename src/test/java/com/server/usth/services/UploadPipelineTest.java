@@ -0,0 +1,79 @@
+package com.server.usth.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+
+class UploadPipelineTest {
+    private static final int CHUNK = 1024;
+
+    private UploadPipeline pipeline;
+
+    @BeforeEach
+    void setUp() {
+        pipeline = new UploadPipeline();
+        ReflectionTestUtils.setField(pipeline, "chunkSize", CHUNK);
+        ReflectionTestUtils.setField(pipeline, "minReplicas", 2);
+        ReflectionTestUtils.setField(pipeline, "requestTimeoutMillis", 300L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    void dropsADaemonThatNeverAnswersAndCancelsItsRequest() throws Exception {
+        byte[] content = new byte[4 * CHUNK + 10];
+        new Random(1).nextBytes(content);
+        DaemonService first = daemon("first");
+        DaemonService hung = daemon("hung");
+        DaemonService last = daemon("last");
+        CountDownLatch cancelled = new CountDownLatch(1);
+        Mockito.doAnswer(call -> {
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                cancelled.countDown();
+            }
+            throw new RemoteException("Interrupted");
+        }).when(hung).receiveChunk(anyString(), anyLong(), any());
+
+        UploadPipeline.UploadResult result = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> pipeline.stream("file.bin", new ByteArrayInputStream(content), List.of(first, hung, last)));
+
+        assertEquals(List.of("first", "last"), result.getDaemonIds());
+        assertEquals(content.length, result.getBytes());
+        assertTrue(cancelled.await(10, TimeUnit.SECONDS), "the overdue request is cancelled");
+        Mockito.verify(hung, Mockito.timeout(10_000)).abortReceive("upload-hung");
+        Mockito.verify(hung, Mockito.never()).commitReceive(anyString());
+        Mockito.verify(first).commitReceive("upload-first");
+        Mockito.verify(last).commitReceive("upload-last");
+        Mockito.verify(last, Mockito.times(5)).receiveChunk(anyString(), anyLong(), any());
+    }
+
+    private static DaemonService daemon(String id) throws IOException {
+        DaemonService daemon = Mockito.mock(DaemonService.class);
+        Mockito.when(daemon.getDaemonId()).thenReturn(id);
+        Mockito.when(daemon.beginReceive("file.bin")).thenReturn("upload-" + id);
+        return daemon;
+    }
+}
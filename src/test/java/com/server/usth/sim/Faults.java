@@ -0,0 +1,117 @@
+package com.server.usth.sim;
+
+import com.server.usth.services.BandwidthThrottle;
+import com.server.usth.services.DaemonService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// What goes wrong on the way to one daemon: a fixed delay plus jitter before every call,
+// a bandwidth cap on the chunk bytes it moves, a share of calls that fail, and a
+// partition that fails them all. Settings can be changed while a workload runs.
+//
+// The wrapper hides the daemon's data plane unless dataPlane(true) is set, so readers and
+// writers fall back to RMI and every transfer passes through the faults.
+public class Faults {
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile BandwidthThrottle bandwidth = new BandwidthThrottle(0);
+    private volatile double errorRate;
+    private volatile boolean partitioned;
+    private volatile boolean dataPlane;
+
+    public Faults latency(long millis, long jitter) {
+        this.latencyMillis = millis;
+        this.jitterMillis = jitter;
+        return this;
+    }
+
+    // Bytes per second in and out of the daemon, 0 for no cap
+    public Faults bandwidth(long bytesPerSecond) {
+        this.bandwidth = new BandwidthThrottle(bytesPerSecond);
+        return this;
+    }
+
+    // Share of calls, between 0 and 1, that fail with a RemoteException
+    public Faults errorRate(double rate) {
+        this.errorRate = rate;
+        return this;
+    }
+
+    public Faults partitioned(boolean partitioned) {
+        this.partitioned = partitioned;
+        return this;
+    }
+
+    public Faults dataPlane(boolean exposed) {
+        this.dataPlane = exposed;
+        return this;
+    }
+
+    public Faults clear() {
+        return latency(0, 0).bandwidth(0).errorRate(0).partitioned(false);
+    }
+
+    // A DaemonService that applies these faults before handing calls to the daemon
+    DaemonService wrap(DaemonService daemon) {
+        return (DaemonService) Proxy.newProxyInstance(DaemonService.class.getClassLoader(),
+                new Class<?>[]{DaemonService.class}, new Injector(daemon));
+    }
+
+    private class Injector implements InvocationHandler {
+        private final DaemonService daemon;
+
+        Injector(DaemonService daemon) {
+            this.daemon = daemon;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+            if (partitioned) {
+                throw new ConnectException("Injected partition");
+            }
+            long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+            if (delay > 0) {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                throw new RemoteException("Injected failure of " + method.getName());
+            }
+            if (method.getName().equals("getDataEndpoint") && !dataPlane) {
+                return null;
+            }
+            bandwidth.acquire(payload(args));
+            Object result;
+            try {
+                result = method.invoke(daemon, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            bandwidth.acquire(payload(result));
+            return result;
+        }
+    }
+
+    private static long payload(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        if (value instanceof Object[]) {
+            long total = 0;
+            for (Object element : (Object[]) value) {
+                total += payload(element);
+            }
+            return total;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,219 @@
+package com.server.usth.sim;
+
+import com.server.usth.DirectoryNode;
+import com.server.usth.impl.DirectoryImpl;
+import com.server.usth.services.DaemonService;
+import com.server.usth.services.UploadPipeline;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// A directory and any number of daemons on one machine, for tests and load experiments:
+// the directory runs in this JVM on a free port, daemons run either here too or as child
+// processes, each on ephemeral ports with storage under a temporary root. Leases and
+// heartbeats are shortened so crashes are noticed within seconds.
+//
+// Clients in this JVM (DownloadClient, the upload pipeline) find the directory through
+// -Ddirectory.port, which the cluster sets while it runs; only one cluster per JVM.
+public class SimCluster implements AutoCloseable {
+    static final long LEASE_MILLIS = 3000;
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    final Path root;
+    final boolean childProcesses;
+    final int port;
+    final ConfigurableApplicationContext directoryContext;
+    final DirectoryImpl directory;
+    private final Map<String, SimDaemon> daemons = new LinkedHashMap<>();
+    private final List<String> extraProperties;
+    private final Map<String, String> savedProperties = new HashMap<>();
+    private ConfigurableApplicationContext uploadContext;
+    private int nextId = 1;
+
+    public SimCluster(boolean childProcesses) throws IOException {
+        this(childProcesses, new String[0]);
+    }
+
+    // Extra daemon properties as name=value, e.g. tighter admission limits
+    public SimCluster(boolean childProcesses, String... properties) throws IOException {
+        this.root = Files.createTempDirectory("sim-cluster");
+        this.childProcesses = childProcesses;
+        this.extraProperties = List.of(properties);
+        this.port = freePort();
+        for (String property : daemonProperties()) {
+            String[] pair = property.split("=", 2);
+            savedProperties.put(pair[0], System.getProperty(pair[0]));
+            System.setProperty(pair[0], pair[1]);
+        }
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        this.directoryContext = new SpringApplicationBuilder(DirectoryNode.class)
+                .web(WebApplicationType.NONE)
+                .run("--directory.rmi-port=" + port, "--directory.shards=", "--directory.state-dir=",
+                        "--directory.lease-millis=" + LEASE_MILLIS, "--directory.rebalance.interval-millis=1000",
+                        "--spring.devtools.livereload.enabled=false", "--logging.level.root=WARN");
+        this.directory = directoryContext.getBean(DirectoryImpl.class);
+    }
+
+    // System properties every daemon runs with, here and in child processes
+    List<String> daemonProperties() {
+        List<String> properties = new ArrayList<>(extraProperties);
+        properties.add("directory.port=" + port);
+        properties.add("daemon.heartbeatMillis=" + HEARTBEAT_MILLIS);
+        return properties;
+    }
+
+    public SimDaemon addDaemon() throws Exception {
+        return addDaemon(storage -> { });
+    }
+
+    // The seeder fills the storage directory before the daemon starts and announces it
+    public synchronized SimDaemon addDaemon(Seeder seeder) throws Exception {
+        String id = "sim" + nextId++;
+        Path storage = Files.createDirectories(root.resolve(id));
+        seeder.seed(storage);
+        SimDaemon daemon = new SimDaemon(this, id, storage);
+        daemons.put(id, daemon);
+        daemon.start();
+        return daemon;
+    }
+
+    public synchronized SimDaemon daemon(String id) {
+        return daemons.get(id);
+    }
+
+    public synchronized List<SimDaemon> daemons() {
+        return new ArrayList<>(daemons.values());
+    }
+
+    public DirectoryImpl directory() {
+        return directory;
+    }
+
+    // Uploads through the same pipeline as the web application, to the file's placement
+    public UploadPipeline.UploadResult upload(String filename, byte[] content) throws Exception {
+        List<DaemonService> targets = directory.getPlacement(filename);
+        if (targets.isEmpty()) {
+            throw new IllegalStateException("No daemons to place " + filename + " on");
+        }
+        UploadPipeline.UploadResult result = uploader()
+                .stream(filename, new ByteArrayInputStream(content), targets);
+        directory.registerManifest(result.getManifest());
+        for (String daemonId : result.getDaemonIds()) {
+            directory.registerFile(filename, daemonId);
+        }
+        return result;
+    }
+
+    private synchronized UploadPipeline uploader() {
+        if (uploadContext == null) {
+            uploadContext = new SpringApplicationBuilder(UploadPipeline.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--logging.level.root=WARN");
+        }
+        return uploadContext.getBean(UploadPipeline.class);
+    }
+
+    // Waits until the condition holds, failing after the timeout
+    public static void await(String what, long timeoutMillis, Condition condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!condition.holds()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("Timed out waiting for " + what);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    // The stub a child process registered with, once it has replaced the previous one
+    DaemonService awaitRegistration(String id, Process process, DaemonService previous, Set<String> stored)
+            throws Exception {
+        await("daemon " + id + " to register", 30_000, () -> {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Daemon " + id + " exited with " + process.exitValue()
+                        + ", see " + root.resolve(id + ".log"));
+            }
+            DaemonService current = directory.getLiveDaemons().get(id);
+            // A daemon registers before it announces its files; wait for those it started with
+            return current != null && current != previous && directory.getFilesHeldBy(id).containsAll(stored);
+        });
+        return directory.getLiveDaemons().get(id);
+    }
+
+    // Never throws InterruptedException, so try-with-resources needs no handler for it;
+    // an interrupt is kept for the caller once everything is shut down
+    @Override
+    public void close() throws IOException {
+        boolean interrupted = false;
+        for (SimDaemon daemon : daemons()) {
+            try {
+                daemon.stop();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (uploadContext != null) {
+            uploadContext.close();
+        }
+        Registry registry = directoryContext.getBean(Registry.class);
+        directoryContext.close();
+        try {
+            UnicastRemoteObject.unexportObject(registry, true);
+        } catch (NoSuchObjectException ignored) {
+            // Already gone
+        }
+        for (Map.Entry<String, String> saved : savedProperties.entrySet()) {
+            if (saved.getValue() == null) {
+                System.clearProperty(saved.getKey());
+            } else {
+                System.setProperty(saved.getKey(), saved.getValue());
+            }
+        }
+        deleteRecursively(root);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public interface Seeder {
+        void seed(Path storage) throws IOException;
+    }
+
+    public interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.server.usth.sim;
+
+import com.server.usth.services.DaemonImpl;
+import com.server.usth.services.DaemonService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// One daemon of a SimCluster, in the test JVM or in a child process, with its storage
+// directory and faults. The directory hands out the fault-injecting wrapper, so faults
+// apply to every client and to the other daemons; they survive restarts.
+public class SimDaemon {
+    private final SimCluster cluster;
+    private final String id;
+    private final Path storage;
+    private final Faults faults = new Faults();
+    private DaemonImpl local;
+    private Process process;
+    private DaemonService wrapper;
+
+    SimDaemon(SimCluster cluster, String id, Path storage) {
+        this.cluster = cluster;
+        this.id = id;
+        this.storage = storage;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Path getStorage() {
+        return storage;
+    }
+
+    public Faults faults() {
+        return faults;
+    }
+
+    public boolean isRunning() {
+        return local != null || (process != null && process.isAlive());
+    }
+
+    // Returns once the daemon is registered and has announced the files it started with;
+    // an in-JVM daemon has also finished recovery
+    public synchronized void start() throws Exception {
+        DaemonService stub;
+        if (cluster.childProcesses) {
+            Set<String> stored = storedFiles();
+            process = launch();
+            stub = cluster.awaitRegistration(id, process, wrapper, stored);
+        } else {
+            local = new DaemonImpl(id, storage.toString(), 0);
+            local.start();
+            stub = (DaemonService) UnicastRemoteObject.toStub(local);
+        }
+        unexportWrapper();
+        wrapper = faults.wrap(stub);
+        UnicastRemoteObject.exportObject(wrapper, 0);
+        cluster.directory.registerDaemon(id, wrapper);
+    }
+
+    private Set<String> storedFiles() throws IOException {
+        try (Stream<Path> entries = Files.list(storage)) {
+            return entries.filter(Files::isRegularFile)
+                    .map(entry -> entry.getFileName().toString())
+                    .filter(name -> !name.startsWith("."))
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    // Kills the daemon without warning; files in storage stay where they are
+    public synchronized void crash() throws InterruptedException {
+        if (process != null) {
+            process.destroyForcibly();
+            process.waitFor(10, TimeUnit.SECONDS);
+            process = null;
+        }
+        if (local != null) {
+            local.shutdown();
+            local = null;
+        }
+    }
+
+    public synchronized void restart() throws Exception {
+        crash();
+        start();
+    }
+
+    // Empties the storage directory of a crashed daemon, e.g. to make it recover everything
+    public synchronized void wipe() throws IOException {
+        if (isRunning()) {
+            throw new IllegalStateException("Daemon " + id + " is running");
+        }
+        SimCluster.deleteRecursively(storage);
+        Files.createDirectories(storage);
+    }
+
+    synchronized void stop() throws InterruptedException {
+        crash();
+        unexportWrapper();
+    }
+
+    private void unexportWrapper() {
+        if (wrapper != null) {
+            try {
+                UnicastRemoteObject.unexportObject(wrapper, true);
+            } catch (NoSuchObjectException ignored) {
+                // Never exported
+            }
+            wrapper = null;
+        }
+    }
+
+    private Process launch() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String property : cluster.daemonProperties()) {
+            command.add("-D" + property);
+        }
+        command.add(DaemonImpl.class.getName());
+        command.add(id);
+        command.add(storage.toString());
+        File log = cluster.root.resolve(id + ".log").toFile();
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+                .start();
+    }
+}
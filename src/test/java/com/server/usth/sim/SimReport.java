@@ -0,0 +1,71 @@
+package com.server.usth.sim;
+
+import com.server.usth.services.Metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Throughput and latency of one workload run: operations are timed into a histogram,
+// bytes moved and failures are counted, and the whole run is timed from start to finish.
+public class SimReport {
+    private static final AtomicInteger RUNS = new AtomicInteger();
+
+    private final String name;
+    private final Metrics.Histogram latency;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final long started = System.nanoTime();
+    private volatile long finished;
+
+    SimReport(String name) {
+        this.name = name;
+        this.latency = Metrics.timer("sim_operation_seconds", "Latency of simulated workload operations",
+                "workload", name, "run", Integer.toString(RUNS.incrementAndGet()));
+    }
+
+    void success(long start, long transferred) {
+        latency.recordSince(start);
+        bytes.addAndGet(transferred);
+    }
+
+    void failure(long start) {
+        latency.recordSince(start);
+        failures.incrementAndGet();
+    }
+
+    SimReport finish() {
+        finished = System.nanoTime();
+        return this;
+    }
+
+    public long getOperations() {
+        return latency.count();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public double getSeconds() {
+        return ((finished == 0 ? System.nanoTime() : finished) - started) / 1e9;
+    }
+
+    // Latency at quantile q in milliseconds, within the histogram's 1/16 resolution
+    public double latencyMillis(double q) {
+        return latency.quantile(q) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        double seconds = getSeconds();
+        return String.format(Locale.ROOT,
+                "%s: %d ops (%d failed) in %.2f s, %.1f ops/s, %.1f MB/s, p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms",
+                name, getOperations(), getFailures(), seconds, getOperations() / seconds,
+                getBytes() / seconds / (1024 * 1024), latencyMillis(0.5), latencyMillis(0.99), latencyMillis(0.999));
+    }
+}
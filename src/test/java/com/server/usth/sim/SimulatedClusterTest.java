@@ -0,0 +1,135 @@
+package com.server.usth.sim;
+
+import com.server.usth.services.Metrics;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SimulatedClusterTest {
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    void downloadStormSurvivesSlowAndFailingDaemons() throws Exception {
+        try (SimCluster cluster = new SimCluster(false)) {
+            for (int i = 0; i < 3; i++) {
+                cluster.addDaemon();
+            }
+            cluster.upload("storm.bin", content(4 * MB));
+            cluster.daemon("sim1").faults().latency(20, 10).errorRate(0.2);
+            cluster.daemon("sim2").faults().bandwidth(2L * MB);
+
+            SimReport report = Workloads.downloadStorm(cluster, "storm.bin", 4 * MB, 4, 2);
+            System.out.println(report);
+            assertEquals(8, report.getOperations());
+            assertEquals(0, report.getFailures());
+        }
+    }
+
+    @Test
+    void uploadCompletesWhileDaemonJoins() throws Exception {
+        try (SimCluster cluster = new SimCluster(false)) {
+            for (int i = 0; i < 3; i++) {
+                cluster.addDaemon().faults().bandwidth(4L * MB);
+            }
+
+            SimReport report = Workloads.uploadDuringJoin(cluster, "join.bin", content(6 * MB), 300);
+            System.out.println(report);
+            assertEquals(0, report.getFailures());
+            assertEquals(4, cluster.directory().getLiveDaemons().size());
+            assertEquals(0, Workloads.downloadStorm(cluster, "join.bin", 6 * MB, 1, 1).getFailures());
+        }
+    }
+
+    @Test
+    void wipedDaemonRecoversEverythingOnRestart() throws Exception {
+        try (SimCluster cluster = new SimCluster(false)) {
+            for (int i = 0; i < 3; i++) {
+                cluster.addDaemon();
+            }
+            for (int i = 0; i < 5; i++) {
+                cluster.upload("file-" + i + ".bin", content(MB));
+            }
+
+            SimReport report = Workloads.massRecovery(cluster, cluster.daemon("sim3"), 30_000);
+            System.out.println(report);
+            assertEquals(0, report.getFailures());
+            assertEquals(5L * MB, report.getBytes());
+        }
+    }
+
+    @Test
+    void lookupsSteerAwayFromSlowDaemon() throws Exception {
+        try (SimCluster cluster = new SimCluster(false)) {
+            for (int i = 0; i < 3; i++) {
+                cluster.addDaemon();
+            }
+            cluster.upload("hot.bin", content(8 * MB));
+            cluster.daemon("sim2").faults().latency(300, 0);
+            // Downloads fetch chunks from every daemon and report what they saw to the directory
+            assertEquals(0, Workloads.downloadStorm(cluster, "hot.bin", 8 * MB, 1, 2).getFailures());
+
+            int slowFirst = 0;
+            for (int i = 0; i < 20; i++) {
+                if (cluster.directory().getDaemonsForFile("hot.bin").get(0).getDaemonId().equals("sim2")) {
+                    slowFirst++;
+                }
+            }
+            assertTrue(slowFirst < 5, "slow daemon ranked first in " + slowFirst + " of 20 lookups");
+        }
+    }
+
+    @Test
+    void saturatedDaemonsTurnRequestsAwayAndDownloadsStillFinish() throws Exception {
+        try (SimCluster cluster = new SimCluster(false, "daemon.admission.maxReads=1",
+                "daemon.admission.maxQueued=0")) {
+            for (int i = 0; i < 3; i++) {
+                cluster.addDaemon();
+            }
+            cluster.upload("busy.bin", content(8 * MB));
+            long rejectedBefore = rejected();
+
+            SimReport report = Workloads.downloadStorm(cluster, "busy.bin", 8 * MB, 4, 2);
+            System.out.println(report);
+            assertEquals(0, report.getFailures());
+            assertTrue(rejected() > rejectedBefore, "no request was turned away");
+        }
+    }
+
+    @Test
+    void childProcessDaemonsServeDownloadsAfterCrash() throws Exception {
+        byte[] data = content(2 * MB);
+        try (SimCluster cluster = new SimCluster(true)) {
+            for (int i = 0; i < 2; i++) {
+                cluster.addDaemon(storage -> Files.write(storage.resolve("seeded.bin"), data));
+            }
+            cluster.daemon("sim1").crash();
+
+            SimReport report = Workloads.downloadStorm(cluster, "seeded.bin", data.length, 2, 2);
+            System.out.println(report);
+            assertEquals(0, report.getFailures());
+
+            cluster.daemon("sim1").restart();
+            assertTrue(cluster.daemon("sim1").isRunning());
+        }
+    }
+
+    private static long rejected() {
+        long total = 0;
+        for (String line : Metrics.snapshot().toPrometheus().split("\n")) {
+            if (line.startsWith("daemon_admission_rejected_total{")) {
+                total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        return total;
+    }
+
+    private static byte[] content(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
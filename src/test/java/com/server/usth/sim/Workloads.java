@@ -0,0 +1,116 @@
+package com.server.usth.sim;
+
+import com.server.usth.DownloadClient;
+import com.server.usth.services.Metrics;
+import com.server.usth.services.UploadPipeline;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Scripted workloads against a SimCluster. Each returns a report once it is done;
+// failed operations are counted there rather than thrown.
+public final class Workloads {
+
+    private Workloads() {
+    }
+
+    // Many clients downloading the same file at once, each several times in a row. A
+    // download counts as failed unless it produced a file of the expected size.
+    public static SimReport downloadStorm(SimCluster cluster, String filename, long size,
+                                          int clients, int downloadsPerClient) throws Exception {
+        SimReport report = new SimReport("download-storm");
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                Path output = cluster.root.resolve("client-" + c + ".out");
+                running.add(pool.submit(() -> {
+                    for (int i = 0; i < downloadsPerClient; i++) {
+                        long start = Metrics.start();
+                        new DownloadClient().downloadFile(filename, output.toString());
+                        if (sizeOf(output) == size) {
+                            report.success(start, size);
+                        } else {
+                            report.failure(start);
+                        }
+                        Files.deleteIfExists(output);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> client : running) {
+                client.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return report.finish();
+    }
+
+    // One upload with a new daemon joining partway through. Slow the existing daemons down
+    // with faults to make sure the join lands inside the upload.
+    public static SimReport uploadDuringJoin(SimCluster cluster, String filename, byte[] content,
+                                             long joinAfterMillis) throws Exception {
+        SimReport report = new SimReport("upload-during-join");
+        ExecutorService uploader = Executors.newSingleThreadExecutor();
+        try {
+            long start = Metrics.start();
+            Future<UploadPipeline.UploadResult> upload = uploader.submit(() -> cluster.upload(filename, content));
+            Thread.sleep(joinAfterMillis);
+            cluster.addDaemon();
+            try {
+                report.success(start, upload.get().getBytes());
+            } catch (Exception e) {
+                report.failure(start);
+            }
+        } finally {
+            uploader.shutdownNow();
+        }
+        return report.finish();
+    }
+
+    // Crashes a daemon, empties its storage and restarts it, then waits until it holds
+    // every file placed on it again. Bytes are what it had to fetch.
+    public static SimReport massRecovery(SimCluster cluster, SimDaemon daemon, long timeoutMillis) throws Exception {
+        SimReport report = new SimReport("mass-recovery");
+        daemon.crash();
+        daemon.wipe();
+        long start = Metrics.start();
+        daemon.start();
+        try {
+            // A child process may not have dropped its old entries yet, so check storage too
+            SimCluster.await("daemon " + daemon.getId() + " to recover", timeoutMillis, () -> {
+                Set<String> held = cluster.directory.getFilesHeldBy(daemon.getId());
+                for (String filename : cluster.directory.getAssignedFiles(daemon.getId())) {
+                    if (!held.contains(filename) || !Files.exists(daemon.getStorage().resolve(filename))) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+            long bytes = 0;
+            for (String filename : cluster.directory.getFilesHeldBy(daemon.getId())) {
+                bytes += Math.max(0, sizeOf(daemon.getStorage().resolve(filename)));
+            }
+            report.success(start, bytes);
+        } catch (IllegalStateException e) {
+            report.failure(start);
+        }
+        return report.finish();
+    }
+
+    private static long sizeOf(Path path) throws Exception {
+        try {
+            return Files.size(path);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+}